@@ -0,0 +1,75 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture.benchmarks;
+
+import com.okta.scim.server.PasswordCapture.EncryptionUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a new <code>Cipher.getInstance</code> and <code>init</code> per call, which is what EncryptionUtil used to do,
+ * with the per thread cipher reuse in EncryptionUtil.
+ *
+ * @author praven Atluri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class CipherReuseBenchmark {
+
+    private static final String PASSWORD = "Sup3r-Secret-Passw0rd!";
+
+    private KeyPair keyPair;
+    private byte[] cipherText;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(EncryptionUtil.ALGORITHM);
+        keyGen.initialize(2048);
+        keyPair = keyGen.generateKeyPair();
+        cipherText = EncryptionUtil.encrypt(PASSWORD, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public byte[] encryptNewCipher() throws Exception {
+        Cipher cipher = Cipher.getInstance(EncryptionUtil.ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+        return cipher.doFinal(PASSWORD.getBytes());
+    }
+
+    @Benchmark
+    public byte[] encryptReusedCipher() {
+        return EncryptionUtil.encrypt(PASSWORD, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public byte[] decryptNewCipher() throws Exception {
+        Cipher cipher = Cipher.getInstance(EncryptionUtil.ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+        return cipher.doFinal(cipherText);
+    }
+
+    @Benchmark
+    public String decryptReusedCipher() {
+        return EncryptionUtil.decrypt(cipherText, keyPair.getPrivate());
+    }
+}
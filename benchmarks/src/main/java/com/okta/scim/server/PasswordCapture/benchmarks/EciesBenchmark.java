@@ -0,0 +1,68 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture.benchmarks;
+
+import com.okta.scim.server.PasswordCapture.EncryptionUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting and decrypting a password with ECIES on X25519 and on P-256, to set against the RSA schemes of
+ * {@link EncryptionBenchmark}. X25519 needs a Java 11 or later runtime.
+ *
+ * @author praven Atluri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EciesBenchmark {
+
+    private static final String PASSWORD = "Sup3r-Secret-Passw0rd!";
+
+    @Param({EncryptionUtil.KEY_ALGORITHM_X25519, EncryptionUtil.KEY_ALGORITHM_P256})
+    private String curve;
+
+    private KeyPair keyPair;
+    private byte[] cipherText;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator keyGen;
+        if (EncryptionUtil.KEY_ALGORITHM_X25519.equals(curve)) {
+            keyGen = KeyPairGenerator.getInstance("X25519");
+        } else {
+            keyGen = KeyPairGenerator.getInstance("EC");
+            keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+        }
+        keyPair = keyGen.generateKeyPair();
+        cipherText = encrypt();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return EncryptionUtil.encryptEcies(PASSWORD, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return EncryptionUtil.decrypt(cipherText, keyPair.getPrivate());
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture.benchmarks;
+
+import com.okta.scim.server.PasswordCapture.EncryptionUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting and decrypting a password with RSA-2048 and RSA-4096 keys, in the three schemes a deployment can pick
+ * from:
+ * <ul>
+ * <li>PKCS1, the rsa encryption mode: <code>EncryptionUtil.encrypt</code> and <code>decrypt</code> with PKCS#1 v1.5 padding</li>
+ * <li>OAEP, RSA with OAEP SHA-256 padding. EncryptionUtil does not offer it, so it is measured with per thread ciphers
+ * that are reused the same way EncryptionUtil reuses them, to compare the padding alone</li>
+ * <li>ENVELOPE, the envelope encryption mode: AES-GCM under an RSA wrapped data key</li>
+ * </ul>
+ * Run it through {@link EncryptionBenchmarks} to get the 1, 8 and 32 thread runs with allocation per operation.
+ *
+ * @author praven Atluri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptionBenchmark {
+
+    private static final String PASSWORD = "Sup3r-Secret-Passw0rd!";
+    private static final String OAEP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+    @Param({"2048", "4096"})
+    private int keySize;
+
+    @Param({"PKCS1", "OAEP", "ENVELOPE"})
+    private String scheme;
+
+    private KeyPair keyPair;
+    private byte[] cipherText;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(EncryptionUtil.ALGORITHM);
+        keyGen.initialize(keySize);
+        keyPair = keyGen.generateKeyPair();
+        cipherText = encrypt(new OaepCiphers());
+    }
+
+    /**
+     * Per thread OAEP ciphers, initialised once like the ciphers EncryptionUtil keeps per thread.
+     */
+    @State(Scope.Thread)
+    public static class OaepCiphers {
+        private Cipher encrypt;
+        private Cipher decrypt;
+
+        private Cipher getEncrypt(KeyPair keyPair) throws Exception {
+            if (encrypt == null) {
+                encrypt = Cipher.getInstance(OAEP_TRANSFORMATION);
+                encrypt.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+            }
+            return encrypt;
+        }
+
+        private Cipher getDecrypt(KeyPair keyPair) throws Exception {
+            if (decrypt == null) {
+                decrypt = Cipher.getInstance(OAEP_TRANSFORMATION);
+                decrypt.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+            }
+            return decrypt;
+        }
+    }
+
+    @Benchmark
+    public byte[] encrypt(OaepCiphers oaep) throws Exception {
+        if ("PKCS1".equals(scheme)) {
+            return EncryptionUtil.encrypt(PASSWORD, keyPair.getPublic());
+        }
+        if ("OAEP".equals(scheme)) {
+            return oaep.getEncrypt(keyPair).doFinal(PASSWORD.getBytes("UTF-8"));
+        }
+        return EncryptionUtil.encryptEnvelope(PASSWORD, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public String decrypt(OaepCiphers oaep) throws Exception {
+        if ("OAEP".equals(scheme)) {
+            return new String(oaep.getDecrypt(keyPair).doFinal(cipherText), "UTF-8");
+        }
+        //EncryptionUtil tells a PKCS1 ciphertext from an envelope by its header
+        return EncryptionUtil.decrypt(cipherText, keyPair.getPrivate());
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link EncryptionBenchmark}, {@link EciesBenchmark} and {@link KeyLoadingBenchmark} single threaded, at 8 and at
+ * 32 threads, with the GC profiler on so the results include the bytes allocated per operation. Each thread count writes its results to
+ * <code>encryption-&lt;threads&gt;-threads.json</code>.
+ * <p>
+ * Run it with <code>java -cp target/benchmarks.jar com.okta.scim.server.PasswordCapture.benchmarks.EncryptionBenchmarks</code>,
+ * further JMH options such as <code>-p keySize=2048</code> are passed through.
+ *
+ * @author praven Atluri
+ */
+public final class EncryptionBenchmarks {
+
+    private static final int[] THREADS = {1, 8, 32};
+
+    private EncryptionBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options commandLine = new CommandLineOptions(args);
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(EncryptionBenchmark.class.getSimpleName())
+                    .include(EciesBenchmark.class.getSimpleName())
+                    .include(KeyLoadingBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .result("encryption-" + threads + "-threads.json")
+                    .resultFormat(ResultFormatType.JSON)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture.benchmarks;
+
+import com.okta.scim.server.PasswordCapture.EncodedFileKeyProvider;
+import com.okta.scim.server.PasswordCapture.EncryptionUtil;
+import com.okta.scim.server.PasswordCapture.FileKeyProvider;
+import com.okta.scim.server.PasswordCapture.SerializedFileKeyProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting a password with the keys EncryptionUtil keeps loaded, against loading the key pair from the key files
+ * for every password as the connector used to. Both file formats are measured, the legacy serialized keys and the
+ * PEM encoded ones.
+ *
+ * @author praven Atluri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyLoadingBenchmark {
+
+    private static final String PASSWORD = "Sup3r-Secret-Passw0rd!";
+
+    @Param({"serialized", "encoded"})
+    private String keyFiles;
+
+    private File keyDirectory;
+    private FileKeyProvider provider;
+
+    @Setup
+    public void setUp() throws Exception {
+        keyDirectory = Files.createTempDirectory("okta-keys").toFile();
+        provider = "encoded".equals(keyFiles) ? new EncodedFileKeyProvider() : new SerializedFileKeyProvider();
+        provider.setKeyDirectory(keyDirectory.getPath());
+        EncryptionUtil.setKeyProvider(provider);
+        EncryptionUtil.initializeKeys();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = keyDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        keyDirectory.delete();
+    }
+
+    @Benchmark
+    public byte[] encryptCachedKeys() {
+        return EncryptionUtil.encrypt(PASSWORD);
+    }
+
+    @Benchmark
+    public byte[] encryptUncachedKeys() throws Exception {
+        KeyPair keyPair = provider.getKeyPair();
+        return EncryptionUtil.encrypt(PASSWORD, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public KeyPair loadKeys() throws Exception {
+        return provider.getKeyPair();
+    }
+}
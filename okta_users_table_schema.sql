@@ -6,8 +6,22 @@ CREATE TABLE `okta_users` (
   `last_name` varchar(20) NOT NULL,
   `user_name` varchar(255) NOT NULL,
   `password` BLOB(500) DEFAULT NULL,
+  `password_hmac` BINARY(32) DEFAULT NULL,
   `created` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
   `last_updated` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
   `is_active` tinyint(1) NOT NULL DEFAULT '0',
-  PRIMARY KEY (`userid`)
+  PRIMARY KEY (`userid`),
+  -- getUsers filters, every secondary index ends in the primary key so the pages are read in userid order from it
+  KEY `idx_okta_users_user_name` (`user_name`),
+  KEY `idx_okta_users_name` (`last_name`, `first_name`),
+  KEY `idx_okta_users_first_name` (`first_name`)
 )
+
+-- Existing tables, the fingerprints are filled in by the next push of each password
+-- ALTER TABLE `okta_users` ADD COLUMN `password_hmac` BINARY(32) DEFAULT NULL AFTER `password`;
+
+-- Existing tables, the indexes of the getUsers filters
+-- ALTER TABLE `okta_users` ADD KEY `idx_okta_users_user_name` (`user_name`), ADD KEY `idx_okta_users_name` (`last_name`, `first_name`);
+
+-- Existing tables, the index of the name.givenName filters
+-- ALTER TABLE `okta_users` ADD KEY `idx_okta_users_first_name` (`first_name`);
@@ -0,0 +1,82 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Column level change detection for <code>updateUser</code>.
+ * <p>
+ * Okta pushes the whole profile with every update, so writing every pushed column bumps <code>last_updated</code> and
+ * produces binlog and redo entries for rows that did not change. With a change detector, <code>updateUser</code>
+ * compares the push with the stored row, taken from the {@link UserCache} when it holds the row and read otherwise,
+ * and only writes the columns that differ. A push that changes nothing issues no statement at all. The password is
+ * compared through its fingerprint, so it is only skipped when a {@link PasswordFingerprint} is configured as well.
+ * <p>
+ * A cached row is trusted for <code>ttlMillis</code> of the cache, rows changed outside the connector within that time
+ * are not seen.
+ *
+ * @author praven Atluri
+ */
+public class ChangeDetector {
+
+    private final AtomicLong comparedUpdates = new AtomicLong();
+    private final AtomicLong suppressedUpdates = new AtomicLong();
+    private final AtomicLong suppressedColumns = new AtomicLong();
+
+    /**
+     * Drop the columns of an update that already hold the pushed value in the stored row.
+     *
+     * @param update The update built from the push.
+     * @param row    The stored row.
+     */
+    public void removeUnchanged(UserUpdate update, UserCache.CachedUser row) {
+        comparedUpdates.incrementAndGet();
+        suppressedColumns.addAndGet(update.removeUnchanged(row));
+    }
+
+    /**
+     * Count a push that changed nothing and was not written.
+     */
+    void recordSuppressedUpdate() {
+        suppressedUpdates.incrementAndGet();
+    }
+
+    /**
+     * Get the number of pushes compared with the stored row.
+     *
+     * @return The compared update count.
+     */
+    public long getComparedUpdates() {
+        return comparedUpdates.get();
+    }
+
+    /**
+     * Get the number of pushes that changed nothing, no statement was issued for them.
+     *
+     * @return The suppressed update count.
+     */
+    public long getSuppressedUpdates() {
+        return suppressedUpdates.get();
+    }
+
+    /**
+     * Get the number of pushed columns that were not written because they held the pushed value already.
+     *
+     * @return The suppressed column count.
+     */
+    public long getSuppressedColumns() {
+        return suppressedColumns.get();
+    }
+
+    /**
+     * Get the share of compared pushes that issued no statement.
+     *
+     * @return The suppression ratio between 0 and 1.
+     */
+    public double getSuppressionRatio() {
+        long compared = comparedUpdates.get();
+        return compared == 0 ? 0 : (double) suppressedUpdates.get() / compared;
+    }
+}
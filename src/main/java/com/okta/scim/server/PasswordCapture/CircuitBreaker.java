@@ -0,0 +1,399 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops calling the database while it is failing, so that a stalled database does not hold every Tomcat thread in
+ * <code>getConnection</code> or <code>executeUpdate</code>, and retries the calls that failed for a transient reason.
+ * <p>
+ * The outcomes of the last <code>windowSize</code> calls are kept. Once at least <code>minimumCalls</code> of them are
+ * known and <code>failureRatePercent</code> of them failed, the circuit opens: for <code>openMillis</code> every call
+ * fails at once with the error code <code>DB_CIRCUIT_OPEN</code>, without borrowing a connection. Then the circuit is
+ * half-open and lets <code>halfOpenCalls</code> trial calls through; it closes when they all succeed and opens again
+ * when one fails. Only the failures showing the database is unavailable count: connection exceptions, SQLState class
+ * 08, and timeouts. A constraint violation or a syntax error is an answer of the database and counts as a success.
+ * <p>
+ * A call that failed with one of <code>transientSqlStates</code>, a deadlock or a reset connection, is run again up to
+ * <code>maxRetries</code> times while the circuit is closed, after a random pause of up to
+ * <code>retryBaseMillis</code> doubled with every retry and at most <code>retryMaxMillis</code>. The whole call is run
+ * again, so only calls that can run twice are retried.
+ *
+ * @author praven Atluri
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final String SQL_STATE_CONNECTION_EXCEPTION = "08";
+
+    //Breaker configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private int windowSize = 20;
+    private int minimumCalls = 10;
+    private int failureRatePercent = 50;
+    private long openMillis = 10000;
+    private int halfOpenCalls = 3;
+    private int maxRetries = 2;
+    private long retryBaseMillis = 50;
+    private long retryMaxMillis = 1000;
+    //serialization failure and deadlock (40001, PostgreSQL 40P01), connection reset (MySQL 08S01, PostgreSQL 08006)
+    private Set<String> transientSqlStates = new HashSet<String>(Arrays.asList("40001", "40P01", "08S01", "08006"));
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    //the outcomes of the last calls, true for a failure
+    private boolean[] window;
+    private int recorded;
+    private int failures;
+    private int next;
+    private int trialCalls;
+    private int trialSuccesses;
+
+    //set while a call runs, the calls it makes itself pass straight through
+    private final ThreadLocal<Boolean> inCall = new ThreadLocal<Boolean>();
+
+    private final AtomicLong rejectedCalls = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong openings = new AtomicLong();
+
+    /**
+     * A database call.
+     *
+     * @param <T> The result of the call.
+     * @param <E> The checked exception the call throws.
+     */
+    public interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /**
+     * Run a database call, unless the circuit is open.
+     * <p>
+     * The call fails with a SQLException or with an exception caused by one, like the OnPremUserManagementException of
+     * the service. Any other exception says nothing about the database and is not counted.
+     *
+     * @param operation The name of the call, for the logs.
+     * @param retryable Whether the call may be run again after a transient failure.
+     * @param call      The call.
+     * @return The result of the call.
+     * @throws OnPremUserManagementException with the code DB_CIRCUIT_OPEN when the circuit is open.
+     */
+    public <T, E extends Exception> T execute(String operation, boolean retryable, Call<T, E> call) throws E {
+        if (inCall.get() != null) {
+            return call.call();
+        }
+        inCall.set(Boolean.TRUE);
+        try {
+            for (int attempt = 0; ; attempt++) {
+                boolean trial = acquire(operation);
+                boolean completed = false;
+                try {
+                    T result = call.call();
+                    complete(trial, Boolean.FALSE);
+                    completed = true;
+                    return result;
+                } catch (Exception ex) {
+                    SQLException cause = getSQLException(ex);
+                    complete(trial, cause == null ? null : isFailure(cause));
+                    completed = true;
+                    if (cause == null || !retryable || attempt >= maxRetries || !isTransient(cause) || !isClosed()) {
+                        throw ex;
+                    }
+                    retries.incrementAndGet();
+                    LOGGER.warn(operation + " failed with SQLState " + cause.getSQLState() + ", retry " + (attempt + 1)
+                            + " of " + maxRetries + ": " + cause.getMessage());
+                    if (!pause(attempt)) {
+                        throw ex;
+                    }
+                } finally {
+                    if (!completed) {
+                        //an Error, the call is not counted
+                        complete(trial, null);
+                    }
+                }
+            }
+        } finally {
+            inCall.remove();
+        }
+    }
+
+    /**
+     * Let a call through or refuse it.
+     *
+     * @return true when the call is a trial call of the half-open circuit.
+     */
+    private synchronized boolean acquire(String operation) {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            trialCalls = 0;
+            trialSuccesses = 0;
+            LOGGER.info("The database circuit is half-open, trying " + halfOpenCalls + " calls");
+        }
+        if (state == State.CLOSED) {
+            return false;
+        }
+        if (state == State.HALF_OPEN && trialCalls < halfOpenCalls) {
+            trialCalls++;
+            return true;
+        }
+        rejectedCalls.incrementAndGet();
+        throw new OnPremUserManagementException("DB_CIRCUIT_OPEN", "The database is failing, " + operation
+                + " was not attempted. Calls are refused for " + openMillis + "ms after the failures");
+    }
+
+    /**
+     * Record the outcome of a call.
+     *
+     * @param failed whether the database failed, null when the outcome says nothing about the database
+     */
+    private synchronized void complete(boolean trial, Boolean failed) {
+        if (trial) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            if (failed == null) {
+                //let another call try instead
+                trialCalls--;
+            } else if (failed) {
+                open("a trial call failed");
+            } else if (++trialSuccesses >= halfOpenCalls) {
+                state = State.CLOSED;
+                clearWindow();
+                LOGGER.info("The database circuit is closed again");
+            }
+            return;
+        }
+        //calls started before the circuit opened do not count
+        if (failed == null || state != State.CLOSED) {
+            return;
+        }
+        if (window == null || window.length != windowSize) {
+            clearWindow();
+        }
+        if (recorded == window.length) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        window[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+        if (recorded >= minimumCalls && failures * 100 >= failureRatePercent * recorded) {
+            open(failures + " of the last " + recorded + " calls failed");
+        }
+    }
+
+    private void open(String reason) {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        openings.incrementAndGet();
+        LOGGER.error("The database circuit is open for " + openMillis + "ms, " + reason);
+    }
+
+    private void clearWindow() {
+        window = new boolean[Math.max(1, windowSize)];
+        recorded = 0;
+        failures = 0;
+        next = 0;
+    }
+
+    private synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Wait before a retry, a random time up to the exponential backoff.
+     *
+     * @return false when the thread was interrupted.
+     */
+    private boolean pause(int attempt) {
+        long backoff = Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempt, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Whether a failure shows the database is unavailable.
+     */
+    private static boolean isFailure(SQLException ex) {
+        if (ex instanceof SQLTimeoutException || ex instanceof SQLTransientConnectionException
+                || ex instanceof SQLNonTransientConnectionException || ex instanceof SQLRecoverableException) {
+            return true;
+        }
+        String sqlState = ex.getSQLState();
+        //HYT00 and HYT01 are timeouts, 57014 a statement cancelled by its timeout
+        return sqlState != null && (sqlState.startsWith(SQL_STATE_CONNECTION_EXCEPTION) || sqlState.equals("HYT00")
+                || sqlState.equals("HYT01") || sqlState.equals("57014"));
+    }
+
+    private boolean isTransient(SQLException ex) {
+        return ex.getSQLState() != null && transientSqlStates.contains(ex.getSQLState());
+    }
+
+    /**
+     * Find the SQLException a call failed with, the exception itself or one of its causes.
+     */
+    private static SQLException getSQLException(Throwable ex) {
+        for (int depth = 0; ex != null && depth < 5; depth++, ex = ex.getCause()) {
+            if (ex instanceof SQLException) {
+                return (SQLException) ex;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the state of the circuit.
+     *
+     * @return CLOSED, OPEN or HALF_OPEN.
+     */
+    public synchronized String getState() {
+        return state.name();
+    }
+
+    /**
+     * Get the share of failed calls among the last calls of the closed circuit.
+     *
+     * @return The failure rate in percent.
+     */
+    public synchronized double getFailureRate() {
+        return recorded == 0 ? 0 : failures * 100.0 / recorded;
+    }
+
+    /**
+     * Get the number of calls refused because the circuit was open.
+     *
+     * @return The rejected call count.
+     */
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    /**
+     * Get the number of calls run again after a transient failure.
+     *
+     * @return The retry count.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of times the circuit opened.
+     *
+     * @return The opening count.
+     */
+    public long getOpenings() {
+        return openings.get();
+    }
+
+    /**
+     * Set the number of recent calls whose outcome is kept.
+     *
+     * @param windowSize The window size to set.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Set the number of outcomes needed before the circuit can open.
+     *
+     * @param minimumCalls The minimum number of calls to set.
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    /**
+     * Set the share of failed calls in the window that opens the circuit.
+     *
+     * @param failureRatePercent The failure rate in percent to set.
+     */
+    public void setFailureRatePercent(int failureRatePercent) {
+        this.failureRatePercent = failureRatePercent;
+    }
+
+    /**
+     * Set how long the circuit refuses every call before it tries the database again.
+     *
+     * @param openMillis The open time in milliseconds to set.
+     */
+    public void setOpenMillis(long openMillis) {
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Set the number of trial calls of the half-open circuit, all of them have to succeed to close it.
+     *
+     * @param halfOpenCalls The number of trial calls to set.
+     */
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Set how often a call failing for a transient reason is run again, 0 for no retries.
+     *
+     * @param maxRetries The maximum number of retries to set.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Set the longest pause before the first retry, doubled for every further retry.
+     *
+     * @param retryBaseMillis The base pause in milliseconds to set.
+     */
+    public void setRetryBaseMillis(long retryBaseMillis) {
+        this.retryBaseMillis = retryBaseMillis;
+    }
+
+    /**
+     * Set the longest pause before any retry.
+     *
+     * @param retryMaxMillis The maximum pause in milliseconds to set.
+     */
+    public void setRetryMaxMillis(long retryMaxMillis) {
+        this.retryMaxMillis = retryMaxMillis;
+    }
+
+    /**
+     * Set the SQLStates of the failures that are retried.
+     *
+     * @param transientSqlStates The SQLStates to set.
+     */
+    public void setTransientSqlStates(List<String> transientSqlStates) {
+        this.transientSqlStates = new HashSet<String>(transientSqlStates);
+    }
+}
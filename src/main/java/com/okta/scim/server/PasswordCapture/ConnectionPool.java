@@ -0,0 +1,889 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small bounded JDBC connection pool so that SCIM requests borrow a warm connection instead of paying the
+ * TCP, TLS and authentication handshake of <code>DriverManager.getConnection</code> on every call.
+ * <p>
+ * The pool is configured from the Spring <code>dispatcher-servlet.xml</code> file. Connections handed out are proxies:
+ * calling <code>close()</code> returns the physical connection to the pool, rolling back any open transaction first.
+ * Idle connections above <code>minSize</code> are evicted after <code>idleTimeoutMillis</code>, and a borrowed connection
+ * is only validated when it has been idle for longer than <code>validationIntervalMillis</code>.
+ * <p>
+ * Every physical connection also keeps an LRU cache of up to <code>statementCacheSize</code> prepared statements, so the
+ * handful of fixed <code>okta_users</code> statements are prepared once per connection instead of once per call. With
+ * SQL Server that saves parsing and planning on the server; the Drizzle MySQL driver prepares client side, so there it
+ * only saves splitting the SQL around its parameters. Closing a cached statement only clears its parameters. The hit and miss counters are exported over JMX.
+ *
+ * @author praven Atluri
+ */
+public class ConnectionPool implements DataSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+    //SQLState class for connection exceptions, a connection that raised one of these is never returned to the pool
+    private static final String SQL_STATE_CONNECTION_EXCEPTION = "08";
+
+    //Pool configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private String url;
+    private String userName;
+    private String password;
+    private int minSize = 2;
+    private int maxSize = 20;
+    private long acquireTimeoutMillis = 5000;
+    private long idleTimeoutMillis = 10 * 60 * 1000;
+    private long validationIntervalMillis = 30 * 1000;
+    private int validationTimeoutSeconds = 2;
+    private String validationQuery;
+    private int statementCacheSize = 16;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition connectionReturned = lock.newCondition();
+    private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+    private int totalConnections;
+    private boolean started;
+    private boolean closed;
+    private ScheduledExecutorService evictor;
+
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    private final AtomicLong statementCacheEvictions = new AtomicLong();
+
+    /**
+     * Opens the initial <code>minSize</code> connections and starts the idle evictor. Calling it more than once has no effect.
+     *
+     * @throws SQLException if the initial connections cannot be opened
+     */
+    public void start() throws SQLException {
+        lock.lock();
+        try {
+            if (started) {
+                return;
+            }
+            if (url == null) {
+                throw new IllegalStateException("The connection pool url must be set before it is started");
+            }
+            if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+                throw new IllegalStateException("Invalid connection pool size, min=" + minSize + " max=" + maxSize);
+            }
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+
+        for (int i = 0; i < minSize; i++) {
+            PooledConnection pooled = openConnection();
+            lock.lock();
+            try {
+                idle.addFirst(pooled);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "connection-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis, validationIntervalMillis) / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        LOGGER.info("Started connection pool for " + url + " with min=" + minSize + " max=" + maxSize);
+    }
+
+    /**
+     * Closes every idle connection and stops the evictor. Borrowed connections are closed when they are returned.
+     */
+    public void close() {
+        List<PooledConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+            connectionReturned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (PooledConnection pooled : toClose) {
+            destroy(pooled);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        PooledConnection pooled = borrow();
+        return pooled.newHandle();
+    }
+
+    @Override
+    public Connection getConnection(String user, String pass) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The connection pool only hands out connections for its configured user");
+    }
+
+    /**
+     * Borrows a connection, waiting at most <code>acquireTimeoutMillis</code> for one to be returned when the pool is exhausted.
+     */
+    private PooledConnection borrow() throws SQLException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        while (true) {
+            PooledConnection candidate = null;
+            boolean create = false;
+
+            lock.lock();
+            try {
+                while (candidate == null && !create) {
+                    if (closed || !started) {
+                        throw new SQLException("The connection pool is not running", SQL_STATE_CONNECTION_EXCEPTION + "003");
+                    }
+                    if (!idle.isEmpty()) {
+                        //most recently used first, so the warmest connection is handed out and the others can age out
+                        candidate = idle.removeFirst();
+                    } else if (totalConnections < maxSize) {
+                        totalConnections++;
+                        create = true;
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new SQLException("Timed out after " + acquireTimeoutMillis + "ms waiting for a database connection ("
+                                    + maxSize + " in use)", SQL_STATE_CONNECTION_EXCEPTION + "001");
+                        }
+                        try {
+                            connectionReturned.awaitNanos(remaining);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new SQLException("Interrupted while waiting for a database connection", SQL_STATE_CONNECTION_EXCEPTION + "001", ex);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                try {
+                    return openPhysical();
+                } catch (SQLException ex) {
+                    release();
+                    throw ex;
+                }
+            }
+
+            if (isUsable(candidate)) {
+                return candidate;
+            }
+            LOGGER.warn("Discarding a pooled connection to " + url + " that failed validation");
+            discard(candidate);
+        }
+    }
+
+    /**
+     * Opens a connection counting it against the pool size.
+     */
+    private PooledConnection openConnection() throws SQLException {
+        lock.lock();
+        try {
+            totalConnections++;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return openPhysical();
+        } catch (SQLException ex) {
+            release();
+            throw ex;
+        }
+    }
+
+    private PooledConnection openPhysical() throws SQLException {
+        Connection physical;
+        if (userName == null) {
+            physical = DriverManager.getConnection(url);
+        } else {
+            physical = DriverManager.getConnection(url, userName, password);
+        }
+        return new PooledConnection(physical);
+    }
+
+    /**
+     * Validation is skipped for connections that were in use recently, which is the common case under load.
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsed < validationIntervalMillis) {
+            return true;
+        }
+        try {
+            if (validationQuery == null) {
+                return pooled.physical.isValid(validationTimeoutSeconds);
+            }
+            Statement stmt = pooled.physical.createStatement();
+            try {
+                stmt.setQueryTimeout(validationTimeoutSeconds);
+                stmt.execute(validationQuery);
+                return true;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException ex) {
+            LOGGER.debug("Pooled connection validation failed: " + ex.getMessage());
+            return false;
+        } catch (AbstractMethodError ex) {
+            //pre JDBC 4 driver without isValid, fall back to the validation query from now on
+            validationQuery = "SELECT 1";
+            return isUsable(pooled);
+        }
+    }
+
+    /**
+     * Returns a connection to the pool once its handle has been closed.
+     */
+    private void giveBack(PooledConnection pooled) {
+        if (!pooled.broken) {
+            try {
+                if (!pooled.physical.getAutoCommit()) {
+                    pooled.physical.rollback();
+                    pooled.physical.setAutoCommit(true);
+                }
+                pooled.physical.clearWarnings();
+            } catch (SQLException ex) {
+                LOGGER.warn("Unable to reset a pooled connection, discarding it", ex);
+                pooled.broken = true;
+            }
+        }
+
+        if (pooled.broken) {
+            discard(pooled);
+            return;
+        }
+
+        pooled.lastUsed = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (!closed) {
+                idle.addFirst(pooled);
+                connectionReturned.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(pooled);
+    }
+
+    private void discard(PooledConnection pooled) {
+        destroy(pooled);
+        release();
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            totalConnections--;
+            connectionReturned.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void destroy(PooledConnection pooled) {
+        pooled.closeStatements();
+        try {
+            pooled.physical.close();
+        } catch (SQLException ex) {
+            LOGGER.debug("Unable to close a pooled connection: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Closes idle connections above <code>minSize</code> that have not been used for <code>idleTimeoutMillis</code>,
+     * then tops the pool back up to <code>minSize</code>.
+     */
+    private void evictIdleConnections() {
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        int missing;
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            //the oldest connections are at the tail of the idle list
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && totalConnections - expired.size() > minSize) {
+                PooledConnection pooled = it.next();
+                if (now - pooled.lastUsed < idleTimeoutMillis) {
+                    break;
+                }
+                it.remove();
+                expired.add(pooled);
+            }
+            missing = closed ? 0 : minSize - (totalConnections - expired.size());
+        } finally {
+            lock.unlock();
+        }
+
+        for (PooledConnection pooled : expired) {
+            discard(pooled);
+        }
+
+        try {
+            for (int i = 0; i < missing; i++) {
+                PooledConnection pooled = openConnection();
+                giveBack(pooled);
+            }
+        } catch (SQLException ex) {
+            LOGGER.warn("Unable to refill the connection pool for " + url + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Get the number of connections currently open, idle or borrowed.
+     *
+     * @return The number of open connections.
+     */
+    public int getTotalConnections() {
+        lock.lock();
+        try {
+            return totalConnections;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of idle connections.
+     *
+     * @return The number of idle connections.
+     */
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of prepared statements served from the statement cache.
+     *
+     * @return The statement cache hit count.
+     */
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    /**
+     * Get the number of prepared statements that had to be prepared by the driver.
+     *
+     * @return The statement cache miss count.
+     */
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    /**
+     * Get the number of prepared statements closed to make room in a full statement cache.
+     *
+     * @return The statement cache eviction count.
+     */
+    public long getStatementCacheEvictions() {
+        return statementCacheEvictions.get();
+    }
+
+    /**
+     * Get the share of prepared statements served from the statement cache.
+     *
+     * @return The hit ratio between 0 and 1.
+     */
+    public double getStatementCacheHitRatio() {
+        long hits = statementCacheHits.get();
+        long total = hits + statementCacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * A physical connection owned by the pool.
+     */
+    private final class PooledConnection {
+        private final Connection physical;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean broken;
+
+        //only touched by the thread that borrowed the connection, or by the pool while the connection is idle
+        private final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                statementCacheEvictions.incrementAndGet();
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        /**
+         * Hands out the cached statement for the arguments of a <code>prepareStatement</code> call, preparing it on a miss.
+         */
+        private PreparedStatement prepare(Connection handle, Method method, Object[] args) throws Throwable {
+            String key = args.length + Arrays.deepToString(args);
+            CachedStatement cached = statements.get(key);
+            if (cached != null && !cached.inUse) {
+                statementCacheHits.incrementAndGet();
+                return cached.checkOut(handle);
+            }
+
+            statementCacheMisses.incrementAndGet();
+            PreparedStatement stmt = (PreparedStatement) invokePhysical(this, physical, method, args);
+            if (cached != null) {
+                //the same statement is already open on this connection, hand out an uncached one
+                return stmt;
+            }
+            cached = new CachedStatement(this, stmt);
+            statements.put(key, cached);
+            return cached.checkOut(handle);
+        }
+
+        private void closeStatements() {
+            for (CachedStatement cached : statements.values()) {
+                cached.evict();
+            }
+            statements.clear();
+        }
+
+        private Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new ConnectionHandle(this));
+        }
+    }
+
+    /**
+     * The <code>Connection</code> handed out to callers. Closing it returns the physical connection to the pool exactly once.
+     */
+    private final class ConnectionHandle implements InvocationHandler {
+        private PooledConnection pooled;
+
+        private ConnectionHandle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (pooled != null) {
+                    PooledConnection returning = pooled;
+                    pooled = null;
+                    giveBack(returning);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return pooled == null;
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "Pooled" + (pooled == null ? "[closed]" : pooled.physical.toString());
+            }
+            if (pooled == null) {
+                throw new SQLException("Connection has already been returned to the pool", SQL_STATE_CONNECTION_EXCEPTION + "003");
+            }
+
+            if ("prepareStatement".equals(name) && statementCacheSize > 0) {
+                return pooled.prepare((Connection) proxy, method, args);
+            }
+            return invokePhysical(pooled, pooled.physical, method, args);
+        }
+    }
+
+    /**
+     * A prepared statement kept open on its physical connection between borrows.
+     */
+    private final class CachedStatement {
+        private final PooledConnection owner;
+        private final PreparedStatement physical;
+        private boolean inUse;
+        private boolean evicted;
+
+        private CachedStatement(PooledConnection owner, PreparedStatement physical) {
+            this.owner = owner;
+            this.physical = physical;
+        }
+
+        private PreparedStatement checkOut(Connection handle) {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, new StatementHandle(this, handle));
+        }
+
+        private void checkIn() {
+            inUse = false;
+            if (evicted || owner.broken) {
+                close();
+                return;
+            }
+            try {
+                physical.clearParameters();
+                physical.clearBatch();
+            } catch (SQLException ex) {
+                LOGGER.debug("Unable to reset a cached statement, closing it: " + ex.getMessage());
+                evicted = true;
+                close();
+            }
+        }
+
+        private void evict() {
+            evicted = true;
+            if (!inUse) {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                physical.close();
+            } catch (SQLException ex) {
+                LOGGER.debug("Unable to close a cached statement: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The <code>PreparedStatement</code> handed out for a cached statement. Closing it returns the statement to the cache.
+     */
+    private final class StatementHandle implements InvocationHandler {
+        private final Connection connection;
+        private CachedStatement cached;
+
+        private StatementHandle(CachedStatement cached, Connection connection) {
+            this.cached = cached;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (cached != null) {
+                    CachedStatement returning = cached;
+                    cached = null;
+                    returning.checkIn();
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return cached == null;
+            }
+            if ("getConnection".equals(name)) {
+                return connection;
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "Cached" + (cached == null ? "[closed]" : cached.physical.toString());
+            }
+            if (cached == null) {
+                throw new SQLException("Statement has already been closed");
+            }
+            return invokePhysical(cached.owner, cached.physical, method, args);
+        }
+    }
+
+    /**
+     * Invokes a JDBC method on a physical object, marking the connection broken when the driver reports a connection exception.
+     */
+    private static Object invokePhysical(PooledConnection pooled, Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                if (sqlState != null && sqlState.startsWith(SQL_STATE_CONNECTION_EXCEPTION)) {
+                    pooled.broken = true;
+                }
+            }
+            throw cause;
+        }
+    }
+
+    /*
+    DataSource boilerplate
+     */
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return 0;
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("Not supported.");
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    /*
+    Pool configuration, set via the Spring dispatcher-servlet.xml file
+     */
+
+    /**
+     * Get the JDBC url.
+     *
+     * @return The JDBC url.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Set the JDBC url. When left unset, the SCIM service fills it in from its own connection properties.
+     *
+     * @param url The JDBC url to set.
+     */
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Get the database user name.
+     *
+     * @return The user name.
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Set the database user name. Leave it unset when the credentials are part of the url.
+     *
+     * @param userName The user name to set.
+     */
+    public void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+    /**
+     * Set the database password.
+     *
+     * @param password The password to set.
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Get the number of connections kept open even when idle.
+     *
+     * @return The minimum pool size.
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Set the number of connections kept open even when idle.
+     *
+     * @param minSize The minimum pool size to set.
+     */
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * Get the maximum number of open connections.
+     *
+     * @return The maximum pool size.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Set the maximum number of open connections.
+     *
+     * @param maxSize The maximum pool size to set.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get how long a caller waits for a connection when the pool is exhausted.
+     *
+     * @return The acquisition timeout in milliseconds.
+     */
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    /**
+     * Set how long a caller waits for a connection when the pool is exhausted.
+     *
+     * @param acquireTimeoutMillis The acquisition timeout in milliseconds to set.
+     */
+    public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    /**
+     * Get how long a connection above the minimum pool size may stay idle before it is closed.
+     *
+     * @return The idle timeout in milliseconds.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Set how long a connection above the minimum pool size may stay idle before it is closed.
+     *
+     * @param idleTimeoutMillis The idle timeout in milliseconds to set.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Get how long a connection may be idle before it is validated on borrow.
+     *
+     * @return The validation interval in milliseconds.
+     */
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    /**
+     * Set how long a connection may be idle before it is validated on borrow.
+     *
+     * @param validationIntervalMillis The validation interval in milliseconds to set.
+     */
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * Set the validation timeout.
+     *
+     * @param validationTimeoutSeconds The validation timeout in seconds to set.
+     */
+    public void setValidationTimeoutSeconds(int validationTimeoutSeconds) {
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+    }
+
+    /**
+     * Get the query used to validate connections, <code>null</code> means <code>Connection.isValid</code> is used.
+     *
+     * @return The validation query.
+     */
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    /**
+     * Set the query used to validate connections, leave it unset to use <code>Connection.isValid</code>.
+     *
+     * @param validationQuery The validation query to set.
+     */
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * Get the number of prepared statements cached per connection.
+     *
+     * @return The statement cache size.
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Set the number of prepared statements cached per connection, 0 disables the cache.
+     *
+     * @param statementCacheSize The statement cache size to set.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+}
@@ -0,0 +1,220 @@
+package com.okta.scim.server.PasswordCapture;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * Elliptic curve hybrid encryption of passwords (ECIES): an ephemeral key agreement with the recipient's X25519 or
+ * P-256 public key, HKDF-SHA256 to derive a one-time AES-256 key and IV from the shared secret, and AES-GCM.
+ * <p>
+ * Decrypting costs one key agreement, a fraction of an RSA private key operation, and a ciphertext is about a hundred
+ * bytes for a typical password instead of the 256 bytes of an RSA-2048 one.
+ * <p>
+ * Ciphertext layout, the header is authenticated as additional data and is the HKDF info:
+ * <pre>
+ * 'O' 'K' 'E' | 3 | algorithm (1) | key id (8) | ephemeral key length (2) | ephemeral public key, X.509 | ciphertext and tag (16)
+ * </pre>
+ * The algorithm is {@link #ALGORITHM_X25519} or {@link #ALGORITHM_EC}. The AES key is never reused, so the IV comes
+ * from the key derivation instead of being stored.
+ *
+ * @author Praveen Atluri
+ */
+final class EciesCipher {
+
+    /**
+     * Version of an ECIES ciphertext, following the envelope versions of {@link EnvelopeCipher}.
+     */
+    static final byte VERSION_ECIES = 3;
+
+    /**
+     * Algorithm tag of an X25519 key agreement.
+     */
+    static final byte ALGORITHM_X25519 = 1;
+
+    /**
+     * Algorithm tag of an ECDH key agreement on a NIST curve, P-256 for generated keys.
+     */
+    static final byte ALGORITHM_EC = 2;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String HMAC = "HmacSHA256";
+    private static final int AES_KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final int VERSION_OFFSET = EnvelopeCipher.MAGIC.length;
+    private static final int ALGORITHM_OFFSET = VERSION_OFFSET + 1;
+    private static final int KEY_ID_OFFSET = ALGORITHM_OFFSET + 1;
+    private static final int EPHEMERAL_LENGTH_OFFSET = KEY_ID_OFFSET + EnvelopeCipher.KEY_ID_LENGTH;
+    private static final int EPHEMERAL_OFFSET = EPHEMERAL_LENGTH_OFFSET + 2;
+
+    /**
+     * Per thread AES-GCM cipher, it is initialised again for every message.
+     */
+    private static final ThreadLocal<Cipher> AES_CIPHERS = new ThreadLocal<Cipher>();
+
+    private EciesCipher() {
+    }
+
+    /**
+     * Tells whether a public or private key is an elliptic curve key this class encrypts with.
+     *
+     * @param algorithm the algorithm of the key
+     * @return true for X25519 and EC keys
+     */
+    static boolean isSupported(String algorithm) {
+        return "XDH".equals(algorithm) || "X25519".equals(algorithm) || "EC".equals(algorithm);
+    }
+
+    /**
+     * Encrypt a password for the holder of the given public key.
+     *
+     * @param plainText the password bytes
+     * @param publicKey the X25519 or EC public key
+     * @param keyId     the id of the key pair, recorded in the header
+     * @return the ECIES ciphertext
+     */
+    static byte[] encrypt(byte[] plainText, PublicKey publicKey, byte[] keyId) throws GeneralSecurityException {
+        byte algorithm = algorithmTag(publicKey.getAlgorithm());
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(algorithm == ALGORITHM_X25519 ? "X25519" : "EC");
+        if (algorithm == ALGORITHM_EC) {
+            keyGen.initialize(((ECKey) publicKey).getParams());
+        }
+        KeyPair ephemeral = keyGen.generateKeyPair();
+        byte[] ephemeralPublic = ephemeral.getPublic().getEncoded();
+
+        byte[] header = ByteBuffer.allocate(EPHEMERAL_OFFSET + ephemeralPublic.length)
+                .put(EnvelopeCipher.MAGIC).put(VERSION_ECIES).put(algorithm).put(keyId)
+                .putShort((short) ephemeralPublic.length).put(ephemeralPublic).array();
+
+        byte[] sealed = seal(Cipher.ENCRYPT_MODE, agree(algorithm, ephemeral.getPrivate(), publicKey), header,
+                plainText, 0, plainText.length);
+        return ByteBuffer.allocate(header.length + sealed.length).put(header).put(sealed).array();
+    }
+
+    /**
+     * Tells whether a stored password is an ECIES ciphertext.
+     *
+     * @param cipherText the stored password
+     * @return true for an ECIES ciphertext
+     */
+    static boolean isEcies(byte[] cipherText) {
+        if (cipherText == null || cipherText.length < EPHEMERAL_OFFSET) {
+            return false;
+        }
+        for (int i = 0; i < EnvelopeCipher.MAGIC.length; i++) {
+            if (cipherText[i] != EnvelopeCipher.MAGIC[i]) {
+                return false;
+            }
+        }
+        byte algorithm = cipherText[ALGORITHM_OFFSET];
+        return cipherText[VERSION_OFFSET] == VERSION_ECIES && (algorithm == ALGORITHM_X25519 || algorithm == ALGORITHM_EC)
+                && cipherText.length >= EPHEMERAL_OFFSET + ephemeralLength(cipherText) + TAG_BITS / 8;
+    }
+
+    /**
+     * Get the id of the key pair an ECIES ciphertext was encrypted for.
+     *
+     * @param cipherText an ECIES ciphertext
+     * @return the key id
+     */
+    static byte[] getKeyId(byte[] cipherText) {
+        return Arrays.copyOfRange(cipherText, KEY_ID_OFFSET, KEY_ID_OFFSET + EnvelopeCipher.KEY_ID_LENGTH);
+    }
+
+    /**
+     * Decrypt an ECIES ciphertext.
+     *
+     * @param cipherText the ECIES ciphertext
+     * @param privateKey the X25519 or EC private key
+     * @return the password bytes
+     */
+    static byte[] decrypt(byte[] cipherText, PrivateKey privateKey) throws GeneralSecurityException {
+        byte algorithm = cipherText[ALGORITHM_OFFSET];
+        if (algorithm != algorithmTag(privateKey.getAlgorithm())) {
+            throw new GeneralSecurityException("The ciphertext was not encrypted for a " + privateKey.getAlgorithm() + " key");
+        }
+        int headerLength = EPHEMERAL_OFFSET + ephemeralLength(cipherText);
+        byte[] ephemeralPublic = Arrays.copyOfRange(cipherText, EPHEMERAL_OFFSET, headerLength);
+        PublicKey ephemeral = KeyFactory.getInstance(algorithm == ALGORITHM_X25519 ? "X25519" : "EC")
+                .generatePublic(new X509EncodedKeySpec(ephemeralPublic));
+        byte[] header = Arrays.copyOf(cipherText, headerLength);
+
+        return seal(Cipher.DECRYPT_MODE, agree(algorithm, privateKey, ephemeral), header,
+                cipherText, headerLength, cipherText.length - headerLength);
+    }
+
+    private static byte algorithmTag(String keyAlgorithm) throws GeneralSecurityException {
+        if ("XDH".equals(keyAlgorithm) || "X25519".equals(keyAlgorithm)) {
+            return ALGORITHM_X25519;
+        }
+        if ("EC".equals(keyAlgorithm)) {
+            return ALGORITHM_EC;
+        }
+        throw new GeneralSecurityException("ECIES needs an X25519 or EC key, not " + keyAlgorithm);
+    }
+
+    private static int ephemeralLength(byte[] cipherText) {
+        return ((cipherText[EPHEMERAL_LENGTH_OFFSET] & 0xff) << 8) | (cipherText[EPHEMERAL_LENGTH_OFFSET + 1] & 0xff);
+    }
+
+    private static byte[] agree(byte algorithm, PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance(algorithm == ALGORITHM_X25519 ? "XDH" : "ECDH");
+        agreement.init(privateKey);
+        agreement.doPhase(publicKey, true);
+        return agreement.generateSecret();
+    }
+
+    /**
+     * Derive the AES key and IV from the shared secret and run AES-GCM over the input.
+     */
+    private static byte[] seal(int mode, byte[] sharedSecret, byte[] header, byte[] input, int offset, int length)
+            throws GeneralSecurityException {
+        byte[] keyAndIv = hkdf(sharedSecret, header, AES_KEY_LENGTH + IV_LENGTH);
+        Cipher cipher = AES_CIPHERS.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            AES_CIPHERS.set(cipher);
+        }
+        cipher.init(mode, new SecretKeySpec(keyAndIv, 0, AES_KEY_LENGTH, "AES"),
+                new GCMParameterSpec(TAG_BITS, keyAndIv, AES_KEY_LENGTH, IV_LENGTH));
+        cipher.updateAAD(header);
+        return cipher.doFinal(input, offset, length);
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869) with an all zero salt.
+     */
+    private static byte[] hkdf(byte[] secret, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(new byte[32], HMAC));
+        byte[] pseudoRandomKey = mac.doFinal(secret);
+
+        mac.init(new SecretKeySpec(pseudoRandomKey, HMAC));
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int copied = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, copied);
+            offset += copied;
+        }
+        return output;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * Key files in the standard encodings: the private key as PKCS#8 and the public key as X.509 SubjectPublicKeyInfo,
+ * either PEM or DER. They are what <code>openssl genpkey</code> and <code>openssl pkey -pubout</code> produce, and
+ * unlike serialized key objects they load without the Java deserializer and can be read by other tools. Generated
+ * and rotated keys are written as PEM.
+ *
+ * @author praven Atluri
+ */
+public class EncodedFileKeyProvider extends FileKeyProvider {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    //the encodings name their algorithm, each key factory only accepts its own
+    private static final String[] KEY_ALGORITHMS = {EncryptionUtil.ALGORITHM, "X25519", "EC"};
+
+    /**
+     * Create a provider of <code>private.pem</code> and <code>public.pem</code> in the default key directory.
+     */
+    public EncodedFileKeyProvider() {
+        super(new File(EncryptionUtil.PRIVATE_KEY_FILE).getParent(), "private.pem", "public.pem");
+    }
+
+    @Override
+    protected PrivateKey readPrivateKey(File keyFile) throws GeneralSecurityException, IOException {
+        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(readDer(keyFile));
+        GeneralSecurityException failure = null;
+        for (String algorithm : KEY_ALGORITHMS) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePrivate(keySpec);
+            } catch (GeneralSecurityException ex) {
+                failure = ex;
+            }
+        }
+        throw new GeneralSecurityException(keyFile + " is not an RSA, X25519 or EC private key", failure);
+    }
+
+    @Override
+    protected PublicKey readPublicKey(File keyFile) throws GeneralSecurityException, IOException {
+        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(readDer(keyFile));
+        GeneralSecurityException failure = null;
+        for (String algorithm : KEY_ALGORITHMS) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePublic(keySpec);
+            } catch (GeneralSecurityException ex) {
+                failure = ex;
+            }
+        }
+        throw new GeneralSecurityException(keyFile + " is not an RSA, X25519 or EC public key", failure);
+    }
+
+    @Override
+    protected byte[] encode(Key key) {
+        //getEncoded is PKCS#8 for private and X.509 for public keys
+        String type = key instanceof PrivateKey ? "PRIVATE KEY" : "PUBLIC KEY";
+        String body = Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(key.getEncoded());
+        return ("-----BEGIN " + type + "-----\n" + body + "\n-----END " + type + "-----\n").getBytes(ASCII);
+    }
+
+    /**
+     * Read a DER key file, or the body of a PEM one.
+     */
+    private static byte[] readDer(File keyFile) throws IOException {
+        byte[] content = Files.readAllBytes(keyFile.toPath());
+        String text = new String(content, ASCII);
+        if (!text.startsWith("-----BEGIN")) {
+            return content;
+        }
+        int bodyStart = text.indexOf('\n') + 1;
+        int bodyEnd = text.indexOf("-----END");
+        if (bodyStart <= 0 || bodyEnd < bodyStart) {
+            throw new IOException(keyFile + " is not a PEM file");
+        }
+        return Base64.getMimeDecoder().decode(text.substring(bodyStart, bodyEnd));
+    }
+}
@@ -1,19 +1,24 @@
 package com.okta.scim.server.PasswordCapture;
 
-        import sun.nio.cs.StandardCharsets;
-
         import java.io.File;
-        import java.io.FileInputStream;
         import java.io.FileNotFoundException;
-        import java.io.FileOutputStream;
         import java.io.IOException;
-        import java.io.ObjectInputStream;
-        import java.io.ObjectOutputStream;
+        import java.nio.charset.Charset;
+        import java.security.GeneralSecurityException;
+        import java.security.Key;
         import java.security.KeyPair;
         import java.security.KeyPairGenerator;
+        import java.security.MessageDigest;
         import java.security.NoSuchAlgorithmException;
         import java.security.PrivateKey;
         import java.security.PublicKey;
+        import java.security.SecureRandom;
+        import java.security.spec.ECGenParameterSpec;
+        import java.util.Arrays;
+        import java.util.Collection;
+        import java.util.IdentityHashMap;
+        import java.util.LinkedHashMap;
+        import java.util.Map;
 
         import javax.crypto.Cipher;
 
@@ -38,6 +43,89 @@ public class EncryptionUtil {
      */
     public static final String PUBLIC_KEY_FILE = "C:/keys/public.key";
 
+    /**
+     * Encryption mode that encrypts every password directly with RSA.
+     */
+    public static final String MODE_RSA = "rsa";
+
+    /**
+     * Encryption mode that encrypts passwords with AES-GCM under an RSA wrapped data key, see {@link EnvelopeCipher}.
+     */
+    public static final String MODE_ENVELOPE = "envelope";
+
+    /**
+     * Key algorithm of RSA key pairs, passwords are encrypted as selected by the encryption mode.
+     */
+    public static final String KEY_ALGORITHM_RSA = "RSA";
+
+    /**
+     * Key algorithm of X25519 key pairs, passwords are ECIES encrypted, see {@link EciesCipher}. Needs Java 11.
+     */
+    public static final String KEY_ALGORITHM_X25519 = "X25519";
+
+    /**
+     * Key algorithm of NIST P-256 key pairs, passwords are ECIES encrypted, see {@link EciesCipher}.
+     */
+    public static final String KEY_ALGORITHM_P256 = "P-256";
+
+    /**
+     * Charset of envelope encrypted passwords.
+     */
+    private static final Charset ENVELOPE_CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Whether new passwords are envelope encrypted. Stored passwords are decrypted in whichever format they are in.
+     */
+    private static volatile boolean envelopeEnabled;
+
+    /**
+     * Algorithm of the key pairs generated from now on. Passwords are encrypted with the scheme of the current key.
+     */
+    private static volatile String keyAlgorithm = KEY_ALGORITHM_RSA;
+
+    /**
+     * How often the key files are checked for changes, in milliseconds.
+     */
+    private static final long KEY_CHECK_INTERVAL_MILLIS = 10 * 1000;
+
+    /**
+     * Number of keys a thread keeps initialised ciphers for, per mode.
+     */
+    private static final int MAX_CACHED_CIPHERS_PER_THREAD = 4;
+
+    /**
+     * Per thread ciphers initialised for encryption, keyed by the key they were initialised with. Only JDK types are
+     * stored in the thread, so a redeployed web application does not leak its class loader through Tomcat's threads.
+     */
+    private static final ThreadLocal<Map<Key, Cipher>> ENCRYPT_CIPHERS = new ThreadLocal<Map<Key, Cipher>>();
+
+    /**
+     * Per thread ciphers initialised for decryption, keyed by the key they were initialised with.
+     */
+    private static final ThreadLocal<Map<Key, Cipher>> DECRYPT_CIPHERS = new ThreadLocal<Map<Key, Cipher>>();
+
+    /**
+     * Where the keys are stored, the legacy serialized key files unless the service configures another provider.
+     */
+    private static volatile KeyProvider keyProvider = new SerializedFileKeyProvider();
+
+    /**
+     * The keys loaded through the key provider, replaced as a whole when they change.
+     */
+    private static volatile KeyHolder keys;
+
+    /**
+     * When the key provider was last checked for changes.
+     */
+    private static volatile long keysCheckedAt;
+
+    /**
+     * Id of the key raw RSA passwords are decrypted with, or null for the current key. Raw RSA ciphertext does not say
+     * which key it was encrypted with, and PKCS#1 padding would let a wrong key "succeed" now and then, so while a key
+     * rotation runs the rows it has not reached yet are decrypted with the key it rotates away from.
+     */
+    private static volatile String rawKeyId;
+
     /**
      * Generate key which contains a pair of private and public key using 1024
      * bytes. Store the set of keys in Prvate.key and Public.key files.
@@ -48,55 +136,44 @@ public class EncryptionUtil {
      */
     public static void generateKey() {
         try {
-            final KeyPairGenerator keyGen = KeyPairGenerator.getInstance(ALGORITHM);
-            keyGen.initialize(2048);
-            final KeyPair key = keyGen.generateKeyPair();
-
-            File privateKeyFile = new File(PRIVATE_KEY_FILE);
-            File publicKeyFile = new File(PUBLIC_KEY_FILE);
-
-            // Create files to store public and private key
-            if (privateKeyFile.getParentFile() != null) {
-                privateKeyFile.getParentFile().mkdirs();
-            }
-            privateKeyFile.createNewFile();
-
-            if (publicKeyFile.getParentFile() != null) {
-                publicKeyFile.getParentFile().mkdirs();
-            }
-            publicKeyFile.createNewFile();
-
-            // Saving the Public key in a file
-            ObjectOutputStream publicKeyOS = new ObjectOutputStream(
-                    new FileOutputStream(publicKeyFile));
-            publicKeyOS.writeObject(key.getPublic());
-            publicKeyOS.close();
-
-            // Saving the Private key in a file
-            ObjectOutputStream privateKeyOS = new ObjectOutputStream(
-                    new FileOutputStream(privateKeyFile));
-            privateKeyOS.writeObject(key.getPrivate());
-            privateKeyOS.close();
+            installKeyPair(newKeyPair());
         } catch (Exception e) {
             e.printStackTrace();
         }
 
     }
 
+    /**
+     * Make sure the key pair exists and load it, letting the key provider generate it if this is the first start.
+     * Called once when the connector starts, so that requests never check for or generate keys.
+     *
+     * @throws GeneralSecurityException if the keys are missing and cannot be generated, or cannot be read
+     * @throws IOException              if the keys cannot be written or read
+     */
+    public static void initializeKeys() throws GeneralSecurityException, IOException {
+        keyProvider.initialize();
+
+        //load the keys now, a broken key file fails the start instead of the first request
+        getKeys();
+    }
+
+    /**
+     * Select where the keys are stored. The keys are loaded again on next use.
+     *
+     * @param provider the key provider
+     */
+    public static synchronized void setKeyProvider(KeyProvider provider) {
+        keyProvider = provider;
+        keys = null;
+    }
+
     /**
      * The method checks if the pair of public and private key has been generated.
      *
      * @return flag indicating if the pair of keys were generated.
      */
     public static boolean areKeysPresent() {
-
-        File privateKey = new File(PRIVATE_KEY_FILE);
-        File publicKey = new File(PUBLIC_KEY_FILE);
-
-        if (privateKey.exists() && publicKey.exists()) {
-            return true;
-        }
-        return false;
+        return keyProvider.areKeysPresent();
     }
 
     /**
@@ -112,11 +189,8 @@ public class EncryptionUtil {
     public static byte[] encrypt(String text, PublicKey key) {
         byte[] cipherText = null;
         try {
-            // get an RSA cipher object and print the provider
-            final Cipher cipher = Cipher.getInstance(ALGORITHM);
             // encrypt the plain text using the public key
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            cipherText = cipher.doFinal(text.getBytes());
+            cipherText = rsaEncrypt(text.getBytes(), key);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -124,33 +198,68 @@ public class EncryptionUtil {
     }
 
     /**
-     * Encrypt the plain text using public key.
+     * Envelope encrypt the plain text, see {@link EnvelopeCipher}.
      *
      * @param text
      *          : original plain text
+     * @param key
+     *          :The public key the data key is wrapped with
      * @return Encrypted text
-     * @throws java.lang.Exception
      */
-    public static byte[] encrypt(String text) {
+    public static byte[] encryptEnvelope(String text, PublicKey key) {
         byte[] cipherText = null;
         try {
-            ObjectInputStream inputStream = null;
-
-            // Encrypt the string using the public key
-            inputStream = new ObjectInputStream(new FileInputStream(PUBLIC_KEY_FILE));
-            final PublicKey publicKey = (PublicKey) inputStream.readObject();
+            cipherText = EnvelopeCipher.encrypt(text.getBytes(ENVELOPE_CHARSET), key, keyId(key));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return cipherText;
+    }
 
-            // get an RSA cipher object and print the provider
-            final Cipher cipher = Cipher.getInstance(ALGORITHM);
-            // encrypt the plain text using the public key
-            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-            cipherText = cipher.doFinal(text.getBytes());
+    /**
+     * ECIES encrypt the plain text, see {@link EciesCipher}.
+     *
+     * @param text
+     *          : original plain text
+     * @param key
+     *          :The X25519 or EC public key
+     * @return Encrypted text
+     */
+    public static byte[] encryptEcies(String text, PublicKey key) {
+        byte[] cipherText = null;
+        try {
+            cipherText = EciesCipher.encrypt(text.getBytes(ENVELOPE_CHARSET), key, keyId(key));
         } catch (Exception e) {
             e.printStackTrace();
         }
         return cipherText;
     }
 
+    /**
+     * Encrypt the plain text using public key.
+     *
+     * @param text
+     *          : original plain text
+     * @return Encrypted text
+     * @throws java.lang.Exception
+     */
+    public static byte[] encrypt(String text) {
+        try {
+            KeyHolder current = getKeys();
+            if (EciesCipher.isSupported(current.publicKey.getAlgorithm())) {
+                return EciesCipher.encrypt(text.getBytes(ENVELOPE_CHARSET), current.publicKey, current.keyId);
+            }
+            if (envelopeEnabled) {
+                return EnvelopeCipher.encrypt(text.getBytes(ENVELOPE_CHARSET), current.publicKey, current.keyId);
+            }
+            // Encrypt the string using the cached public key
+            return encrypt(text, current.publicKey);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     /**
      * Decrypt text using private key.
      *
@@ -162,15 +271,25 @@ public class EncryptionUtil {
      * @throws java.lang.Exception
      */
     public static String decrypt(byte[] text, PrivateKey key) {
+        if (EciesCipher.isEcies(text)) {
+            try {
+                return new String(EciesCipher.decrypt(text, key), ENVELOPE_CHARSET);
+            } catch (GeneralSecurityException ex) {
+                // a raw RSA ciphertext that happens to start like an ECIES one, decrypt it as one below
+            }
+        }
+        if (EnvelopeCipher.isEnvelope(text)) {
+            try {
+                return new String(EnvelopeCipher.decrypt(text, key), ENVELOPE_CHARSET);
+            } catch (GeneralSecurityException ex) {
+                // a raw RSA ciphertext that happens to start like an envelope, decrypt it as one below
+            }
+        }
+
         byte[] dectyptedText = null;
         try {
-            // get an RSA cipher object and print the provider
-            final Cipher cipher = Cipher.getInstance(ALGORITHM);
-
             // decrypt the text using the private key
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            dectyptedText = cipher.doFinal(text);
-
+            dectyptedText = rsaDecrypt(text, key);
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -178,6 +297,68 @@ public class EncryptionUtil {
         return new String(dectyptedText);
     }
 
+    /**
+     * Encrypt bytes with RSA using this thread's cipher for the key.
+     *
+     * @param plainText the bytes to encrypt
+     * @param key       the public key
+     * @return the RSA ciphertext
+     */
+    static byte[] rsaEncrypt(byte[] plainText, PublicKey key) throws GeneralSecurityException {
+        // get this thread's RSA cipher, already initialised with the public key
+        final Cipher cipher = getCipher(ENCRYPT_CIPHERS, Cipher.ENCRYPT_MODE, key);
+        try {
+            return cipher.doFinal(plainText);
+        } catch (GeneralSecurityException e) {
+            ENCRYPT_CIPHERS.get().remove(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypt bytes with RSA using this thread's cipher for the key.
+     *
+     * @param cipherText the RSA ciphertext
+     * @param key        the private key
+     * @return the decrypted bytes
+     */
+    static byte[] rsaDecrypt(byte[] cipherText, PrivateKey key) throws GeneralSecurityException {
+        // get this thread's RSA cipher, already initialised with the private key
+        final Cipher cipher = getCipher(DECRYPT_CIPHERS, Cipher.DECRYPT_MODE, key);
+        try {
+            return cipher.doFinal(cipherText);
+        } catch (GeneralSecurityException ex) {
+            // a failed doFinal may leave the cipher in an undefined state, do not reuse it
+            DECRYPT_CIPHERS.get().remove(key);
+            throw ex;
+        }
+    }
+
+    /**
+     * Select how new passwords are encrypted, {@link #MODE_RSA} or {@link #MODE_ENVELOPE}. Stored passwords are
+     * always decrypted in whichever format they were written.
+     *
+     * @param mode the encryption mode
+     */
+    public static void setMode(String mode) {
+        if (MODE_ENVELOPE.equalsIgnoreCase(mode)) {
+            envelopeEnabled = true;
+        } else if (mode == null || MODE_RSA.equalsIgnoreCase(mode)) {
+            envelopeEnabled = false;
+        } else {
+            throw new IllegalArgumentException("Unknown encryption mode " + mode + ", expected " + MODE_RSA + " or " + MODE_ENVELOPE);
+        }
+    }
+
+    /**
+     * Tells whether new passwords are envelope encrypted.
+     *
+     * @return true in {@link #MODE_ENVELOPE}
+     */
+    static boolean isEnvelopeEnabled() {
+        return envelopeEnabled;
+    }
+
     /**
      * Decrypt text using private key.
      *
@@ -187,25 +368,389 @@ public class EncryptionUtil {
      * @throws java.lang.Exception
      */
     public static String decrypt(byte[] text) {
-        byte[] dectyptedText = null;
         try {
-            ObjectInputStream inputStream = null;
-            // Decrypt the cipher text using the private key.
-            inputStream = new ObjectInputStream(new FileInputStream(PRIVATE_KEY_FILE));
-            final PrivateKey privateKey = (PrivateKey) inputStream.readObject();
+            // Decrypt the cipher text using the cached key it was encrypted with.
+            return decryptStrict(text);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
 
-            // get an RSA cipher object and print the provider
-            final Cipher cipher = Cipher.getInstance(ALGORITHM);
+    /**
+     * Decrypt a stored password with the key it was encrypted with: the key named in an ECIES ciphertext or a version 2
+     * envelope, the current
+     * or a retired key for a version 1 envelope, and the raw key for raw RSA ciphertext, see {@link #setRawKeyId(String)}.
+     *
+     * @param text the stored password
+     * @return plain text
+     * @throws GeneralSecurityException if the password does not decrypt with any loaded key
+     */
+    static String decryptStrict(byte[] text) throws GeneralSecurityException, IOException {
+        KeyHolder current = getKeys();
+        GeneralSecurityException failure = null;
+        if (EciesCipher.isEcies(text)) {
+            PrivateKey key = current.getPrivateKey(toHex(EciesCipher.getKeyId(text)));
+            if (key != null && EciesCipher.isSupported(key.getAlgorithm())) {
+                try {
+                    return new String(EciesCipher.decrypt(text, key), ENVELOPE_CHARSET);
+                } catch (GeneralSecurityException ex) {
+                    // a raw RSA ciphertext that happens to start like an ECIES one, decrypt it as one below
+                    failure = ex;
+                }
+            }
+        }
+        if (EnvelopeCipher.isEnvelope(text)) {
+            try {
+                return new String(decryptEnvelope(text, current), ENVELOPE_CHARSET);
+            } catch (GeneralSecurityException ex) {
+                // a raw RSA ciphertext that happens to start like an envelope, decrypt it as one below
+                failure = ex;
+            }
+        }
 
-            // decrypt the text using the private key
-            cipher.init(Cipher.DECRYPT_MODE, privateKey);
-            dectyptedText = cipher.doFinal(text);
+        PrivateKey rawKey = rawKeyId == null ? null : current.getPrivateKey(rawKeyId);
+        PrivateKey rsaKey = rawKey == null ? current.privateKey : rawKey;
+        if (failure != null && !ALGORITHM.equals(rsaKey.getAlgorithm())) {
+            // there is no RSA key to try, report why the ciphertext did not decrypt
+            throw failure;
+        }
+        return new String(rsaDecrypt(text, rsaKey));
+    }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    private static byte[] decryptEnvelope(byte[] text, KeyHolder current) throws GeneralSecurityException {
+        byte[] keyId = EnvelopeCipher.getKeyId(text);
+        if (keyId != null) {
+            PrivateKey key = current.getPrivateKey(toHex(keyId));
+            if (key == null) {
+                throw new GeneralSecurityException("No private key with id " + toHex(keyId) + " is loaded");
+            }
+            return EnvelopeCipher.decrypt(text, key);
         }
 
-        return new String(dectyptedText);
+        // version 1 does not name its key, the GCM tag tells whether the key was the right one
+        GeneralSecurityException failure = null;
+        for (PrivateKey key : current.getPrivateKeys()) {
+            try {
+                return EnvelopeCipher.decrypt(text, key);
+            } catch (GeneralSecurityException ex) {
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Tells whether a stored password is already encrypted with the current key, so a key rotation can skip it.
+     *
+     * @param text the stored password
+     * @return true when the password does not need to be encrypted again
+     */
+    static boolean isCurrent(byte[] text) throws GeneralSecurityException, IOException {
+        byte[] keyId;
+        if (EciesCipher.isEcies(text)) {
+            keyId = EciesCipher.getKeyId(text);
+        } else if (EnvelopeCipher.isEnvelope(text)) {
+            keyId = EnvelopeCipher.getKeyId(text);
+        } else {
+            return false;
+        }
+        return keyId != null && Arrays.equals(keyId, getKeys().keyId);
+    }
+
+    /**
+     * Tells whether passwords encrypted with a public key record its key id, which a key rotation relies on to tell
+     * the passwords it re-encrypted from the ones it has not reached yet.
+     *
+     * @param publicKey the public key
+     * @return true when new passwords are envelopes or ECIES ciphertexts
+     */
+    static boolean recordsKeyId(PublicKey publicKey) {
+        return envelopeEnabled || EciesCipher.isSupported(publicKey.getAlgorithm());
+    }
+
+    /**
+     * Tells whether a key is of an algorithm passwords can be encrypted with.
+     *
+     * @param key the key
+     * @return true for RSA, X25519 and EC keys
+     */
+    static boolean isSupportedKey(Key key) {
+        return ALGORITHM.equals(key.getAlgorithm()) || EciesCipher.isSupported(key.getAlgorithm());
+    }
+
+    /**
+     * Get the id of a key pair: the first bytes of the SHA-256 digest of its public key.
+     *
+     * @param publicKey the public key of the pair
+     * @return the key id
+     */
+    static byte[] keyId(PublicKey publicKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+            return Arrays.copyOf(digest, EnvelopeCipher.KEY_ID_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Get the id of the current key pair in hex.
+     *
+     * @return the key id
+     */
+    static String getCurrentKeyId() throws GeneralSecurityException, IOException {
+        return getKeys().keyIdHex;
+    }
+
+    /**
+     * Get the current public key.
+     *
+     * @return the public key
+     */
+    static PublicKey getCurrentPublicKey() throws GeneralSecurityException, IOException {
+        return getKeys().publicKey;
+    }
+
+    /**
+     * Select the key raw RSA passwords are decrypted with.
+     *
+     * @param keyId the key id in hex, or null for the current key
+     */
+    static void setRawKeyId(String keyId) {
+        rawKeyId = keyId;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Generate the key pair a key rotation moves to. It is only used once {@link #installKeyPair(KeyPair)} wrote it.
+     *
+     * @return the new key pair
+     */
+    static KeyPair newKeyPair() throws GeneralSecurityException {
+        String algorithm = keyAlgorithm;
+        if (KEY_ALGORITHM_X25519.equals(algorithm)) {
+            return KeyPairGenerator.getInstance(KEY_ALGORITHM_X25519).generateKeyPair();
+        }
+        if (KEY_ALGORITHM_P256.equals(algorithm)) {
+            final KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+            keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+            return keyGen.generateKeyPair();
+        }
+        final KeyPairGenerator keyGen = KeyPairGenerator.getInstance(ALGORITHM);
+        keyGen.initialize(2048);
+        return keyGen.generateKeyPair();
+    }
+
+    /**
+     * Select the algorithm of the key pairs generated from now on, on the first start or by a key rotation:
+     * {@link #KEY_ALGORITHM_RSA}, {@link #KEY_ALGORITHM_X25519} or {@link #KEY_ALGORITHM_P256}. Existing keys are kept.
+     *
+     * @param algorithm the key algorithm
+     */
+    public static void setKeyAlgorithm(String algorithm) {
+        if (algorithm == null || KEY_ALGORITHM_RSA.equalsIgnoreCase(algorithm)) {
+            keyAlgorithm = KEY_ALGORITHM_RSA;
+        } else if (KEY_ALGORITHM_X25519.equalsIgnoreCase(algorithm)) {
+            keyAlgorithm = KEY_ALGORITHM_X25519;
+        } else if (KEY_ALGORITHM_P256.equalsIgnoreCase(algorithm)) {
+            keyAlgorithm = KEY_ALGORITHM_P256;
+        } else {
+            throw new IllegalArgumentException("Unknown key algorithm " + algorithm + ", expected " + KEY_ALGORITHM_RSA
+                    + ", " + KEY_ALGORITHM_X25519 + " or " + KEY_ALGORITHM_P256);
+        }
+    }
+
+    /**
+     * Keep the current key pair as a retired one, so that it stays loaded after it is replaced.
+     *
+     * @return the id of the current key pair in hex
+     */
+    static synchronized String retireCurrentKeyPair() throws GeneralSecurityException, IOException {
+        KeyHolder current = getKeys();
+        keyProvider.retire(current.keyIdHex, new KeyPair(current.publicKey, current.privateKey));
+        return current.keyIdHex;
+    }
+
+    /**
+     * Make a key pair the current one.
+     *
+     * @param keyPair the new key pair
+     */
+    static synchronized void installKeyPair(KeyPair keyPair) throws GeneralSecurityException, IOException {
+        keyProvider.install(keyPair);
+
+        //make the next encrypt or decrypt load the new keys
+        keys = null;
+    }
+
+    static File getKeyDirectory() {
+        return keyProvider.getKeyDirectory();
+    }
+
+    /**
+     * Get this thread's cipher for a key and mode, creating and initialising it on first use. A cipher returns to its
+     * initialised state after every doFinal, so it is reused without another provider lookup or key setup.
+     *
+     * @param ciphers the per thread ciphers for the mode
+     * @param mode    Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param key     the key
+     * @return the initialised cipher
+     */
+    private static Cipher getCipher(ThreadLocal<Map<Key, Cipher>> ciphers, int mode, Key key) throws GeneralSecurityException {
+        Map<Key, Cipher> threadCiphers = ciphers.get();
+        if (threadCiphers == null) {
+            threadCiphers = new IdentityHashMap<Key, Cipher>();
+            ciphers.set(threadCiphers);
+        }
+
+        Cipher cipher = threadCiphers.get(key);
+        if (cipher == null) {
+            if (threadCiphers.size() >= MAX_CACHED_CIPHERS_PER_THREAD) {
+                // only keys that were replaced fall out of use, start over rather than track recency
+                threadCiphers.clear();
+            }
+            cipher = Cipher.getInstance(ALGORITHM);
+            cipher.init(mode, key);
+            threadCiphers.put(key, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Get the keys, loading them on first use and again only after the key provider reports a change. The provider
+     * is checked at most every {@link #KEY_CHECK_INTERVAL_MILLIS} milliseconds, so the hot path never reads the keys.
+     *
+     * @return the loaded keys
+     * @throws GeneralSecurityException if a key cannot be read
+     * @throws IOException              if the key store cannot be read
+     */
+    private static KeyHolder getKeys() throws GeneralSecurityException, IOException {
+        KeyHolder current = keys;
+        long now = System.currentTimeMillis();
+        if (current != null && now - keysCheckedAt < KEY_CHECK_INTERVAL_MILLIS) {
+            return current;
+        }
+
+        synchronized (EncryptionUtil.class) {
+            current = keys;
+            if (current != null && now - keysCheckedAt < KEY_CHECK_INTERVAL_MILLIS) {
+                return current;
+            }
+
+            KeyProvider provider = keyProvider;
+            Object version = provider.getVersion();
+            if (current == null || !current.version.equals(version)) {
+                try {
+                    current = loadKeys(provider, version);
+                    keys = current;
+                } catch (GeneralSecurityException | IOException ex) {
+                    if (current == null) {
+                        throw ex;
+                    }
+                    // keep serving the keys that work, the files may still be half replaced
+                    ex.printStackTrace();
+                }
+            }
+            keysCheckedAt = now;
+            return current;
+        }
+    }
+
+    /**
+     * Load the keys again right away and publish them, called when the key files changed. The keys in use are only
+     * replaced once the new pair passed {@link #validate(KeyPair)}, so in-flight requests never see a broken or half
+     * written key pair.
+     *
+     * @return true when new keys were published, false when the stored keys did not change
+     * @throws GeneralSecurityException if the new keys do not validate, the keys in use are kept
+     * @throws IOException              if the new keys cannot be read, the keys in use are kept
+     */
+    static synchronized boolean reloadKeys() throws GeneralSecurityException, IOException {
+        KeyProvider provider = keyProvider;
+        Object version = provider.getVersion();
+        KeyHolder current = keys;
+        if (current != null && current.version.equals(version)) {
+            return false;
+        }
+        keys = loadKeys(provider, version);
+        keysCheckedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    private static KeyHolder loadKeys(KeyProvider provider, Object version) throws GeneralSecurityException, IOException {
+        KeyPair keyPair = provider.getKeyPair();
+        validate(keyPair);
+        return new KeyHolder(keyPair.getPublic(), keyPair.getPrivate(), provider.getRetiredKeys(), version);
+    }
+
+    /**
+     * Check that the private key decrypts what the public key encrypts, which fails for a pair whose files were
+     * replaced one at a time.
+     *
+     * @param keyPair the key pair to check
+     * @throws GeneralSecurityException if the keys do not belong together
+     */
+    private static void validate(KeyPair keyPair) throws GeneralSecurityException {
+        byte[] probe = new byte[16];
+        new SecureRandom().nextBytes(probe);
+        byte[] decrypted;
+        try {
+            if (EciesCipher.isSupported(keyPair.getPublic().getAlgorithm())) {
+                byte[] keyId = keyId(keyPair.getPublic());
+                decrypted = EciesCipher.decrypt(EciesCipher.encrypt(probe, keyPair.getPublic(), keyId), keyPair.getPrivate());
+            } else {
+                decrypted = rsaDecrypt(rsaEncrypt(probe, keyPair.getPublic()), keyPair.getPrivate());
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new GeneralSecurityException("The public and private key do not belong together", ex);
+        }
+        if (!Arrays.equals(probe, decrypted)) {
+            throw new GeneralSecurityException("The public and private key do not belong together");
+        }
+    }
+
+    /**
+     * The public and private key loaded together with the retired private keys, and the version of the key provider
+     * they came from.
+     */
+    private static final class KeyHolder {
+        private final PublicKey publicKey;
+        private final PrivateKey privateKey;
+        private final byte[] keyId;
+        private final String keyIdHex;
+        //the current private key first, then the retired ones
+        private final Map<String, PrivateKey> privateKeys = new LinkedHashMap<String, PrivateKey>();
+        private final Object version;
+
+        private KeyHolder(PublicKey publicKey, PrivateKey privateKey, Map<String, PrivateKey> retiredKeys, Object version) {
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+            this.keyId = keyId(publicKey);
+            this.keyIdHex = toHex(keyId);
+            this.privateKeys.put(keyIdHex, privateKey);
+            for (Map.Entry<String, PrivateKey> retired : retiredKeys.entrySet()) {
+                if (!privateKeys.containsKey(retired.getKey())) {
+                    privateKeys.put(retired.getKey(), retired.getValue());
+                }
+            }
+            this.version = version;
+        }
+
+        private PrivateKey getPrivateKey(String keyId) {
+            return privateKeys.get(keyId);
+        }
+
+        private Collection<PrivateKey> getPrivateKeys() {
+            return privateKeys.values();
+        }
     }
 
     /**
@@ -223,16 +768,13 @@ public class EncryptionUtil {
             }
 
             final String originalText = "Text to be encrypted ";
-            ObjectInputStream inputStream = null;
 
             // Encrypt the string using the public key
-            inputStream = new ObjectInputStream(new FileInputStream(PUBLIC_KEY_FILE));
-            final PublicKey publicKey = (PublicKey) inputStream.readObject();
+            final PublicKey publicKey = getKeys().publicKey;
             final byte[] cipherText = encrypt(originalText, publicKey);
 
             // Decrypt the cipher text using the private key.
-            inputStream = new ObjectInputStream(new FileInputStream(PRIVATE_KEY_FILE));
-            final PrivateKey privateKey = (PrivateKey) inputStream.readObject();
+            final PrivateKey privateKey = getKeys().privateKey;
             final String plainText = decrypt(cipherText, privateKey);
 
             // Printing the Original, Encrypted and Decrypted Text
@@ -0,0 +1,268 @@
+package com.okta.scim.server.PasswordCapture;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Envelope encryption of passwords: AES-GCM under a data key, with the data key wrapped by the RSA public key.
+ * <p>
+ * One data key is generated and wrapped per public key and reused for many passwords, and unwrapped data keys are kept
+ * in memory, so encrypting and decrypting a password is an AES operation instead of an RSA one. The RSA private key is
+ * only used once per data key.
+ * <p>
+ * Ciphertext layout, the header is authenticated as additional data:
+ * <pre>
+ * version 1: 'O' 'K' 'E' | 1 | wrapped key length (2) | wrapped data key | IV (12) | AES-GCM ciphertext and tag (16)
+ * version 2: 'O' 'K' 'E' | 2 | RSA key id (8) | wrapped key length (2) | wrapped data key | IV (12) | ciphertext and tag
+ * </pre>
+ * New ciphertexts are version 2, the key id tells which RSA key pair wrapped the data key so that passwords written
+ * before a key rotation still decrypt. Rows written before envelope mode was turned on hold raw RSA ciphertext, which
+ * is never longer than the RSA modulus, so {@link #isEnvelope(byte[])} can tell them apart.
+ *
+ * @author Praveen Atluri
+ */
+final class EnvelopeCipher {
+
+    /**
+     * Marks an envelope ciphertext.
+     */
+    static final byte[] MAGIC = {'O', 'K', 'E'};
+
+    /**
+     * Version of an AES-GCM envelope with an RSA wrapped data key.
+     */
+    static final byte VERSION_AES_GCM = 1;
+
+    /**
+     * Version of an AES-GCM envelope that also names the RSA key pair that wrapped the data key.
+     */
+    static final byte VERSION_AES_GCM_KEY_ID = 2;
+
+    /**
+     * Length of an RSA key id, see {@link EncryptionUtil#keyId(PublicKey)}.
+     */
+    static final int KEY_ID_LENGTH = 8;
+
+    private static final String DATA_KEY_ALGORITHM = "AES";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int DATA_KEY_BITS = 256;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final int VERSION_OFFSET = MAGIC.length;
+    private static final int KEY_ID_OFFSET = VERSION_OFFSET + 1;
+
+    /**
+     * Random 96 bit IVs stay safe for 2^32 messages per key, a fresh data key is generated well before that.
+     */
+    private static final long MAX_DATA_KEY_USES = 1L << 30;
+
+    /**
+     * Upper bound of unwrapped data keys kept in memory.
+     */
+    private static final int MAX_UNWRAPPED_KEYS = 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Per thread AES-GCM cipher, it is initialised again for every message with a fresh IV.
+     */
+    private static final ThreadLocal<Cipher> AES_CIPHERS = new ThreadLocal<Cipher>();
+
+    /**
+     * The data key new passwords are encrypted with.
+     */
+    private static volatile DataKey activeKey;
+
+    /**
+     * Unwrapped data keys, keyed by their wrapped form.
+     */
+    private static final ConcurrentMap<ByteBuffer, SecretKey> UNWRAPPED_KEYS = new ConcurrentHashMap<ByteBuffer, SecretKey>();
+
+    private EnvelopeCipher() {
+    }
+
+    /**
+     * Encrypt a password under the data key of the given public key.
+     *
+     * @param plainText the password bytes
+     * @param publicKey the RSA public key the data key is wrapped with
+     * @param keyId     the id of the RSA key pair, recorded in the header
+     * @return the envelope ciphertext
+     */
+    static byte[] encrypt(byte[] plainText, PublicKey publicKey, byte[] keyId) throws GeneralSecurityException {
+        DataKey dataKey = getDataKey(publicKey, keyId);
+
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+
+        Cipher cipher = getAesCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey.key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(dataKey.header);
+        byte[] sealed = cipher.doFinal(plainText);
+
+        return ByteBuffer.allocate(dataKey.header.length + IV_LENGTH + sealed.length)
+                .put(dataKey.header).put(iv).put(sealed).array();
+    }
+
+    /**
+     * Tells whether a stored password is an envelope ciphertext rather than a raw RSA one.
+     *
+     * @param cipherText the stored password
+     * @return true for an envelope ciphertext
+     */
+    static boolean isEnvelope(byte[] cipherText) {
+        if (cipherText == null || cipherText.length <= KEY_ID_OFFSET) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (cipherText[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        byte version = cipherText[VERSION_OFFSET];
+        if (version != VERSION_AES_GCM && version != VERSION_AES_GCM_KEY_ID) {
+            return false;
+        }
+        int lengthOffset = wrappedKeyLengthOffset(version);
+        if (cipherText.length < lengthOffset + 2) {
+            return false;
+        }
+        return cipherText.length >= lengthOffset + 2 + wrappedKeyLength(cipherText, lengthOffset) + IV_LENGTH + TAG_BITS / 8;
+    }
+
+    /**
+     * Get the id of the RSA key pair that wrapped the data key of an envelope ciphertext.
+     *
+     * @param cipherText an envelope ciphertext
+     * @return the key id, or null for a version 1 ciphertext, which does not record it
+     */
+    static byte[] getKeyId(byte[] cipherText) {
+        if (cipherText[VERSION_OFFSET] != VERSION_AES_GCM_KEY_ID) {
+            return null;
+        }
+        byte[] keyId = new byte[KEY_ID_LENGTH];
+        System.arraycopy(cipherText, KEY_ID_OFFSET, keyId, 0, KEY_ID_LENGTH);
+        return keyId;
+    }
+
+    /**
+     * Decrypt an envelope ciphertext.
+     *
+     * @param cipherText the envelope ciphertext
+     * @param privateKey the RSA private key the data key was wrapped with
+     * @return the password bytes
+     */
+    static byte[] decrypt(byte[] cipherText, PrivateKey privateKey) throws GeneralSecurityException {
+        int lengthOffset = wrappedKeyLengthOffset(cipherText[VERSION_OFFSET]);
+        int wrappedOffset = lengthOffset + 2;
+        int wrappedLength = wrappedKeyLength(cipherText, lengthOffset);
+        int headerLength = wrappedOffset + wrappedLength;
+
+        ByteBuffer wrapped = ByteBuffer.wrap(cipherText, wrappedOffset, wrappedLength).slice();
+        SecretKey key = UNWRAPPED_KEYS.get(wrapped);
+        if (key != null) {
+            return open(cipherText, headerLength, key);
+        }
+
+        byte[] wrappedKey = new byte[wrappedLength];
+        System.arraycopy(cipherText, wrappedOffset, wrappedKey, 0, wrappedLength);
+        byte[] encodedKey = EncryptionUtil.rsaDecrypt(wrappedKey, privateKey);
+        if (encodedKey.length != DATA_KEY_BITS / 8) {
+            throw new GeneralSecurityException("The wrapped data key does not unwrap with this private key");
+        }
+        key = new SecretKeySpec(encodedKey, DATA_KEY_ALGORITHM);
+        byte[] plainText = open(cipherText, headerLength, key);
+
+        // only cached once the tag verified, a key unwrapped with the wrong private key must not stick
+        cacheUnwrapped(wrappedKey, key);
+        return plainText;
+    }
+
+    private static byte[] open(byte[] cipherText, int headerLength, SecretKey key) throws GeneralSecurityException {
+        Cipher cipher = getAesCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, cipherText, headerLength, IV_LENGTH));
+        cipher.updateAAD(cipherText, 0, headerLength);
+        return cipher.doFinal(cipherText, headerLength + IV_LENGTH, cipherText.length - headerLength - IV_LENGTH);
+    }
+
+    private static int wrappedKeyLengthOffset(byte version) {
+        return version == VERSION_AES_GCM_KEY_ID ? KEY_ID_OFFSET + KEY_ID_LENGTH : KEY_ID_OFFSET;
+    }
+
+    private static int wrappedKeyLength(byte[] cipherText, int lengthOffset) {
+        return ((cipherText[lengthOffset] & 0xff) << 8) | (cipherText[lengthOffset + 1] & 0xff);
+    }
+
+    /**
+     * Get the active data key, generating and wrapping a new one when the public key changed or the current one has
+     * encrypted its share of passwords.
+     */
+    private static DataKey getDataKey(PublicKey publicKey, byte[] keyId) throws GeneralSecurityException {
+        DataKey current = activeKey;
+        if (current != null && current.publicKey == publicKey && current.uses.incrementAndGet() <= MAX_DATA_KEY_USES) {
+            return current;
+        }
+
+        synchronized (EnvelopeCipher.class) {
+            current = activeKey;
+            if (current != null && current.publicKey == publicKey && current.uses.get() <= MAX_DATA_KEY_USES) {
+                return current;
+            }
+
+            KeyGenerator keyGen = KeyGenerator.getInstance(DATA_KEY_ALGORITHM);
+            keyGen.init(DATA_KEY_BITS, RANDOM);
+            SecretKey key = keyGen.generateKey();
+            byte[] wrappedKey = EncryptionUtil.rsaEncrypt(key.getEncoded(), publicKey);
+
+            current = new DataKey(publicKey, keyId, key, wrappedKey);
+            cacheUnwrapped(wrappedKey, key);
+            activeKey = current;
+            return current;
+        }
+    }
+
+    private static void cacheUnwrapped(byte[] wrappedKey, SecretKey key) {
+        if (UNWRAPPED_KEYS.size() >= MAX_UNWRAPPED_KEYS) {
+            // data keys only pile up across key rotations, start over rather than track recency
+            UNWRAPPED_KEYS.clear();
+        }
+        UNWRAPPED_KEYS.put(ByteBuffer.wrap(wrappedKey), key);
+    }
+
+    private static Cipher getAesCipher() throws GeneralSecurityException {
+        Cipher cipher = AES_CIPHERS.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            AES_CIPHERS.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * A data key with the envelope header that carries its wrapped form.
+     */
+    private static final class DataKey {
+        private final PublicKey publicKey;
+        private final SecretKey key;
+        private final byte[] header;
+        private final AtomicLong uses = new AtomicLong();
+
+        private DataKey(PublicKey publicKey, byte[] keyId, SecretKey key, byte[] wrappedKey) {
+            this.publicKey = publicKey;
+            this.key = key;
+            this.header = ByteBuffer.allocate(KEY_ID_OFFSET + KEY_ID_LENGTH + 2 + wrappedKey.length)
+                    .put(MAGIC).put(VERSION_AES_GCM_KEY_ID).put(keyId).putShort((short) wrappedKey.length).put(wrappedKey).array();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Base class of the providers that keep each key in a file of its own in a key directory.
+ * <p>
+ * Retired keys are kept next to the current ones, their file names carry the key id. Every file is written to a temp
+ * file and moved into place atomically, and the private key is written before the public key, so a complete public key
+ * file means the pair is complete. Generating the first pair holds a lock on a file in the key directory, so that
+ * connectors sharing the directory never both generate a pair.
+ *
+ * @author praven Atluri
+ */
+public abstract class FileKeyProvider implements KeyProvider {
+
+    private static final String LOCK_FILE = "keys.lock";
+
+    //Key file configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private String keyDirectory;
+    private String privateKeyFileName;
+    private String publicKeyFileName;
+
+    /**
+     * Create a provider with the given defaults.
+     *
+     * @param keyDirectory       The key directory.
+     * @param privateKeyFileName The name of the private key file.
+     * @param publicKeyFileName  The name of the public key file.
+     */
+    protected FileKeyProvider(String keyDirectory, String privateKeyFileName, String publicKeyFileName) {
+        this.keyDirectory = keyDirectory;
+        this.privateKeyFileName = privateKeyFileName;
+        this.publicKeyFileName = publicKeyFileName;
+    }
+
+    /**
+     * Read a private key file.
+     *
+     * @param keyFile The key file.
+     * @return The private key.
+     */
+    protected abstract PrivateKey readPrivateKey(File keyFile) throws GeneralSecurityException, IOException;
+
+    /**
+     * Read a public key file.
+     *
+     * @param keyFile The key file.
+     * @return The public key.
+     */
+    protected abstract PublicKey readPublicKey(File keyFile) throws GeneralSecurityException, IOException;
+
+    /**
+     * Get the content of a key file.
+     *
+     * @param key The key.
+     * @return The file content.
+     */
+    protected abstract byte[] encode(Key key) throws IOException;
+
+    @Override
+    public boolean areKeysPresent() {
+        return getPrivateKeyFile().exists() && getPublicKeyFile().exists();
+    }
+
+    @Override
+    public void initialize() throws GeneralSecurityException, IOException {
+        if (areKeysPresent()) {
+            return;
+        }
+        synchronized (FileKeyProvider.class) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(getKeyDirectory(), LOCK_FILE), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    //another connector may have generated the pair while this one waited for the lock
+                    if (!areKeysPresent()) {
+                        install(EncryptionUtil.newKeyPair());
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    @Override
+    public Object getVersion() {
+        StringBuilder version = new StringBuilder();
+        version.append(getPublicKeyFile().lastModified()).append('/').append(getPrivateKeyFile().lastModified());
+        //retiring a key adds files, other files in the directory such as the rotation progress do not count
+        File[] files = getKeyDirectory().listFiles();
+        if (files != null) {
+            String prefix = retiredPrefix(privateKeyFileName);
+            for (File file : files) {
+                if (file.getName().startsWith(prefix)) {
+                    version.append('/').append(file.getName()).append('@').append(file.lastModified());
+                }
+            }
+        }
+        return version.toString();
+    }
+
+    @Override
+    public KeyPair getKeyPair() throws GeneralSecurityException, IOException {
+        return new KeyPair(readPublicKey(getPublicKeyFile()), readPrivateKey(getPrivateKeyFile()));
+    }
+
+    @Override
+    public Map<String, PrivateKey> getRetiredKeys() throws GeneralSecurityException, IOException {
+        Map<String, PrivateKey> retiredKeys = new LinkedHashMap<String, PrivateKey>();
+        File[] files = getKeyDirectory().listFiles();
+        if (files == null) {
+            return retiredKeys;
+        }
+        String prefix = retiredPrefix(privateKeyFileName);
+        String suffix = suffix(privateKeyFileName);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(suffix)
+                    && name.length() == prefix.length() + 2 * EnvelopeCipher.KEY_ID_LENGTH + suffix.length()) {
+                retiredKeys.put(name.substring(prefix.length(), name.length() - suffix.length()), readPrivateKey(file));
+            }
+        }
+        return retiredKeys;
+    }
+
+    @Override
+    public void retire(String keyId, KeyPair keyPair) throws IOException {
+        writeKey(new File(getKeyDirectory(), retiredName(publicKeyFileName, keyId)), keyPair.getPublic());
+        writeKey(new File(getKeyDirectory(), retiredName(privateKeyFileName, keyId)), keyPair.getPrivate());
+    }
+
+    @Override
+    public void install(KeyPair keyPair) throws IOException {
+        //the public key last, areKeysPresent only sees a pair once both files are complete
+        writeKey(getPrivateKeyFile(), keyPair.getPrivate());
+        writeKey(getPublicKeyFile(), keyPair.getPublic());
+    }
+
+    @Override
+    public File getKeyDirectory() {
+        File directory = new File(keyDirectory).getAbsoluteFile();
+        directory.mkdirs();
+        return directory;
+    }
+
+    private File getPrivateKeyFile() {
+        return new File(getKeyDirectory(), privateKeyFileName);
+    }
+
+    private File getPublicKeyFile() {
+        return new File(getKeyDirectory(), publicKeyFileName);
+    }
+
+    private void writeKey(File keyFile, Key key) throws IOException {
+        File tempFile = new File(keyFile.getParentFile(), keyFile.getName() + ".tmp");
+        Files.write(tempFile.toPath(), encode(key));
+        Files.move(tempFile.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * private.key is retired as private-&lt;key id&gt;.key
+     */
+    private static String retiredName(String fileName, String keyId) {
+        return retiredPrefix(fileName) + keyId + suffix(fileName);
+    }
+
+    private static String retiredPrefix(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot < 0 ? fileName : fileName.substring(0, dot)) + "-";
+    }
+
+    private static String suffix(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot);
+    }
+
+    /**
+     * Set the directory of the key files.
+     *
+     * @param keyDirectory The key directory to set.
+     */
+    public void setKeyDirectory(String keyDirectory) {
+        this.keyDirectory = keyDirectory;
+    }
+
+    /**
+     * Set the name of the private key file in the key directory.
+     *
+     * @param privateKeyFileName The file name to set.
+     */
+    public void setPrivateKeyFileName(String privateKeyFileName) {
+        this.privateKeyFileName = privateKeyFileName;
+    }
+
+    /**
+     * Set the name of the public key file in the key directory.
+     *
+     * @param publicKeyFileName The file name to set.
+     */
+    public void setPublicKeyFileName(String publicKeyFileName) {
+        this.publicKeyFileName = publicKeyFileName;
+    }
+}
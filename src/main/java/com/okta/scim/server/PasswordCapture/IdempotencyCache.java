@@ -0,0 +1,335 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short lived idempotency cache for the SCIM calls the OPP agent replays.
+ * <p>
+ * When the database is slow the agent times out and sends the same POST or PUT again. A call is keyed by its
+ * operation, the immutable id of the user and the pushed attributes. A replay of a call that committed within
+ * <code>ttlMillis</code> returns right away without touching the database, and a replay that arrives while the first
+ * call is still running waits for it instead of running the same transaction a second time.
+ * <p>
+ * Only the outcome is kept, never the pushed attributes: the key is an HMAC under a secret generated when the cache is
+ * created, so it cannot be matched against guessed passwords. Failed calls are not remembered, a replay of a failed
+ * call runs again, and so do the replays that were waiting for it. A different call for the same user forgets the
+ * earlier ones, also the ones still running, so a replay can never write back an older push over a newer one. The
+ * replays already waiting for a forgotten call still get its outcome, later replays miss it.
+ *
+ * @author praven Atluri
+ */
+public class IdempotencyCache {
+
+    private static final String HMAC = "HmacSHA256";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    //Cache configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private long ttlMillis = 30 * 1000;
+    private int maxEntries = 10000;
+    private long waitTimeoutMillis = 30 * 1000;
+
+    private final SecretKeySpec secret;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    //insertion ordered, calls complete roughly in the order they started so the oldest entries expire first
+    private final LinkedHashMap<String, Call> calls = new LinkedHashMap<String, Call>();
+    //the key of the latest call of each user that has calls in the cache
+    private final Map<String, String> latestKeys = new HashMap<String, String>();
+
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong replays = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    //test hook, run by a replay that holds the running call and is about to wait for it
+    private volatile Runnable waitListener;
+
+    /**
+     * The database work of a SCIM call.
+     */
+    public interface Operation {
+        void run() throws OnPremUserManagementException;
+    }
+
+    /**
+     * Create a cache with a new random key secret.
+     */
+    public IdempotencyCache() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        secret = new SecretKeySpec(bytes, HMAC);
+    }
+
+    /**
+     * Get the key of a call.
+     *
+     * @param operation The SCIM operation.
+     * @param userId    The immutable id of the user.
+     * @param payload   The pushed attributes, null for attributes that were not pushed.
+     * @return The key.
+     */
+    public String key(String operation, String userId, Object... payload) {
+        try {
+            Mac mac = macs.get();
+            if (mac == null) {
+                mac = Mac.getInstance(HMAC);
+                mac.init(secret);
+                macs.set(mac);
+            }
+            update(mac, operation);
+            update(mac, userId);
+            for (Object value : payload) {
+                update(mac, value == null ? null : value.toString());
+            }
+            return EncryptionUtil.toHex(mac.doFinal());
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Unable to compute the idempotency key", ex);
+        }
+    }
+
+    /**
+     * Length prefixed, so that no two different payloads feed the same bytes into the MAC.
+     */
+    private static void update(Mac mac, String value) {
+        if (value == null) {
+            mac.update(ByteBuffer.allocate(4).putInt(-1).array());
+            return;
+        }
+        byte[] bytes = value.getBytes(CHARSET);
+        mac.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        mac.update(bytes);
+    }
+
+    /**
+     * Run a call unless the same call committed within <code>ttlMillis</code>, waiting for it when it is running.
+     *
+     * @param userId    The immutable id of the user.
+     * @param key       The key of the call, see {@link #key(String, String, Object...)}.
+     * @param operation The database work of the call.
+     * @throws OnPremUserManagementException if the call failed, or the call it waited for did not finish in time.
+     */
+    public void execute(String userId, String key, Operation operation) throws OnPremUserManagementException {
+        while (true) {
+            Call call;
+            boolean owner = false;
+            synchronized (calls) {
+                expire();
+                call = calls.get(key);
+                if (call == null) {
+                    call = new Call(userId);
+                    calls.put(key, call);
+                    owner = true;
+                    forgetEarlierCalls(userId, key);
+                }
+            }
+
+            if (owner) {
+                run(key, call, operation);
+                return;
+            }
+
+            if (!call.isDone()) {
+                waits.incrementAndGet();
+                Runnable listener = waitListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+            try {
+                if (!call.done.await(waitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new OnPremUserManagementException("REQUEST_IN_PROGRESS_TIMEOUT",
+                            "Timed out waiting for the same request that is still in progress");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new OnPremUserManagementException("REQUEST_IN_PROGRESS_TIMEOUT", "Interrupted while waiting for the same request", ex);
+            }
+            if (call.succeeded) {
+                replays.incrementAndGet();
+                return;
+            }
+            if (call.superseded) {
+                //running it again would write the older push over the newer call
+                throw new OnPremUserManagementException("REQUEST_SUPERSEDED",
+                        "The same request failed and a newer request for user " + userId + " has started since");
+            }
+            //the call this one waited for failed, run it again
+        }
+    }
+
+    /**
+     * Drop the calls of a user that a new, different call is about to supersede. A running call is only dropped from
+     * the lookups, it still completes and answers the replays already waiting for it.
+     */
+    private void forgetEarlierCalls(String userId, String key) {
+        String previous = latestKeys.put(userId, key);
+        if (previous != null && !previous.equals(key)) {
+            Call call = calls.remove(previous);
+            if (call != null) {
+                call.superseded = true;
+            }
+        }
+    }
+
+    private void run(String key, Call call, Operation operation) {
+        boolean succeeded = false;
+        try {
+            operation.run();
+            succeeded = true;
+            executions.incrementAndGet();
+        } finally {
+            synchronized (calls) {
+                if (succeeded) {
+                    call.completedAt = System.currentTimeMillis();
+                } else if (calls.get(key) == call) {
+                    remove(key, call);
+                }
+            }
+            call.succeeded = succeeded;
+            call.done.countDown();
+        }
+    }
+
+    /**
+     * Drop the completed calls older than <code>ttlMillis</code>, and the oldest completed ones above
+     * <code>maxEntries</code>. Calls still running are never dropped.
+     */
+    private void expire() {
+        long expiredBefore = System.currentTimeMillis() - ttlMillis;
+        int excess = calls.size() - maxEntries;
+        Iterator<Map.Entry<String, Call>> it = calls.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Call> entry = it.next();
+            Call call = entry.getValue();
+            if (!call.isDone()) {
+                continue;
+            }
+            if (call.completedAt >= expiredBefore && excess <= 0) {
+                break;
+            }
+            it.remove();
+            if (entry.getKey().equals(latestKeys.get(call.userId))) {
+                latestKeys.remove(call.userId);
+            }
+            excess--;
+        }
+    }
+
+    private void remove(String key, Call call) {
+        calls.remove(key);
+        if (key.equals(latestKeys.get(call.userId))) {
+            latestKeys.remove(call.userId);
+        }
+    }
+
+    /**
+     * A call that is running or committed.
+     */
+    private static final class Call {
+        private final String userId;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean succeeded;
+        //dropped from the lookups by a newer call of the same user
+        private volatile boolean superseded;
+        private long completedAt;
+
+        private Call(String userId) {
+            this.userId = userId;
+        }
+
+        private boolean isDone() {
+            return done.getCount() == 0;
+        }
+    }
+
+    /**
+     * Get the number of calls that ran.
+     *
+     * @return The execution count.
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * Get the number of replays answered with the outcome of an earlier or concurrent call.
+     *
+     * @return The replay count.
+     */
+    public long getReplays() {
+        return replays.get();
+    }
+
+    /**
+     * Get the number of replays that arrived while the same call was still running and waited for it.
+     *
+     * @return The wait count.
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * Get the number of remembered calls.
+     *
+     * @return The number of entries.
+     */
+    public int getSize() {
+        synchronized (calls) {
+            return calls.size();
+        }
+    }
+
+    /**
+     * Set a listener that a replay runs once it holds the running call it waits for. From then on its outcome only
+     * depends on that call, whatever the cache does with its entry.
+     *
+     * @param waitListener The listener to set, null for none.
+     */
+    void setWaitListener(Runnable waitListener) {
+        this.waitListener = waitListener;
+    }
+
+    /**
+     * Set how long a committed call answers its replays.
+     *
+     * @param ttlMillis The time to live in milliseconds to set.
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Set the maximum number of remembered calls.
+     *
+     * @param maxEntries The maximum number of entries to set.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Set how long a replay waits for the same call that is still running.
+     *
+     * @param waitTimeoutMillis The timeout in milliseconds to set.
+     */
+    public void setWaitTimeoutMillis(long waitTimeoutMillis) {
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.Map;
+
+/**
+ * Where the RSA key pair that encrypts the passwords is stored.
+ * <p>
+ * {@link EncryptionUtil} loads the keys through the provider once and keeps the key handles. It only asks the provider
+ * again when {@link #getVersion()} changed, which it checks every few seconds, so a provider does not need a cache of
+ * its own. The provider is chosen with the <code>keyProvider</code> property of the service in the Spring
+ * dispatcher-servlet.xml file, the legacy serialized key files are used when it is not set.
+ * <p>
+ * Providers that cannot create keys, such as keystores and hardware tokens, expect the key pair to be provisioned with
+ * their own tools and throw {@link UnsupportedOperationException} from {@link #install(KeyPair)}.
+ *
+ * @author praven Atluri
+ */
+public interface KeyProvider {
+
+    /**
+     * Tells whether the current key pair exists.
+     *
+     * @return true when the keys can be loaded.
+     */
+    boolean areKeysPresent();
+
+    /**
+     * Make sure the current key pair exists, generating it if the provider can. Called once when the connector starts.
+     *
+     * @throws GeneralSecurityException if the keys are missing and cannot be generated.
+     * @throws IOException              if the key store cannot be written.
+     */
+    void initialize() throws GeneralSecurityException, IOException;
+
+    /**
+     * Get a cheap token that changes whenever the stored keys change.
+     *
+     * @return The version of the stored keys.
+     */
+    Object getVersion();
+
+    /**
+     * Load the current key pair.
+     *
+     * @return The current key pair.
+     * @throws GeneralSecurityException if the keys cannot be read.
+     * @throws IOException              if the key store cannot be read.
+     */
+    KeyPair getKeyPair() throws GeneralSecurityException, IOException;
+
+    /**
+     * Load the private keys of the retired key pairs, the passwords encrypted before a key rotation decrypt with them.
+     *
+     * @return The retired private keys, keyed by key id in hex, see {@link EncryptionUtil#keyId(java.security.PublicKey)}.
+     * @throws GeneralSecurityException if the keys cannot be read.
+     * @throws IOException              if the key store cannot be read.
+     */
+    Map<String, PrivateKey> getRetiredKeys() throws GeneralSecurityException, IOException;
+
+    /**
+     * Keep a key pair as a retired one, before it is replaced by {@link #install(KeyPair)}.
+     *
+     * @param keyId   The key id in hex.
+     * @param keyPair The key pair to retire.
+     * @throws IOException if the key store cannot be written.
+     */
+    void retire(String keyId, KeyPair keyPair) throws GeneralSecurityException, IOException;
+
+    /**
+     * Make a key pair the current one. A concurrent reader must see either the old or the new key, never a partly
+     * written one.
+     *
+     * @param keyPair The new key pair.
+     * @throws IOException if the key store cannot be written.
+     */
+    void install(KeyPair keyPair) throws GeneralSecurityException, IOException;
+
+    /**
+     * Get the directory for files kept alongside the keys, such as the progress of a key rotation.
+     *
+     * @return The directory.
+     */
+    File getKeyDirectory();
+}
@@ -0,0 +1,532 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rotates the RSA key pair the passwords are encrypted with, and re-encrypts the stored passwords in the background.
+ * <p>
+ * {@link #rotateKeys()} retires the current key pair, installs a new one and returns right away. From then on new
+ * passwords are encrypted with the new key, and stored passwords keep decrypting with the key named in their envelope
+ * header. A worker thread walks <code>okta_users</code> in userid order, <code>chunkSize</code> rows at a time, decrypts
+ * and encrypts each chunk on a fork-join pool of <code>parallelism</code> threads and writes it back in one batch. It
+ * never does more than <code>rowsPerSecond</code>, so live SCIM calls keep their connections and their latency.
+ * <p>
+ * A row is only written back if its password did not change since the chunk was read, so a password pushed by Okta
+ * during the rotation is never overwritten. The last userid of every committed chunk is saved in
+ * <code>rotation.progress</code> next to the key files, and a rotation that was stopped resumes from there when the
+ * connector starts again.
+ * <p>
+ * Rotation needs <code>encryptionMode</code> envelope or an elliptic curve key to rotate to: raw RSA ciphertext does not
+ * record its key, so the rows the worker has not reached yet are decrypted with the retired key until the rotation
+ * completes. Setting the <code>keyAlgorithm</code> of the service before a rotation moves the passwords to another key
+ * algorithm, from RSA to X25519 for example.
+ *
+ * @author praven Atluri
+ */
+public class KeyRotationJob {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyRotationJob.class);
+
+    /**
+     * Name of the progress file in the key directory.
+     */
+    static final String PROGRESS_FILE = "rotation.progress";
+
+    //rows a fork-join task re-encrypts itself instead of splitting further
+    private static final int SPLIT_THRESHOLD = 32;
+
+    private static final String UPDATE_PASSWORD_SQL = "UPDATE okta_users SET password = ? WHERE userid = ? AND password = ?";
+
+    //Rotation configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private int chunkSize = 500;
+    private int rowsPerSecond = 1000;
+    private int parallelism = 2;
+
+    private DataSource dataSource;
+    private SqlDialect dialect;
+    private UserCache userCache;
+    private Thread worker;
+    private volatile boolean running;
+    private volatile String lastUserId;
+
+    private final AtomicLong rotatedRows = new AtomicLong();
+    private final AtomicLong skippedRows = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong failedRows = new AtomicLong();
+
+    /**
+     * Enables rotation and resumes a rotation that was stopped before it completed.
+     *
+     * @param dataSource The data source the passwords are read from and written to.
+     * @param dialect    The dialect of the database.
+     * @param userCache  The cache to invalidate re-encrypted rows in, may be null.
+     */
+    public synchronized void start(DataSource dataSource, SqlDialect dialect, UserCache userCache)
+            throws GeneralSecurityException, IOException {
+        this.dataSource = dataSource;
+        this.dialect = dialect;
+        this.userCache = userCache;
+        running = true;
+
+        Properties progress = loadProgress();
+        if (progress == null) {
+            return;
+        }
+
+        String from = progress.getProperty("from");
+        String to = progress.getProperty("to");
+        String current = EncryptionUtil.getCurrentKeyId();
+        if (!current.equals(to)) {
+            //the new key pair was never installed, nothing has been encrypted with it
+            LOGGER.warn("Discarding the key rotation from " + from + " to " + to + ", the current key is " + current);
+            getProgressFile().delete();
+            return;
+        }
+
+        //rows the stopped rotation did not reach are still raw RSA ciphertext under the retired key
+        EncryptionUtil.setRawKeyId(from);
+        if (!EncryptionUtil.recordsKeyId(EncryptionUtil.getCurrentPublicKey())) {
+            LOGGER.error("Not resuming the key rotation from " + from + " to " + to + ", it needs encryptionMode envelope or an EC key");
+            return;
+        }
+        LOGGER.info("Resuming the key rotation from " + from + " to " + to + " after user " + progress.getProperty("lastUserId"));
+        startWorker(progress);
+    }
+
+    /**
+     * Stops the worker after the chunk it is writing. The rotation resumes on the next start.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(30000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+        }
+    }
+
+    /**
+     * Retires the current key pair, installs a new one and starts re-encrypting the stored passwords. A rotation that
+     * was stopped is resumed instead.
+     *
+     * @return A description of the started rotation.
+     */
+    public synchronized String rotateKeys() throws GeneralSecurityException, IOException {
+        if (!running) {
+            throw new IllegalStateException("Key rotation is not started");
+        }
+        if (worker != null && worker.isAlive()) {
+            return "A key rotation is already running, it is at user " + lastUserId;
+        }
+
+        Properties progress = loadProgress();
+        if (progress == null) {
+            KeyPair next = EncryptionUtil.newKeyPair();
+            if (!EncryptionUtil.recordsKeyId(next.getPublic())) {
+                throw new IllegalStateException("Rotating to an RSA key needs encryptionMode envelope, raw RSA ciphertext does not record its key");
+            }
+            String from = EncryptionUtil.retireCurrentKeyPair();
+            String to = EncryptionUtil.toHex(EncryptionUtil.keyId(next.getPublic()));
+
+            //saved before the new key is installed, so that a crash in between is detected on the next start
+            progress = new Properties();
+            progress.setProperty("from", from);
+            progress.setProperty("to", to);
+            progress.setProperty("lastUserId", "");
+            saveProgress(progress);
+
+            EncryptionUtil.setRawKeyId(from);
+            EncryptionUtil.installKeyPair(next);
+            LOGGER.info("Rotated the key pair from " + from + " to " + to);
+        }
+
+        startWorker(progress);
+        return "Re-encrypting passwords from key " + progress.getProperty("from") + " to " + progress.getProperty("to")
+                + " after user '" + progress.getProperty("lastUserId") + "'";
+    }
+
+    private void startWorker(final Properties progress) {
+        rotatedRows.set(0);
+        skippedRows.set(0);
+        conflicts.set(0);
+        failedRows.set(0);
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reencryptAll(progress);
+            }
+        }, "key-rotation");
+        worker.setDaemon(true);
+        //re-encryption is background work, live requests come first
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /**
+     * Re-encrypts every stored password, chunk by chunk in userid order, starting after the saved progress.
+     */
+    private void reencryptAll(Properties progress) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        lastUserId = progress.getProperty("lastUserId");
+        long startedAt = System.nanoTime();
+        long processed = 0;
+        try {
+            while (running) {
+                List<RotatedRow> chunk = readChunk(lastUserId);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+
+                pool.invoke(new ReencryptTask(chunk, 0, chunk.size()));
+                writeChunk(chunk);
+
+                lastUserId = chunk.get(chunk.size() - 1).userId;
+                progress.setProperty("lastUserId", lastUserId);
+                saveProgress(progress);
+
+                processed += chunk.size();
+                throttle(startedAt, processed);
+            }
+
+            if (running) {
+                //every row is an envelope under the new key now, raw RSA rows no longer exist
+                EncryptionUtil.setRawKeyId(null);
+                getProgressFile().delete();
+                LOGGER.info("Key rotation to " + progress.getProperty("to") + " completed: " + rotatedRows.get() + " rows re-encrypted, "
+                        + skippedRows.get() + " already current, " + conflicts.get() + " changed concurrently, " + failedRows.get() + " failed");
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.info("Key rotation stopped after user " + lastUserId + ", it resumes on the next start");
+        } catch (Exception ex) {
+            LOGGER.error("Key rotation failed after user " + lastUserId + ", it resumes on the next start or rotateKeys call", ex);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Reads the next chunk of rows after the given userid, in userid order so the primary key index drives the scan.
+     */
+    private List<RotatedRow> readChunk(String afterUserId) throws SQLException {
+        List<RotatedRow> chunk = new ArrayList<RotatedRow>(chunkSize);
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = dataSource.getConnection();
+            stmt = conn.prepareStatement(dialect.limit(
+                    "SELECT userid, password FROM okta_users WHERE userid > ? AND password IS NOT NULL ORDER BY userid"));
+            stmt.setString(1, afterUserId);
+            stmt.setInt(2, chunkSize);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                chunk.add(new RotatedRow(rs.getString(1), rs.getBytes(2)));
+            }
+            return chunk;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException sqlEx) {
+                    LOGGER.error("Unable cleanup and close the resultset", sqlEx);
+                }
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException sqlEx) {
+                    LOGGER.error("Unable cleanup and close the statement", sqlEx);
+                }
+            }
+            close(conn);
+        }
+    }
+
+    /**
+     * Writes the re-encrypted passwords of a chunk in one transaction, each only if the row still holds the password
+     * it was read with.
+     */
+    private void writeChunk(List<RotatedRow> chunk) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        List<RotatedRow> written = new ArrayList<RotatedRow>(chunk.size());
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(false);
+            stmt = conn.prepareStatement(UPDATE_PASSWORD_SQL);
+            for (RotatedRow row : chunk) {
+                if (row.newPassword != null) {
+                    stmt.setBytes(1, row.newPassword);
+                    stmt.setString(2, row.userId);
+                    stmt.setBytes(3, row.password);
+                    stmt.addBatch();
+                    written.add(row);
+                }
+            }
+            if (written.isEmpty()) {
+                return;
+            }
+
+            int[] counts = stmt.executeBatch();
+            conn.commit();
+
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    //written by a live update meanwhile, with the new key
+                    conflicts.incrementAndGet();
+                } else if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                    rotatedRows.incrementAndGet();
+                }
+                if (userCache != null) {
+                    userCache.invalidate(written.get(i).userId);
+                }
+            }
+        } catch (SQLException ex) {
+            if (conn != null) {
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    LOGGER.error("Rollback failed", e);
+                }
+            }
+            throw ex;
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException sqlEx) {
+                    LOGGER.error("Unable cleanup and close the statement", sqlEx);
+                }
+            }
+            close(conn);
+        }
+    }
+
+    /**
+     * Sleeps as long as the job is ahead of <code>rowsPerSecond</code>.
+     */
+    private void throttle(long startedAt, long processed) throws InterruptedException {
+        if (rowsPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = TimeUnit.SECONDS.toNanos(processed) / rowsPerSecond;
+        long aheadNanos = dueNanos - (System.nanoTime() - startedAt);
+        if (aheadNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        }
+    }
+
+    private static void close(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException sqlEx) {
+                LOGGER.error("Unable cleanup and close the db connection", sqlEx);
+            }
+        }
+    }
+
+    private static File getProgressFile() {
+        return new File(EncryptionUtil.getKeyDirectory(), PROGRESS_FILE);
+    }
+
+    private static Properties loadProgress() throws IOException {
+        File progressFile = getProgressFile();
+        if (!progressFile.exists()) {
+            return null;
+        }
+        Properties progress = new Properties();
+        InputStream in = new FileInputStream(progressFile);
+        try {
+            progress.load(in);
+        } finally {
+            in.close();
+        }
+        return progress;
+    }
+
+    /**
+     * Replaces the progress file atomically, a crash leaves either the previous or the new progress.
+     */
+    private static void saveProgress(Properties progress) throws IOException {
+        File progressFile = getProgressFile();
+        File tempFile = new File(progressFile.getParentFile(), PROGRESS_FILE + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            progress.store(out, "Key rotation progress, delete it only together with the retired key files");
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Re-encrypts a range of a chunk, splitting it across the fork-join pool.
+     */
+    private final class ReencryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<RotatedRow> rows;
+        private final int from;
+        private final int to;
+
+        private ReencryptTask(List<RotatedRow> rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ReencryptTask(rows, from, middle), new ReencryptTask(rows, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                RotatedRow row = rows.get(i);
+                try {
+                    if (EncryptionUtil.isCurrent(row.password)) {
+                        skippedRows.incrementAndGet();
+                        continue;
+                    }
+                    row.newPassword = EncryptionUtil.encrypt(EncryptionUtil.decryptStrict(row.password));
+                    if (row.newPassword == null) {
+                        failedRows.incrementAndGet();
+                    }
+                } catch (Exception ex) {
+                    //left as it is, it did not decrypt before the rotation either
+                    failedRows.incrementAndGet();
+                    LOGGER.warn("Unable to re-encrypt the password of user " + row.userId + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A row read by the rotation, with its password before and after re-encryption.
+     */
+    private static final class RotatedRow {
+        private final String userId;
+        private final byte[] password;
+        private byte[] newPassword;
+
+        private RotatedRow(String userId, byte[] password) {
+            this.userId = userId;
+            this.password = password;
+        }
+    }
+
+    /**
+     * Tells whether passwords are being re-encrypted.
+     *
+     * @return true while the worker runs.
+     */
+    public synchronized boolean isRotating() {
+        return worker != null && worker.isAlive();
+    }
+
+    /**
+     * Get the userid the rotation got to.
+     *
+     * @return The last userid of the last committed chunk.
+     */
+    public String getLastUserId() {
+        return lastUserId;
+    }
+
+    /**
+     * Get the number of passwords re-encrypted with the new key.
+     *
+     * @return The rotated row count.
+     */
+    public long getRotatedRows() {
+        return rotatedRows.get();
+    }
+
+    /**
+     * Get the number of passwords that were already encrypted with the new key.
+     *
+     * @return The skipped row count.
+     */
+    public long getSkippedRows() {
+        return skippedRows.get();
+    }
+
+    /**
+     * Get the number of rows not written back because a live update changed their password meanwhile.
+     *
+     * @return The conflict count.
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * Get the number of passwords that could not be decrypted and were left as they were.
+     *
+     * @return The failed row count.
+     */
+    public long getFailedRows() {
+        return failedRows.get();
+    }
+
+    /**
+     * Set the number of rows read, re-encrypted and written back per transaction.
+     *
+     * @param chunkSize The chunk size to set.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Set the maximum number of rows re-encrypted per second, 0 does not throttle.
+     *
+     * @param rowsPerSecond The throttle to set.
+     */
+    public void setRowsPerSecond(int rowsPerSecond) {
+        this.rowsPerSecond = rowsPerSecond;
+    }
+
+    /**
+     * Set the number of threads re-encrypting a chunk.
+     *
+     * @param parallelism The parallelism to set.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Base class of the providers that read the key pair from a {@link KeyStore}. The current key pair is the private key
+ * entry under <code>alias</code>, and every other private key entry is a retired key pair. The public keys come from
+ * the certificates of the entries.
+ * <p>
+ * A key store entry needs a certificate, which the JDK cannot create, so the key pairs are provisioned with
+ * <code>keytool -genkeypair -keyalg RSA -keysize 2048</code>, <code>-keyalg EC -groupname secp256r1</code> for ECIES, or
+ * the tools of the token, and a rotation is done by
+ * renaming the current alias and provisioning a new one.
+ *
+ * @author praven Atluri
+ */
+public abstract class KeyStoreKeyProvider implements KeyProvider {
+
+    //Key store configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private String alias = "okta-password";
+    private String password;
+
+    /**
+     * Load the key store.
+     *
+     * @param password The key store password.
+     * @return The loaded key store.
+     */
+    protected abstract KeyStore loadKeyStore(char[] password) throws GeneralSecurityException, IOException;
+
+    @Override
+    public boolean areKeysPresent() {
+        try {
+            return loadKeyStore(getPasswordChars()).isKeyEntry(alias);
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public void initialize() throws GeneralSecurityException, IOException {
+        if (!loadKeyStore(getPasswordChars()).isKeyEntry(alias)) {
+            throw new GeneralSecurityException("The key store has no private key entry " + alias
+                    + ", provision an RSA or EC key pair under that alias first");
+        }
+    }
+
+    @Override
+    public KeyPair getKeyPair() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = loadKeyStore(getPasswordChars());
+        KeyPair keyPair = getEntry(keyStore, alias);
+        if (keyPair == null) {
+            throw new GeneralSecurityException("The key store has no RSA or EC private key entry " + alias);
+        }
+        return keyPair;
+    }
+
+    @Override
+    public Map<String, PrivateKey> getRetiredKeys() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = loadKeyStore(getPasswordChars());
+        Map<String, PrivateKey> retiredKeys = new LinkedHashMap<String, PrivateKey>();
+        Enumeration<String> aliases = keyStore.aliases();
+        while (aliases.hasMoreElements()) {
+            String entryAlias = aliases.nextElement();
+            if (entryAlias.equals(alias)) {
+                continue;
+            }
+            KeyPair keyPair = getEntry(keyStore, entryAlias);
+            if (keyPair != null) {
+                retiredKeys.put(EncryptionUtil.toHex(EncryptionUtil.keyId(keyPair.getPublic())), keyPair.getPrivate());
+            }
+        }
+        return retiredKeys;
+    }
+
+    @Override
+    public void retire(String keyId, KeyPair keyPair) {
+        throw new UnsupportedOperationException("Rename the key store entry " + alias + " to retire its key pair");
+    }
+
+    @Override
+    public void install(KeyPair keyPair) {
+        throw new UnsupportedOperationException("Provision the new key pair in the key store under the alias " + alias);
+    }
+
+    /**
+     * Get a key pair entry.
+     *
+     * @return The key pair, or null when the entry is not an RSA or EC private key with a certificate.
+     */
+    private KeyPair getEntry(KeyStore keyStore, String entryAlias) throws GeneralSecurityException {
+        if (!keyStore.isKeyEntry(entryAlias)) {
+            return null;
+        }
+        Key key = keyStore.getKey(entryAlias, getPasswordChars());
+        Certificate certificate = keyStore.getCertificate(entryAlias);
+        if (!(key instanceof PrivateKey) || certificate == null || !EncryptionUtil.isSupportedKey(key)) {
+            return null;
+        }
+        PublicKey publicKey = certificate.getPublicKey();
+        return new KeyPair(publicKey, (PrivateKey) key);
+    }
+
+    private char[] getPasswordChars() {
+        return password == null ? null : password.toCharArray();
+    }
+
+    /**
+     * Set the alias of the current key pair.
+     *
+     * @param alias The alias to set.
+     */
+    public void setAlias(String alias) {
+        this.alias = alias;
+    }
+
+    /**
+     * Set the password of the key store and its entries, the PIN for a token.
+     *
+     * @param password The password to set.
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks up replaced key files without restarting Tomcat.
+ * <p>
+ * A thread watches the key directory and, once the files have been quiet for <code>debounceMillis</code>, asks
+ * {@link EncryptionUtil#reloadKeys()} to load them. The new keys are only published after a test encryption with the
+ * new public key decrypted with the new private key, and they replace the keys in use in one step, so in-flight
+ * requests finish with the old keys and never see a mismatched pair. The per thread ciphers are keyed by key, so the
+ * first request after the swap initialises ciphers for the new keys.
+ * <p>
+ * {@link EncryptionUtil} still checks the key provider every few seconds on its own, so a change that the file
+ * system does not report, on a network share for example, is picked up as well, only later.
+ *
+ * @author praven Atluri
+ */
+public class KeyWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyWatcher.class);
+
+    //Watcher configuration, this property is set via the Spring dispatcher-servlet.xml file
+    private long debounceMillis = 500;
+
+    private WatchService watchService;
+    private Thread watcher;
+
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong rejectedReloads = new AtomicLong();
+
+    /**
+     * Starts watching the key directory.
+     *
+     * @param keyDirectory The directory of the key files.
+     * @throws IOException if the directory cannot be watched.
+     */
+    public synchronized void start(File keyDirectory) throws IOException {
+        if (watcher != null) {
+            return;
+        }
+        final Path directory = keyDirectory.toPath();
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchLoop();
+            }
+        }, "key-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        LOGGER.info("Watching " + directory + " for replaced keys");
+    }
+
+    /**
+     * Stops watching the key directory.
+     */
+    public synchronized void stop() {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            LOGGER.error("Unable to close the key directory watch", ex);
+        }
+        try {
+            watcher.join(debounceMillis + 1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        watcher = null;
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean relevant = drain(key);
+
+                //a key pair is replaced one file after the other, wait until the directory is quiet
+                while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    relevant |= drain(key);
+                }
+                if (relevant) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            //stopped
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Consumes the events of a watch key.
+     *
+     * @return true unless every event was about a temp file
+     */
+    private static boolean drain(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || context == null || !context.toString().endsWith(".tmp")) {
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    private void reload() {
+        try {
+            if (EncryptionUtil.reloadKeys()) {
+                reloads.incrementAndGet();
+                LOGGER.info("Reloaded the keys, the current key is " + EncryptionUtil.getCurrentKeyId());
+            }
+        } catch (Exception ex) {
+            rejectedReloads.incrementAndGet();
+            LOGGER.error("Keeping the keys in use, the changed key files did not load or validate: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Get the number of times changed keys were published.
+     *
+     * @return The reload count.
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Get the number of times changed keys were rejected and the keys in use were kept.
+     *
+     * @return The rejected reload count.
+     */
+    public long getRejectedReloads() {
+        return rejectedReloads.get();
+    }
+
+    /**
+     * Set how long the key directory has to be quiet before the keys are reloaded.
+     *
+     * @param debounceMillis The quiet period in milliseconds to set.
+     */
+    public void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+    }
+}
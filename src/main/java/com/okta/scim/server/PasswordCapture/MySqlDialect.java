@@ -0,0 +1,96 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * The MySQL dialect, used with the Drizzle JDBC driver.
+ *
+ * @author praven Atluri
+ */
+public class MySqlDialect implements SqlDialect {
+
+    public static final String NAME = "mysql";
+
+    //keeps a bulk statement well below max_allowed_packet with BLOB passwords
+    private static final int MAX_ROWS_PER_STATEMENT = 500;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDriverClassName() {
+        return "org.drizzle.jdbc.DrizzleDriver";
+    }
+
+    @Override
+    public String buildConnectionUrl(String serverName, int serverPort, String databaseName, String databaseConnectionURL) {
+        return String.format("jdbc:mysql:thin://%s:%d/%s", serverName, serverPort, databaseName);
+    }
+
+    @Override
+    public String enableServerSidePrepare(String connectionUrl) {
+        //Drizzle always prepares client side and has no option for it, the statement cache still saves the parsing
+        return connectionUrl;
+    }
+
+    @Override
+    public boolean isCredentialsInUrl() {
+        return false;
+    }
+
+    @Override
+    public String getUpsertUserSql() {
+        return "INSERT INTO okta_users (userid, first_name, last_name, user_name, is_active) VALUES (?, ?, ?, ?, ?)"
+                + " ON DUPLICATE KEY UPDATE first_name = VALUES(first_name), last_name = VALUES(last_name),"
+                + " user_name = VALUES(user_name), is_active = VALUES(is_active)";
+    }
+
+    @Override
+    public int getUpsertMaxAffectedRows() {
+        //1 for an insert, 2 for an update and 0 when the existing row already matched
+        return 2;
+    }
+
+    @Override
+    public String getBulkUpsertUserSql(int rows, boolean withPasswordHmac) {
+        String row = withPasswordHmac ? "(?, ?, ?, ?, ?, ?, ?)" : "(?, ?, ?, ?, ?, ?)";
+        StringBuilder sql = new StringBuilder("INSERT INTO okta_users (userid, first_name, last_name, user_name, password, ")
+                .append(withPasswordHmac ? "password_hmac, " : "").append("is_active) VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ", ").append(row);
+        }
+        sql.append(" ON DUPLICATE KEY UPDATE first_name = VALUES(first_name), last_name = VALUES(last_name),")
+                .append(" user_name = VALUES(user_name), password = VALUES(password),")
+                .append(withPasswordHmac ? " password_hmac = VALUES(password_hmac)," : "")
+                .append(" is_active = VALUES(is_active)");
+        return sql.toString();
+    }
+
+    @Override
+    public int getMaxRowsPerStatement() {
+        return MAX_ROWS_PER_STATEMENT;
+    }
+
+    @Override
+    public String limit(String orderedQuery) {
+        return orderedQuery + " LIMIT ?";
+    }
+
+    @Override
+    public String offsetLimit(String orderedQuery) {
+        return orderedQuery + " LIMIT ? OFFSET ?";
+    }
+
+    @Override
+    public int bindOffsetLimit(PreparedStatement stmt, int index, long offset, int maxResults) throws SQLException {
+        stmt.setInt(index++, maxResults);
+        stmt.setLong(index++, offset);
+        return index;
+    }
+}
@@ -21,13 +21,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -51,14 +55,14 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
     private static final Logger LOGGER = LoggerFactory.getLogger(PasswordCaptureSCIMServiceImpl.class);
 
     //Using constants for the names of our App's custom properties
-    private static final String CUSTOM_SCHEMA_PROPERTY_NAME_UNIQUE_ID = "uniqueid";
+    static final String CUSTOM_SCHEMA_PROPERTY_NAME_UNIQUE_ID = "uniqueid";
 
     //Our Okta AppName that this connector is going to be connected to
     private static final String APP_NAME = "opp";
     //Our Okta Universal Directory (UD) Schema Name that this connector is going to use for the custom properties
     private static final String UD_SCHEMA_NAME = "custom";
     //The custom SCIM extension where our App's custom properties will be found
-    private static final String USER_CUSTOM_URN = SCIMOktaConstants.CUSTOM_URN_PREFIX + APP_NAME + SCIMOktaConstants.CUSTOM_URN_SUFFIX + UD_SCHEMA_NAME;
+    static final String USER_CUSTOM_URN = SCIMOktaConstants.CUSTOM_URN_PREFIX + APP_NAME + SCIMOktaConstants.CUSTOM_URN_SUFFIX + UD_SCHEMA_NAME;
 
     private static final Set<String> ALL_VALID_CUSTOM_SCHEMA_PROPERTY_NAMES = new HashSet<String>();
 
@@ -73,6 +77,60 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
     private String databaseType;
     private String databaseConnectionURL;
 
+    //Vendor specific SQL, resolved from the databaseType once at startup
+    private SqlDialect dialect;
+
+    //Pool the connections are borrowed from, optionally tuned via the Spring dispatcher-servlet.xml file
+    private ConnectionPool connectionPool;
+
+    //Optional write-behind batching of updateUser, updates are written synchronously when it is not set
+    private UpdateBatcher updateBatcher;
+
+    //Optional cache of the rows read by getUser
+    private UserCache userCache;
+
+    //Optional background rotation of the RSA key pair
+    private KeyRotationJob keyRotationJob;
+
+    //Where the RSA key pair is stored, the legacy serialized key files when it is not set
+    private KeyProvider keyProvider;
+
+    //Optional watcher that reloads replaced key files without a restart
+    private KeyWatcher keyWatcher;
+
+    //Optional fingerprints of the stored passwords, so that a re-pushed password is not encrypted and written again
+    private PasswordFingerprint passwordFingerprint;
+
+    //Optional comparison of a push with the stored row, so that updateUser only writes the changed columns
+    private ChangeDetector changeDetector;
+
+    //Optional cache of the committed createUser and updateUser calls, so that a replayed call is not written again
+    private IdempotencyCache idempotencyCache;
+
+    //Optional read replicas that getUser and getUsers read from
+    private ReplicaRouter replicaRouter;
+
+    //Optional breaker failing the calls fast while the database is failing, and retrying transient failures
+    private CircuitBreaker circuitBreaker;
+
+    //Optional shards okta_users is spread over, by the immutable id of the user
+    private ShardRouter shardRouter;
+    private ShardedUserLister shardedLister;
+
+    //Optional cache of the getUsers page boundaries and counts
+    private UserPageCache userPageCache;
+
+    //Compiles the getUsers filters into SQL, rejects the filters that would read the whole table
+    private UserFilterCompiler filterCompiler = new UserFilterCompiler();
+
+    //Largest page getUsers returns, whatever count the client asks for
+    private int maxPageSize = 200;
+
+    //How new passwords are encrypted, rsa or envelope
+    private String encryptionMode = EncryptionUtil.MODE_RSA;
+
+    //Algorithm of generated key pairs, RSA, X25519 or P-256
+    private String keyAlgorithm = EncryptionUtil.KEY_ALGORITHM_RSA;
 
 
     /**
@@ -82,28 +140,77 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
      */
     @PostConstruct
     public void afterCreation() throws Exception {
+        EncryptionUtil.setMode(encryptionMode);
+        EncryptionUtil.setKeyAlgorithm(keyAlgorithm);
+        if (keyProvider != null) {
+            EncryptionUtil.setKeyProvider(keyProvider);
+        }
+        //generated here on the first start, so that updateUser never checks for or generates the keys
+        EncryptionUtil.initializeKeys();
+        if (keyWatcher != null) {
+            keyWatcher.start(EncryptionUtil.getKeyDirectory());
+        }
+
+        //resolve the vendor specifics once, the CRUD methods only ever talk to the dialect
+        dialect = SqlDialects.forDatabaseType(databaseType);
+
         try {
-            if (databaseType.equalsIgnoreCase("sqlserver")){
-                Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
-            } else {
-                Class.forName("org.drizzle.jdbc.DrizzleDriver").newInstance();
+            Class.forName(dialect.getDriverClassName()).getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException ex) {
+            //the driver constructor failed, report what it threw
+            Throwable cause = ex.getCause();
+            LOGGER.error("Unable to create the " + dialect.getDriverClassName() + " driver: " + cause.getMessage(), cause);
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
             }
-
+            throw (Error) cause;
         } catch (Exception ex) {
-            LOGGER.error("Unable to find the org.drizzle.jdbc.DrizzleDriver class: " + ex.getMessage(), ex);
+            LOGGER.error("Unable to find the " + dialect.getDriverClassName() + " class: " + ex.getMessage(), ex);
             throw ex;
         }
 
-        if (databaseType.equalsIgnoreCase("sqlserver")){
-            connectionString = databaseConnectionURL;
+        connectionString = dialect.buildConnectionUrl(this.serverName, this.serverPort, this.databaseName, this.databaseConnectionURL);
+        connectionString = dialect.enableServerSidePrepare(connectionString);
 
-        }else {
-
-            connectionString = String.format("jdbc:mysql:thin://%s:%d/%s",
-                    this.serverName, this.serverPort, this.databaseName);
+        if (connectionPool == null) {
+            connectionPool = new ConnectionPool();
+        }
+        if (connectionPool.getUrl() == null) {
+            connectionPool.setUrl(connectionString);
+            if (!dialect.isCredentialsInUrl()) {
+                connectionPool.setUserName(this.userName);
+                connectionPool.setPassword(this.password);
+            }
+        }
+        connectionPool.start();
+        if (passwordFingerprint != null && !hasPasswordHmacColumn()) {
+            //the migration in okta_users_table_schema.sql has not been run yet
+            LOGGER.warn("okta_users has no password_hmac column, re-pushed passwords are written again until it is added");
+            passwordFingerprint = null;
+        }
+        if (passwordFingerprint != null) {
+            passwordFingerprint.start(EncryptionUtil.getKeyDirectory());
+        }
+        if (replicaRouter != null) {
+            replicaRouter.start();
+        }
+        if (shardRouter != null) {
+            //these write or read okta_users through a single pool
+            if (updateBatcher != null || keyRotationJob != null || replicaRouter != null) {
+                throw new IllegalStateException("shardRouter cannot be combined with updateBatcher, keyRotationJob or replicaRouter");
+            }
+            shardRouter.start(dialect, passwordFingerprint != null, userPageCache);
+            shardedLister = new ShardedUserLister(shardRouter, dialect);
+        }
 
+        if (updateBatcher != null) {
+            updateBatcher.start(connectionPool);
         }
 
+        //resumes a key rotation that was stopped by a shutdown
+        if (keyRotationJob != null) {
+            keyRotationJob.start(connectionPool, dialect, userCache);
+        }
 
         //test that everything works
         Connection conn = getDatabaseConnection();
@@ -116,6 +223,32 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
 
     }
 
+    /**
+     * Closes the pooled database connections. It is called when Spring shuts down the application context.
+     */
+    @PreDestroy
+    public void beforeDestruction() {
+        if (keyRotationJob != null) {
+            keyRotationJob.stop();
+        }
+        if (keyWatcher != null) {
+            keyWatcher.stop();
+        }
+        //write the queued updates while the pool is still open
+        if (updateBatcher != null) {
+            updateBatcher.stop();
+        }
+        if (replicaRouter != null) {
+            replicaRouter.stop();
+        }
+        if (shardRouter != null) {
+            shardRouter.stop();
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+    }
+
     /**
      * This method creates a user. All the standard attributes of the SCIM User can be retrieved by using the
      * getters on the SCIMStandardUser member of the SCIMUser object.
@@ -137,7 +270,45 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
      * @throws OnPremUserManagementException
      */
     @Override
-    public SCIMUser createUser(SCIMUser user) throws OnPremUserManagementException {
+    public SCIMUser createUser(final SCIMUser user) throws OnPremUserManagementException {
+        if (idempotencyCache == null) {
+            return upsertUser(user);
+        }
+
+        //a replay of a create that already committed returns without touching the database
+        String unique_oktaUserID = getImmutableId(user);
+        String key = idempotencyCache.key("createUser", unique_oktaUserID, user.getName().getFirstName(),
+                user.getName().getLastName(), user.getUserName(), user.isActive());
+        idempotencyCache.execute(unique_oktaUserID, key, new IdempotencyCache.Operation() {
+            @Override
+            public void run() throws OnPremUserManagementException {
+                upsertUser(user);
+            }
+        });
+        user.setId(unique_oktaUserID);
+        return user;
+    }
+
+    /**
+     * Create or overwrite the row of a user, see {@link #createUser(SCIMUser)}.
+     *
+     * @param user the pushed user
+     * @return the created user
+     */
+    private SCIMUser upsertUser(final SCIMUser user) throws OnPremUserManagementException {
+        //the upsert writes the same row when it runs twice
+        return guard("createUser", true, new CircuitBreaker.Call<SCIMUser, RuntimeException>() {
+            @Override
+            public SCIMUser call() {
+                return upsertUserRow(user);
+            }
+        });
+    }
+
+    /**
+     * Create or overwrite the row of a user in one transaction, see {@link #upsertUser(SCIMUser)}.
+     */
+    private SCIMUser upsertUserRow(SCIMUser user) throws OnPremUserManagementException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         Connection conn = null;
@@ -147,42 +318,29 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
             String unique_oktaUserID = getImmutableId(user);
 
             //get a new connection and start a new transaction
-            conn = getDatabaseConnection();
+            conn = getDatabaseConnection(unique_oktaUserID);
             conn.setAutoCommit(false);
 
-            if (checkIfUserExists(unique_oktaUserID)) {
-                String query = "UPDATE okta_users set first_name=?, last_name=?, user_name=?, is_active=? WHERE userid = ?";
-                //build statement
-                stmt = conn.prepareStatement(query);
-
-                stmt.setString(1, user.getName().getFirstName());
-                stmt.setString(2, user.getName().getLastName());
-                stmt.setString(3, user.getUserName());
-                stmt.setBoolean(4, user.isActive());
-                stmt.setString(5, unique_oktaUserID);
-            } else {
-                //Start the INSERT query
-                String query = "INSERT INTO okta_users (userid, first_name, last_name, user_name, is_active) VALUES (?, ?, ?, ?, ?)";
-
-                //create the statement and make sure our auto-incremented ID is returned
-                stmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
+            //a single vendor native upsert, so there is no separate existence check and no race between concurrent creates
+            stmt = conn.prepareStatement(dialect.getUpsertUserSql());
 
-                //populate our prepared statement with all the parameters
-                stmt.setString(1, unique_oktaUserID);
-                stmt.setString(2, user.getName().getFirstName());
-                stmt.setString(3, user.getName().getLastName());
-                stmt.setString(4, user.getUserName());
-                stmt.setBoolean(5, user.isActive());
-            }
+            //populate our prepared statement with all the parameters
+            stmt.setString(1, unique_oktaUserID);
+            stmt.setString(2, user.getName().getFirstName());
+            stmt.setString(3, user.getName().getLastName());
+            stmt.setString(4, user.getUserName());
+            stmt.setBoolean(5, user.isActive());
 
             int affectedRows = stmt.executeUpdate();
-            if (affectedRows != 1) {
-                throw new OnPremUserManagementException("CREATE_USER_INSERT_FAILED", "Creating user failed, expected 1 row affected but " + affectedRows + " rows affected.");
+            if (affectedRows < 0 || affectedRows > dialect.getUpsertMaxAffectedRows()) {
+                throw new OnPremUserManagementException("CREATE_USER_INSERT_FAILED", "Creating user failed, expected at most "
+                        + dialect.getUpsertMaxAffectedRows() + " rows affected but " + affectedRows + " rows affected.");
             }
 
 
             //commit the transaction
             conn.commit();
+            invalidateCachedUser(unique_oktaUserID);
 
             //return the most up to date copy of the user
             user.setId(unique_oktaUserID);
@@ -215,7 +373,46 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
      * @throws OnPremUserManagementException
      */
     @Override
-    public SCIMUser updateUser(String id, SCIMUser user) throws OnPremUserManagementException, EntityNotFoundException {
+    public SCIMUser updateUser(final String id, final SCIMUser user) throws OnPremUserManagementException, EntityNotFoundException {
+        if (idempotencyCache == null) {
+            return writeUser(id, user);
+        }
+
+        //a replay of an update that already committed returns without touching the database
+        String unique_oktaUserID = getImmutableId(user);
+        String key = idempotencyCache.key("updateUser", unique_oktaUserID, id, user.getName() == null ? null : user.getName().getFirstName(),
+                user.getName() == null ? null : user.getName().getLastName(), user.getUserName(), user.isActive(), user.getPassword());
+        idempotencyCache.execute(unique_oktaUserID, key, new IdempotencyCache.Operation() {
+            @Override
+            public void run() throws OnPremUserManagementException {
+                writeUser(id, user);
+            }
+        });
+        user.setId(unique_oktaUserID);
+        return user;
+    }
+
+    /**
+     * Write the pushed columns of a user, see {@link #updateUser(String, SCIMUser)}.
+     *
+     * @param id   the id of the SCIM user
+     * @param user the pushed user
+     * @return the updated user
+     */
+    private SCIMUser writeUser(final String id, final SCIMUser user) throws OnPremUserManagementException {
+        //a failed write is rolled back, running it again compares the push with the stored row again
+        return guard("updateUser", true, new CircuitBreaker.Call<SCIMUser, RuntimeException>() {
+            @Override
+            public SCIMUser call() {
+                return writeUserRow(id, user);
+            }
+        });
+    }
+
+    /**
+     * Write the pushed columns of a user, see {@link #writeUser(String, SCIMUser)}.
+     */
+    private SCIMUser writeUserRow(String id, SCIMUser user) throws OnPremUserManagementException {
         //validate that the user already exists
 
         String unique_oktaUserID = getImmutableId(user);
@@ -224,80 +421,53 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
             throw new OnPremUserManagementException("UPDATE_USER_ID_MISMATCH", "Modifying the user id is not allowed.");
         }
 
-        PreparedStatement stmt = null;
-        ResultSet rs = null;
-        Connection conn = null;
-
-
-        try {
-            //UPDATE the user record with everything passed in
-            //get a new connection and start a new transaction
-            conn = getDatabaseConnection();
-            conn.setAutoCommit(false);
-
-
-            if (user.isActive() && user.getPassword() != null ) {
+        boolean pushesPassword = user.isActive() && user.getPassword() != null;
 
+        byte[] fingerprint = null;
+        if (pushesPassword && passwordFingerprint != null) {
+            try {
+                fingerprint = passwordFingerprint.fingerprint(unique_oktaUserID, user.getPassword());
+            } catch (GeneralSecurityException ex) {
+                throw new OnPremUserManagementException("UPDATE_USER_FAILED", "Unable to fingerprint the password of user " + unique_oktaUserID, ex);
+            }
+        }
 
-                System.out.println("printing password::"+user.getPassword());
+        boolean written = false;
+        if (changeDetector != null) {
+            //compare the push with the stored row and only write the columns that changed
+            UserCache.CachedUser row = null;
+            try {
+                row = loadUser(unique_oktaUserID, false);
+            } catch (SQLException ex) {
+                handleSQLException("updateUser", ex, "UPDATE_USER_FAILED_EXCEPTION", null);
+            }
+            if (row != null) {
+                written = writeChangedColumns(id, unique_oktaUserID, user, row, fingerprint);
+            }
+        } else if (fingerprint != null) {
+            //a re-pushed password is already stored, write the other columns only while its fingerprint matches
+            UserUpdate guarded = newUserUpdate(unique_oktaUserID, user);
+            guarded.setExpectedPasswordHmac(fingerprint);
+            written = saveUserUpdate(id, guarded);
+            if (written) {
+                passwordFingerprint.recordSkippedWrite();
+                invalidateCachedUser(unique_oktaUserID);
+            }
+        }
 
-                if (!EncryptionUtil.areKeysPresent()) {
-                    // Method generates a pair of keys using the RSA algorithm and stores it
-                    // in their respective files
-                    EncryptionUtil.generateKey();
+        if (!written) {
+            UserUpdate update = newUserUpdate(unique_oktaUserID, user);
+            if (pushesPassword) {
+                update.setPassword(encryptPassword(unique_oktaUserID, user.getPassword()));
+                update.setPasswordHmac(fingerprint);
+                if (fingerprint != null) {
+                    passwordFingerprint.recordPasswordWrite();
                 }
-
-                String query = "UPDATE okta_users set first_name=?, last_name=?, user_name=?, password = ?, is_active=?  WHERE userid = ?";
-
-                //build statement
-                stmt = conn.prepareStatement(query);
-
-                byte[] cypherText = EncryptionUtil.encrypt(user.getPassword());
-
-
-                stmt.setString(1, user.getName().getFirstName());
-                stmt.setString(2, user.getName().getLastName());
-                stmt.setString(3, user.getUserName());
-                stmt.setBytes(4, cypherText);
-                stmt.setBoolean(5, user.isActive());
-                stmt.setString(6, unique_oktaUserID);
-
-            } else if (user.isActive() && user.getPassword() == null){
-                String query = "UPDATE okta_users set first_name=?, last_name=?, user_name=?, is_active=? WHERE userid = ?";
-                //build statement
-                stmt = conn.prepareStatement(query);
-
-                stmt.setString(1, user.getName().getFirstName());
-                stmt.setString(2, user.getName().getLastName());
-                stmt.setString(3, user.getUserName());
-                stmt.setBoolean(4, user.isActive());
-                stmt.setString(5, unique_oktaUserID);
-            } else if (!user.isActive()){
-                String query = "UPDATE okta_users set is_active=? WHERE userid = ?";
-                //build statement
-                stmt = conn.prepareStatement(query);
-                stmt.setBoolean(1, user.isActive());
-                stmt.setString(2, unique_oktaUserID);
-            } else {
-                throw new  OnPremUserManagementException("Check the SCIM request from OKTA", "Modifying the user id is not allowed.");
             }
-
-            int affectedRows = stmt.executeUpdate();
-            if (affectedRows != 1) {
-                throw new OnPremUserManagementException("UPDATE_USER_FAILED", "Updating user " + id + " failed, expected 1 row affected but " + affectedRows + " rows affected.");
+            if (!saveUserUpdate(id, update)) {
+                throw new OnPremUserManagementException("UPDATE_USER_FAILED", "Updating user " + unique_oktaUserID + " wrote no row");
             }
-
-            //NOTE: user.groupsGroups() is considered READ-ONLY according to the SCIM Spec
-            // http://www.simplecloud.info/specs/draft-scim-core-schema-01.html#anchor4
-            // Okta will serialize the user's group membership information for your reference but you should not
-            // update the group membership from it. That should only happen through calls to createGroup or updateGroup
-
-            //commit and save
-            conn.commit();
-        } catch (SQLException ex) {
-            handleSQLException("updateUser", ex, "UPDATE_USER_FAILED_EXCEPTION", conn);
-        }  finally {
-            cleanupConnection(stmt, rs, conn);
+            invalidateCachedUser(unique_oktaUserID);
         }
 
         //return the most up to date user
@@ -317,22 +487,173 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
      * @return The response from the server, which contains a list of  users along with the total number of results, the start index, and the items per page.
      * @throws com.okta.scim.server.exception.OnPremUserManagementException
      *
-     * NOTE:: This method is returning Mock Response as the OPP agent invokes this method before creating a new user
-     *
+     * Users are listed in userid order and read by keyset, the rows after the last userid of the previous page, so the
+     * next page of a sequential walk costs the same however deep into the listing it starts. A page that does not
+     * start at a boundary the {@link UserPageCache} knows first skips the userid index from the nearest known boundary
+     * below it, which costs as many index entries as it jumps over. Passwords are not listed, see {@link #getUser(String)}.
+     * The filter is compiled to SQL by the {@link UserFilterCompiler}.
      */
     @Override
-    public SCIMUserQueryResponse getUsers(PaginationProperties pageProperties, SCIMFilter filter) throws OnPremUserManagementException {
-        SCIMUserQueryResponse response = new SCIMUserQueryResponse();
+    public SCIMUserQueryResponse getUsers(final PaginationProperties pageProperties, final SCIMFilter filter) throws OnPremUserManagementException {
+        return guard("getUsers", true, new CircuitBreaker.Call<SCIMUserQueryResponse, RuntimeException>() {
+            @Override
+            public SCIMUserQueryResponse call() {
+                return readUsers(pageProperties, filter);
+            }
+        });
+    }
+
+    /**
+     * Read a page of users, see {@link #getUsers(PaginationProperties, SCIMFilter)}.
+     */
+    private SCIMUserQueryResponse readUsers(PaginationProperties pageProperties, SCIMFilter filter) throws OnPremUserManagementException {
+        UserQuery query = filterCompiler.compile(filter);
+        long startIndex = pageProperties == null ? 1 : Math.max(1, pageProperties.getStartIndex());
+        int count = pageProperties == null ? maxPageSize : Math.max(0, Math.min(pageProperties.getCount(), maxPageSize));
+
         List<SCIMUser> users = new ArrayList<SCIMUser>();
-        SCIMUser user = new SCIMUser();
-        user.setUserName(filter.getFilterValue());
-        users.add(user);
+        int totalResults = 0;
+        Connection conn = null;
+        try {
+            //a sharded listing borrows a connection per shard
+            conn = shardedLister == null ? getReadConnection() : null;
+            totalResults = countUsers(conn, query);
+            if (count > 0) {
+                users = readUserPage(conn, query, startIndex, count);
+            }
+        } catch (SQLException ex) {
+            handleSQLException("getUsers", ex, "GET_USERS_FAILED_EXCEPTION", null);
+        } finally {
+            cleanupConnection(null, null, conn);
+        }
+
+        SCIMUserQueryResponse response = new SCIMUserQueryResponse();
         response.setScimUsers(users);
-        if (filter != null) {
-            return response;
-        } else {
-            throw new UnsupportedOperationException("Not supported."); //To change body of generated methods, choose Tools | Templates.
+        response.setTotalResults(totalResults);
+        response.setStartIndex((int) startIndex);
+        return response;
+    }
+
+    /**
+     * Receives the users of {@link #streamUsers}, one at a time.
+     */
+    public interface UserStreamHandler {
+
+        /**
+         * Called once, before the first user.
+         *
+         * @param totalResults The number of users of the listing, not just of the page.
+         */
+        void start(int totalResults) throws IOException;
+
+        /**
+         * Called for every user of the page, in userid order.
+         */
+        void user(String userId, String firstName, String lastName, String userName, boolean active) throws IOException;
+    }
+
+    /**
+     * Stream a page of users to a handler without holding the page in memory.
+     * <p>
+     * The page is read by keyset in chunks of at most <code>fetchSize</code> users, each through a forward-only,
+     * read-only result set with that fetch size, and every row is handed on as it is read. Memory use depends on
+     * <code>fetchSize</code> only, not on the page size, whatever the JDBC driver buffers. Passwords are not listed.
+     *
+     * @param filter     SCIM filter, null to list every user
+     * @param startIndex the 1 based start index of the page
+     * @param count      the number of users of the page
+     * @param fetchSize  the number of users read per chunk
+     * @param handler    receives the users
+     * @return the number of users streamed
+     * @throws OnPremUserManagementException if the users cannot be read, the handler may have received users already
+     * @throws IOException if the handler failed
+     */
+    public int streamUsers(final SCIMFilter filter, final long startIndex, final int count, final int fetchSize,
+                           final UserStreamHandler handler) throws OnPremUserManagementException, IOException {
+        //not retried, the handler may have written users already
+        return guard("streamUsers", false, new CircuitBreaker.Call<Integer, IOException>() {
+            @Override
+            public Integer call() throws IOException {
+                return readUserStream(filter, startIndex, count, fetchSize, handler);
+            }
+        });
+    }
+
+    /**
+     * Stream a page of users, see {@link #streamUsers}.
+     */
+    private int readUserStream(SCIMFilter filter, long startIndex, int count, int fetchSize, UserStreamHandler handler)
+            throws OnPremUserManagementException, IOException {
+        UserQuery query = filterCompiler.compile(filter);
+        startIndex = Math.max(1, startIndex);
+        fetchSize = Math.max(1, fetchSize);
+
+        int streamed = 0;
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = shardedLister == null ? getReadConnection() : null;
+            handler.start(countUsers(conn, query));
+            String afterUserId = findPageStart(conn, query, startIndex);
+            if (shardedLister != null && afterUserId != null) {
+                return streamShards(query, startIndex, count, fetchSize, afterUserId, handler);
+            }
+            boolean more = afterUserId != null;
+            while (more && streamed < count) {
+                int chunk = Math.min(fetchSize, count - streamed);
+                stmt = conn.prepareStatement(dialect.limit(query.toPageSql(UserQuery.COLUMNS)),
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                stmt.setFetchSize(chunk);
+                int index = query.bind(stmt);
+                stmt.setString(index++, afterUserId);
+                stmt.setInt(index, chunk);
+                rs = stmt.executeQuery();
+                int read = 0;
+                while (rs.next()) {
+                    afterUserId = rs.getString(1);
+                    handler.user(afterUserId, rs.getString(2), rs.getString(3), rs.getString(4), rs.getBoolean(5));
+                    read++;
+                }
+                cleanupConnection(stmt, rs, null);
+                stmt = null;
+                rs = null;
+                streamed += read;
+                more = read == chunk;
+            }
+            if (userPageCache != null && streamed == count && streamed > 0) {
+                //the next page follows the last user of this one
+                userPageCache.put(query.getKey(), startIndex + count, afterUserId);
+            }
+        } catch (SQLException ex) {
+            handleSQLException("streamUsers", ex, "GET_USERS_FAILED_EXCEPTION", null);
+        } finally {
+            cleanupConnection(stmt, rs, conn);
+        }
+        return streamed;
+    }
+
+    /**
+     * Stream a page of users merged from every shard, see {@link #streamUsers}.
+     */
+    private int streamShards(UserQuery query, long startIndex, int count, int fetchSize, String cursor,
+                             final UserStreamHandler handler) throws SQLException, IOException {
+        final int[] streamed = new int[1];
+        String next = shardedLister.read(query, cursor, count, fetchSize, new UserStreamHandler() {
+            @Override
+            public void start(int totalResults) {
+            }
+
+            @Override
+            public void user(String userId, String firstName, String lastName, String userName, boolean active) throws IOException {
+                handler.user(userId, firstName, lastName, userName, active);
+                streamed[0]++;
+            }
+        });
+        if (userPageCache != null && next != null && count > 0) {
+            userPageCache.put(query.getKey(), startIndex + count, next);
         }
+        return streamed[0];
     }
 
     /**
@@ -354,34 +675,16 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
         SCIMUser user = new SCIMUser();
         user.setId(id);
 
-
         try {
-
-            conn = getDatabaseConnection();
-
-            String query = "SELECT user_name,password,is_active FROM okta_users WHERE userid=?";
-
-            //build statement
-            stmt = conn.prepareStatement(query);
-
-            stmt.setString(1, id);
-
-            rs = stmt.executeQuery();
-
-
-            if (rs.next()){
-                user.setUserName(rs.getString(1));
-                user.setPassword(EncryptionUtil.decrypt(rs.getBytes(2)));
-                user.setActive(rs.getBoolean(3));
+            UserCache.CachedUser cached = loadUser(id, true);
+            if (cached != null) {
+                //only the encrypted password is cached, it is decrypted for every call
+                user.setUserName(cached.getUserName());
+                user.setPassword(EncryptionUtil.decrypt(cached.getPassword()));
+                user.setActive(cached.isActive());
             }
-
-
         } catch (SQLException ex) {
             handleSQLException("getUserById", ex, "GET_USER_BY_ID exception", null);
-
-        } finally {
-            cleanupConnection(stmt, rs, conn);
-
         }
 
         return user;
@@ -602,7 +905,7 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
     }
 
     /**
-     * set the database Type sqlserver/mysql
+     * set the database Type sqlserver/mysql, or the class name of a {@link SqlDialect} implementation
      *
      * @param databaseType the value of database type to set
      */
@@ -631,89 +934,719 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
     }
 
     /**
-     * Generate the SQL query from the EQUALITY SCIM filter
+     * Get the connection pool.
      *
-     * @param conn             the sql connection
-     * @param filter           SCIM filter
-     * @param initialUserIndex first user (0 based) record to return
-     * @param maxUsers         max number of users to return
-     * @return sql query for the users
+     * @return The connection pool.
      */
-    private PreparedStatement getUsersQueryByEqualityFilter(Connection conn, SCIMFilter filter, long initialUserIndex, int maxUsers) throws SQLException {
-        //for consistency, make sure we always return the users in the same order no matter what query
-        List<Object> values = new ArrayList<Object>();
-        String query = "SELECT userid FROM okta_users WHERE  ORDER BY last_name, first_name, userid LIMIT " + initialUserIndex + ", " + maxUsers;
-        PreparedStatement stmt = conn.prepareStatement(query);
-        for (int i = 0; i < values.size(); i++) {
-            stmt.setObject(i + 1, values.get(i));
-        }
-        return stmt;
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
     }
 
-
-    /*
-    * Encrypt the string using Sha256 cert
+    /**
+     * Set the connection pool. When it has no url, it is configured from the database connection properties of this service.
+     *
+     * @param connectionPool The connection pool to set.
      */
-
-    private static String bytesToHex(byte[] hash) {
-        StringBuffer hexString = new StringBuffer();
-        for (int i = 0; i < hash.length; i++) {
-            String hex = Integer.toHexString(0xff & hash[i]);
-            if(hex.length() == 1) hexString.append('0');
-            hexString.append(hex);
-        }
-        return hexString.toString();
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
     }
+
     /**
-     * Here is one PasswordCapture of what might need to be done when your database does not generate the unique record ids for you.
-     * It will throw a DuplicateGroupException when the group name is not going to be unique. Because of the schema we are
-     * working with we cannot just create a UUID/GUID and use that as our unique value.
-     * <p/>
-     * This is NOT a perfect PasswordCapture, it is not thread safe or guaranteed to work if you have multiple connectors or applications
-     * talking to the same database.
+     * Get the write-behind update batcher.
      *
-     * @param //displayName group name
-     * @return new unique group id to use
+     * @return The update batcher, or null when updates are written synchronously.
      */
+    public UpdateBatcher getUpdateBatcher() {
+        return updateBatcher;
+    }
+
     /**
-     * Check if user is active in Database
+     * Set the write-behind update batcher. Leave it unset to write every update in its own transaction.
      *
-     * @param id the user id
-     * @return the user
+     * @param updateBatcher The update batcher to set.
      */
-    private boolean checkIfUserExists(String id) {
-        PreparedStatement stmt = null;
-        ResultSet rs = null;
-        Connection conn = getDatabaseConnection();
-
-        try {
-            String query = "select e.is_active FROM okta_users AS e WHERE e.userid = ?";
-            stmt = conn.prepareStatement(query);
-            stmt.setString(1, id);
+    public void setUpdateBatcher(UpdateBatcher updateBatcher) {
+        this.updateBatcher = updateBatcher;
+    }
 
-            rs = stmt.executeQuery();
+    /**
+     * Get the getUser cache.
+     *
+     * @return The user cache, or null when getUser always reads the database.
+     */
+    public UserCache getUserCache() {
+        return userCache;
+    }
 
-            if (rs.next()) {
-                return true;
-            }
+    /**
+     * Set the getUser cache. Leave it unset to read the database on every getUser call.
+     *
+     * @param userCache The user cache to set.
+     */
+    public void setUserCache(UserCache userCache) {
+        this.userCache = userCache;
+    }
 
-        } catch (SQLException ex) {
-            handleSQLException("getUserById", ex, "GET_USER_BY_ID_EXCEPTION", null);
-        } finally {
-            cleanupConnection(stmt, rs, conn);
-        }
-        return false;
+    /**
+     * Get the key rotation job.
+     *
+     * @return The key rotation job, or null when keys are not rotated.
+     */
+    public KeyRotationJob getKeyRotationJob() {
+        return keyRotationJob;
     }
 
+    /**
+     * Set the key rotation job. It needs the envelope encryption mode.
+     *
+     * @param keyRotationJob The key rotation job to set.
+     */
+    public void setKeyRotationJob(KeyRotationJob keyRotationJob) {
+        this.keyRotationJob = keyRotationJob;
+    }
 
+    /**
+     * Get the key provider.
+     *
+     * @return The key provider, or null when the legacy serialized key files are used.
+     */
+    public KeyProvider getKeyProvider() {
+        return keyProvider;
+    }
 
     /**
-     * get the value of immutableId from user request
+     * Set where the RSA key pair is stored. Leave it unset to keep using the serialized key files in C:/keys.
      *
-     * @param user
-     * @return the String Value of id attribute
+     * @param keyProvider The key provider to set.
      */
-    private String getImmutableId(SCIMUser user){
+    public void setKeyProvider(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+    }
+
+    /**
+     * Get the key watcher.
+     *
+     * @return The key watcher, or null when replaced key files are only picked up by the periodic check.
+     */
+    public KeyWatcher getKeyWatcher() {
+        return keyWatcher;
+    }
+
+    /**
+     * Set the watcher that reloads replaced key files right away.
+     *
+     * @param keyWatcher The key watcher to set.
+     */
+    public void setKeyWatcher(KeyWatcher keyWatcher) {
+        this.keyWatcher = keyWatcher;
+    }
+
+    /**
+     * Get the fingerprints of the stored passwords.
+     *
+     * @return The password fingerprint, or null when re-pushed passwords are always written.
+     */
+    public PasswordFingerprint getPasswordFingerprint() {
+        return passwordFingerprint;
+    }
+
+    /**
+     * Set the fingerprints of the stored passwords. Needs the password_hmac column, see okta_users_table_schema.sql.
+     *
+     * @param passwordFingerprint The password fingerprint to set.
+     */
+    public void setPasswordFingerprint(PasswordFingerprint passwordFingerprint) {
+        this.passwordFingerprint = passwordFingerprint;
+    }
+
+    /**
+     * Get the change detector.
+     *
+     * @return The change detector, or null when every pushed column is written.
+     */
+    public ChangeDetector getChangeDetector() {
+        return changeDetector;
+    }
+
+    /**
+     * Set the change detector that compares a push with the stored row, so that only the changed columns are written.
+     *
+     * @param changeDetector The change detector to set.
+     */
+    public void setChangeDetector(ChangeDetector changeDetector) {
+        this.changeDetector = changeDetector;
+    }
+
+    /**
+     * Get the idempotency cache.
+     *
+     * @return The idempotency cache, or null when replayed calls are written again.
+     */
+    public IdempotencyCache getIdempotencyCache() {
+        return idempotencyCache;
+    }
+
+    /**
+     * Set the cache that answers replayed createUser and updateUser calls without writing them again.
+     *
+     * @param idempotencyCache The idempotency cache to set.
+     */
+    public void setIdempotencyCache(IdempotencyCache idempotencyCache) {
+        this.idempotencyCache = idempotencyCache;
+    }
+
+    /**
+     * Get the router of the reads to the replicas.
+     *
+     * @return The replica router, or null when every read goes to the primary.
+     */
+    public ReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    /**
+     * Set the router sending getUser and getUsers to read replicas.
+     *
+     * @param replicaRouter The replica router to set.
+     */
+    public void setReplicaRouter(ReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
+    }
+
+    /**
+     * Get the circuit breaker of the database calls.
+     *
+     * @return The circuit breaker, or null when every call goes to the database.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set the circuit breaker the database calls of createUser, updateUser, getUser and getUsers go through.
+     *
+     * @param circuitBreaker The circuit breaker to set.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Get the router of the shards okta_users is spread over.
+     *
+     * @return The shard router, or null when okta_users is a single table.
+     */
+    public ShardRouter getShardRouter() {
+        return shardRouter;
+    }
+
+    /**
+     * Set the router spreading okta_users over shards. It replaces the connection pool for the users.
+     *
+     * @param shardRouter The shard router to set.
+     */
+    public void setShardRouter(ShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+    }
+
+    /**
+     * Get the page cache of getUsers.
+     *
+     * @return The user page cache, or null when every page is found by skipping from the start of the listing.
+     */
+    public UserPageCache getUserPageCache() {
+        return userPageCache;
+    }
+
+    /**
+     * Set the cache of the getUsers page boundaries and counts.
+     *
+     * @param userPageCache The user page cache to set.
+     */
+    public void setUserPageCache(UserPageCache userPageCache) {
+        this.userPageCache = userPageCache;
+    }
+
+    /**
+     * Get the compiler of the getUsers filters.
+     *
+     * @return The filter compiler.
+     */
+    public UserFilterCompiler getFilterCompiler() {
+        return filterCompiler;
+    }
+
+    /**
+     * Set the compiler of the getUsers filters.
+     *
+     * @param filterCompiler The filter compiler to set.
+     */
+    public void setFilterCompiler(UserFilterCompiler filterCompiler) {
+        this.filterCompiler = filterCompiler;
+    }
+
+    /**
+     * Get the largest page getUsers returns.
+     *
+     * @return The maximum page size.
+     */
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    /**
+     * Set the largest page getUsers returns, whatever count the client asks for.
+     *
+     * @param maxPageSize The maximum page size to set.
+     */
+    public void setMaxPageSize(int maxPageSize) {
+        this.maxPageSize = maxPageSize;
+    }
+
+    /**
+     * Get the encryption mode of new passwords.
+     *
+     * @return The encryption mode.
+     */
+    public String getEncryptionMode() {
+        return encryptionMode;
+    }
+
+    /**
+     * Set the encryption mode of new passwords, rsa (the default) or envelope.
+     *
+     * @param encryptionMode The encryption mode to set.
+     */
+    public void setEncryptionMode(String encryptionMode) {
+        this.encryptionMode = encryptionMode;
+    }
+
+    /**
+     * Get the algorithm of generated key pairs.
+     *
+     * @return The key algorithm.
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /**
+     * Set the algorithm of the key pairs generated on the first start or by a key rotation: RSA (the default), X25519
+     * or P-256. Passwords are ECIES encrypted once the current key is an X25519 or P-256 key.
+     *
+     * @param keyAlgorithm The key algorithm to set.
+     */
+    public void setKeyAlgorithm(String keyAlgorithm) {
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * Count the users of a query, from the page cache when it holds a recent count.
+     */
+    private int countUsers(Connection conn, UserQuery query) throws SQLException {
+        int count = userPageCache == null ? -1 : userPageCache.getCount(query.getKey());
+        if (count >= 0) {
+            return count;
+        }
+        if (shardedLister != null) {
+            count = shardedLister.count(query);
+        } else {
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            try {
+                stmt = conn.prepareStatement(query.toCountSql());
+                query.bind(stmt);
+                rs = stmt.executeQuery();
+                count = rs.next() ? rs.getInt(1) : 0;
+            } finally {
+                cleanupConnection(stmt, rs, null);
+            }
+        }
+        if (userPageCache != null) {
+            userPageCache.putCount(query.getKey(), count);
+        }
+        return count;
+    }
+
+    /**
+     * Read the page of users starting at a 1 based start index.
+     */
+    private List<SCIMUser> readUserPage(Connection conn, UserQuery query, long startIndex, int count) throws SQLException {
+        List<SCIMUser> users = new ArrayList<SCIMUser>(count);
+
+        String afterUserId = findPageStart(conn, query, startIndex);
+        if (afterUserId == null) {
+            //the start index is past the last user
+            return users;
+        }
+        if (shardedLister != null) {
+            return readShardedUserPage(query, startIndex, count, afterUserId, users);
+        }
+
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement(dialect.limit(query.toPageSql(UserQuery.COLUMNS)));
+            int index = query.bind(stmt);
+            stmt.setString(index++, afterUserId);
+            stmt.setInt(index, count);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                users.add(newListedUser(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getBoolean(5)));
+            }
+        } finally {
+            cleanupConnection(stmt, rs, null);
+        }
+
+        if (userPageCache != null && users.size() == count) {
+            //the next page follows the last user of this one
+            userPageCache.put(query.getKey(), startIndex + count, users.get(count - 1).getId());
+        }
+        return users;
+    }
+
+    /**
+     * Read a page of users merged from every shard, see {@link #readUserPage}.
+     *
+     * @param cursor the position the page follows in every shard
+     */
+    private List<SCIMUser> readShardedUserPage(UserQuery query, long startIndex, int count, String cursor,
+                                               final List<SCIMUser> users) throws SQLException {
+        String next;
+        try {
+            next = shardedLister.read(query, cursor, count, count, new UserStreamHandler() {
+                @Override
+                public void start(int totalResults) {
+                }
+
+                @Override
+                public void user(String userId, String firstName, String lastName, String userName, boolean active) {
+                    users.add(newListedUser(userId, firstName, lastName, userName, active));
+                }
+            });
+        } catch (IOException ex) {
+            //the users are only added to the list
+            throw new IllegalStateException(ex);
+        }
+        if (userPageCache != null && next != null) {
+            userPageCache.put(query.getKey(), startIndex + count, next);
+        }
+        return users;
+    }
+
+    /**
+     * Build a user of a listing, without its password.
+     */
+    private static SCIMUser newListedUser(String userId, String firstName, String lastName, String userName, boolean active) {
+        SCIMUser user = new SCIMUser();
+        user.setId(userId);
+        user.setName(new Name(firstName, lastName, null));
+        user.setUserName(userName);
+        user.setActive(active);
+        user.setCustomStringValue(USER_CUSTOM_URN, CUSTOM_SCHEMA_PROPERTY_NAME_UNIQUE_ID, userId);
+        return user;
+    }
+
+    /**
+     * Find the userid a page follows, from the nearest page boundary the cache knows.
+     *
+     * @param startIndex the 1 based start index of the page
+     * @return the userid, the empty string for the start of the listing, or null when the start index is past the last
+     * user
+     */
+    private String findPageStart(Connection conn, UserQuery query, long startIndex) throws SQLException {
+        UserPageCache.Boundary boundary = userPageCache == null ? null : userPageCache.floor(query.getKey(), startIndex);
+        if (boundary != null && shardedLister != null && !shardedLister.isCurrent(boundary.getAfterUserId())) {
+            boundary = null;
+        }
+        long knownIndex = boundary == null ? 1 : boundary.getStartIndex();
+        String afterUserId = boundary == null ? "" : boundary.getAfterUserId();
+        if (knownIndex < startIndex) {
+            afterUserId = skipUsers(conn, query, afterUserId, startIndex - knownIndex);
+            if (afterUserId != null && userPageCache != null) {
+                userPageCache.put(query.getKey(), startIndex, afterUserId);
+            }
+        }
+        return afterUserId;
+    }
+
+    /**
+     * Skip over users by reading the userid index only. This is an OFFSET scan, it costs the number of skipped users.
+     *
+     * @param afterUserId the userid to skip from, the empty string for the start of the listing
+     * @param skipped     the number of users to skip
+     * @return the userid of the last skipped user, or null when there are not that many users
+     */
+    private String skipUsers(Connection conn, UserQuery query, String afterUserId, long skipped) throws SQLException {
+        if (shardedLister != null) {
+            return shardedLister.skip(query, afterUserId, skipped, maxPageSize);
+        }
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement(dialect.offsetLimit(query.toPageSql("userid")));
+            int index = query.bind(stmt);
+            stmt.setString(index++, afterUserId);
+            dialect.bindOffsetLimit(stmt, index, skipped - 1, 1);
+            rs = stmt.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } finally {
+            cleanupConnection(stmt, rs, null);
+        }
+    }
+
+
+    /*
+    * Encrypt the string using Sha256 cert
+     */
+
+    private static String bytesToHex(byte[] hash) {
+        StringBuffer hexString = new StringBuffer();
+        for (int i = 0; i < hash.length; i++) {
+            String hex = Integer.toHexString(0xff & hash[i]);
+            if(hex.length() == 1) hexString.append('0');
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+    /**
+     * Here is one PasswordCapture of what might need to be done when your database does not generate the unique record ids for you.
+     * It will throw a DuplicateGroupException when the group name is not going to be unique. Because of the schema we are
+     * working with we cannot just create a UUID/GUID and use that as our unique value.
+     * <p/>
+     * This is NOT a perfect PasswordCapture, it is not thread safe or guaranteed to work if you have multiple connectors or applications
+     * talking to the same database.
+     *
+     * @param //displayName group name
+     * @return new unique group id to use
+     */
+    /**
+     * Write an update of a single user in its own transaction.
+     *
+     * @param id     the id of the SCIM user, for error messages
+     * @param update the columns to write
+     * @return false when the update is guarded by a password fingerprint that did not match
+     */
+    private boolean writeUserUpdate(String id, UserUpdate update) throws OnPremUserManagementException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        Connection conn = null;
+
+        try {
+            //get a new connection and start a new transaction
+            conn = getDatabaseConnection(update.getUserId());
+            conn.setAutoCommit(false);
+
+            //build statement
+            stmt = conn.prepareStatement(update.toSql());
+            update.bind(stmt);
+
+            int affectedRows = stmt.executeUpdate();
+            if (affectedRows == 0 && update.isGuarded()) {
+                conn.rollback();
+                return false;
+            }
+            if (affectedRows != 1) {
+                throw new OnPremUserManagementException("UPDATE_USER_FAILED", "Updating user " + id + " failed, expected 1 row affected but " + affectedRows + " rows affected.");
+            }
+
+            //NOTE: user.groupsGroups() is considered READ-ONLY according to the SCIM Spec
+            // http://www.simplecloud.info/specs/draft-scim-core-schema-01.html#anchor4
+            // Okta will serialize the user's group membership information for your reference but you should not
+            // update the group membership from it. That should only happen through calls to createGroup or updateGroup
+
+            //commit and save
+            conn.commit();
+        } catch (SQLException ex) {
+            handleSQLException("updateUser", ex, "UPDATE_USER_FAILED_EXCEPTION", conn);
+        }  finally {
+            cleanupConnection(stmt, rs, conn);
+        }
+        return true;
+    }
+
+    /**
+     * Get the stored row of a user, from the cache when it holds the row. A row read from the database is cached.
+     *
+     * @param id       the user id
+     * @param readOnly whether the row may be read from a replica, never for a row a write is based on
+     * @return the row, or null when there is no such user
+     */
+    private UserCache.CachedUser loadUser(final String id, final boolean readOnly) throws SQLException, OnPremUserManagementException {
+        UserCache.CachedUser cached = userCache == null ? null : userCache.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        final long cacheToken = userCache == null ? 0 : userCache.beginLoad();
+        return guard("getUser", true, new CircuitBreaker.Call<UserCache.CachedUser, SQLException>() {
+            @Override
+            public UserCache.CachedUser call() throws SQLException {
+                return readUserRow(id, readOnly, cacheToken);
+            }
+        });
+    }
+
+    /**
+     * Read the row of a user from the database, see {@link #loadUser(String, boolean)}.
+     *
+     * @param cacheToken the token of the cache load the row is put with
+     */
+    private UserCache.CachedUser readUserRow(String id, boolean readOnly, long cacheToken) throws SQLException, OnPremUserManagementException {
+        UserCache.CachedUser cached;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        Connection conn = null;
+        try {
+            conn = readOnly && replicaRouter != null ? replicaRouter.getConnection(id) : null;
+            boolean fromReplica = conn != null;
+            if (conn == null) {
+                conn = getDatabaseConnection(id);
+            }
+
+            //password_hmac only exists once password fingerprints are set up
+            String query = "SELECT first_name,last_name,user_name,password," + (passwordFingerprint == null ? "NULL" : "password_hmac")
+                    + ",is_active FROM okta_users WHERE userid=?";
+            stmt = conn.prepareStatement(query);
+            stmt.setString(1, id);
+            rs = stmt.executeQuery();
+
+            if (!rs.next()) {
+                return null;
+            }
+            cached = new UserCache.CachedUser(rs.getString(1), rs.getString(2), rs.getString(3), rs.getBytes(4),
+                    rs.getBytes(5), rs.getBoolean(6));
+            //a replica may lag behind, only rows read from the primary are cached for the change detection of updateUser
+            if (userCache != null && !fromReplica) {
+                userCache.put(id, cached, cacheToken);
+            }
+            return cached;
+        } finally {
+            cleanupConnection(stmt, rs, conn);
+        }
+    }
+
+    /**
+     * Write the columns of a push that differ from the stored row, or nothing when the push changes nothing.
+     *
+     * @param id          the id of the SCIM user, for error messages
+     * @param userId      the immutable id of the user
+     * @param user        the pushed user
+     * @param row         the stored row
+     * @param fingerprint the fingerprint of the pushed password, null when no password is pushed or fingerprints are off
+     * @return false when the stored password changed since the row was read, nothing was written
+     */
+    private boolean writeChangedColumns(String id, String userId, SCIMUser user, UserCache.CachedUser row, byte[] fingerprint)
+            throws OnPremUserManagementException {
+        UserUpdate update = newUserUpdate(userId, user);
+        changeDetector.removeUnchanged(update, row);
+
+        boolean passwordStored = fingerprint != null && Arrays.equals(fingerprint, row.getPasswordHmac());
+        if (user.isActive() && user.getPassword() != null && !passwordStored) {
+            update.setPassword(encryptPassword(userId, user.getPassword()));
+            update.setPasswordHmac(fingerprint);
+            if (fingerprint != null) {
+                passwordFingerprint.recordPasswordWrite();
+            }
+        }
+
+        if (update.isEmpty()) {
+            changeDetector.recordSuppressedUpdate();
+        } else {
+            if (passwordStored) {
+                //the other columns are only written while the stored password is still the pushed one
+                update.setExpectedPasswordHmac(fingerprint);
+            }
+            if (!saveUserUpdate(id, update)) {
+                return false;
+            }
+            invalidateCachedUser(userId);
+        }
+        if (passwordStored) {
+            passwordFingerprint.recordSkippedWrite();
+        }
+        return true;
+    }
+
+    /**
+     * Build the update of the profile columns pushed with a user, the password columns are set by the caller.
+     *
+     * @param userId the immutable id of the user
+     * @param user   the pushed user
+     * @return the update
+     */
+    private UserUpdate newUserUpdate(String userId, SCIMUser user) {
+        UserUpdate update = new UserUpdate(userId);
+        if (user.isActive()) {
+            update.setFirstName(user.getName().getFirstName());
+            update.setLastName(user.getName().getLastName());
+            update.setUserName(user.getUserName());
+            update.setActive(user.isActive());
+        } else {
+            update.setActive(user.isActive());
+        }
+        return update;
+    }
+
+    /**
+     * Encrypt a pushed password, failing the update when it cannot be encrypted. Writing the fingerprint without the
+     * password would make every later push of the same password look already stored.
+     *
+     * @param userId   the immutable id of the user, for error messages
+     * @param password the pushed password
+     * @return the encrypted password
+     */
+    private static byte[] encryptPassword(String userId, String password) throws OnPremUserManagementException {
+        byte[] cipherText = EncryptionUtil.encrypt(password);
+        if (cipherText == null) {
+            throw new OnPremUserManagementException("UPDATE_USER_FAILED", "Unable to encrypt the password of user " + userId);
+        }
+        return cipherText;
+    }
+
+    /**
+     * Write an update, behind in a batch when write-behind updates are on.
+     *
+     * @param id     the id of the SCIM user, for error messages
+     * @param update the columns to write
+     * @return false when the update is guarded by a password fingerprint that did not match
+     */
+    private boolean saveUserUpdate(String id, UserUpdate update) throws OnPremUserManagementException {
+        if (updateBatcher != null) {
+            //write-behind mode, this blocks until the batch holding the update has been committed
+            return updateBatcher.submit(update);
+        }
+        return writeUserUpdate(id, update);
+    }
+
+    /**
+     * Drop a user written by createUser or updateUser from the getUser cache, and read it from the primary until the
+     * replicas caught up with the write.
+     *
+     * @param id the user id
+     */
+    private void invalidateCachedUser(String id) {
+        if (userCache != null) {
+            userCache.invalidate(id);
+        }
+        if (replicaRouter != null) {
+            replicaRouter.recordWrite(id);
+        }
+    }
+
+    /**
+     * Run a database call through the circuit breaker, or straight away when there is none.
+     */
+    private <T, E extends Exception> T guard(String operation, boolean retryable, CircuitBreaker.Call<T, E> call) throws E {
+        return circuitBreaker == null ? call.call() : circuitBreaker.execute(operation, retryable, call);
+    }
+
+    /**
+     * get the value of immutableId from user request
+     *
+     * @param user
+     * @return the String Value of id attribute
+     */
+    private String getImmutableId(SCIMUser user){
 
         //Get the custom properties map (SchemaName -> JsonNode)
         Map<String, JsonNode> customPropertiesMap = user.getCustomPropertiesMap();
@@ -734,15 +1667,29 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
 
     }
 
+    /**
+     * Tells whether okta_users has the password_hmac column the password fingerprints are stored in.
+     */
+    private boolean hasPasswordHmacColumn() throws OnPremUserManagementException {
+        Connection conn = getDatabaseConnection();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT password_hmac FROM okta_users WHERE 1=0");
+            return true;
+        } catch (SQLException ex) {
+            LOGGER.debug("Unable to read the password_hmac column - " + ex.getMessage());
+            return false;
+        } finally {
+            cleanupConnection(stmt, rs, conn);
+        }
+    }
+
     private Connection getDatabaseConnection() throws OnPremUserManagementException {
         Connection conn;
         try {
-
-            if (databaseType.equalsIgnoreCase("sqlserver")){
-                conn = DriverManager.getConnection(connectionString);
-            } else {
-                conn = DriverManager.getConnection(connectionString, this.userName, this.password);
-            }
+            conn = connectionPool.getConnection();
         } catch (Exception ex) {
             LOGGER.error("Unable to connect to " + connectionString + " as " + this.userName + " - " + ex.getMessage(), ex);
             throw new OnPremUserManagementException("DB_CONNECTION_FAILED", ex.getMessage(), ex);
@@ -750,6 +1697,31 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
         return conn;
     }
 
+    /**
+     * Get a connection to the database holding a user, its shard when okta_users is sharded.
+     *
+     * @param userId the immutable id of the user
+     */
+    private Connection getDatabaseConnection(String userId) throws OnPremUserManagementException {
+        if (shardRouter == null) {
+            return getDatabaseConnection();
+        }
+        try {
+            return shardRouter.getConnection(userId);
+        } catch (SQLException ex) {
+            LOGGER.error("Unable to connect to the shard of user " + userId + " - " + ex.getMessage(), ex);
+            throw new OnPremUserManagementException("DB_CONNECTION_FAILED", ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Get a connection for a listing, to a replica when one is in rotation.
+     */
+    private Connection getReadConnection() throws OnPremUserManagementException {
+        Connection conn = replicaRouter == null ? null : replicaRouter.getConnection(null);
+        return conn != null ? conn : getDatabaseConnection();
+    }
+
     private void cleanupConnection(Statement stmt, ResultSet rs, Connection conn) {
         if (rs != null) {
             try {
@@ -769,6 +1741,7 @@ public class PasswordCaptureSCIMServiceImpl implements SCIMService {
 
         if (conn != null) {
             try {
+                //returns the connection to the pool
                 conn.close();
             } catch (SQLException sqlEx) {
                 LOGGER.error("Unable cleanup and close the db connection", sqlEx);
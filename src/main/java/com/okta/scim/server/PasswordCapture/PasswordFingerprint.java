@@ -0,0 +1,165 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keyed HMAC-SHA256 fingerprints of the captured passwords, stored in <code>okta_users.password_hmac</code> next to the
+ * encrypted password.
+ * <p>
+ * Okta pushes the same password again on retries and with profile updates. <code>updateUser</code> first writes such a
+ * push without the password columns, guarded by <code>password_hmac = ?</code> with the fingerprint of the pushed
+ * password. When the guard matches, the password is already stored and neither the encryption nor the BLOB write
+ * happen. When it does not, because the password changed or the row predates the fingerprints, the password is
+ * encrypted and written with its fingerprint as before.
+ * <p>
+ * The fingerprint is keyed with a random secret, so it cannot be brute forced from the database alone, and it covers
+ * the userid, so two users with the same password do not share a fingerprint. The secret is generated on the first
+ * start into <code>fingerprint.key</code> in the key directory, connectors sharing the key directory share it. It is
+ * not rotated with the key pair: the fingerprint only depends on the password, not on how it is encrypted.
+ *
+ * @author praven Atluri
+ */
+public class PasswordFingerprint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PasswordFingerprint.class);
+
+    private static final String HMAC = "HmacSHA256";
+    private static final int SECRET_LENGTH = 32;
+    private static final String KEY_FILE = "fingerprint.key";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    //Fingerprint configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private String keyFile;
+
+    private volatile SecretKeySpec secret;
+
+    /**
+     * Per thread MAC, initialised once with the secret.
+     */
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    private final AtomicLong skippedWrites = new AtomicLong();
+    private final AtomicLong passwordWrites = new AtomicLong();
+
+    /**
+     * Load the secret, generating it on the first start.
+     *
+     * @param keyDirectory The key directory, used when no <code>keyFile</code> is set.
+     */
+    public void start(File keyDirectory) throws IOException {
+        File file = (keyFile == null ? new File(keyDirectory, KEY_FILE) : new File(keyFile)).getAbsoluteFile();
+        if (!file.exists()) {
+            file.getParentFile().mkdirs();
+            byte[] generated = new byte[SECRET_LENGTH];
+            new SecureRandom().nextBytes(generated);
+            File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try {
+                Files.write(tempFile.toPath(), generated);
+                //never replaces the secret of a connector that generated it first
+                Files.move(tempFile.toPath(), file.toPath());
+                LOGGER.info("Generated the password fingerprint secret " + file);
+            } catch (FileAlreadyExistsException ex) {
+                LOGGER.info("Using the password fingerprint secret generated by another connector");
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < SECRET_LENGTH) {
+            throw new IOException("The password fingerprint secret " + file + " is shorter than " + SECRET_LENGTH + " bytes");
+        }
+        secret = new SecretKeySpec(bytes, HMAC);
+    }
+
+    /**
+     * Get the fingerprint of a user's password.
+     *
+     * @param userId   The userid.
+     * @param password The plain text password.
+     * @return The 32 byte fingerprint.
+     */
+    public byte[] fingerprint(String userId, String password) throws GeneralSecurityException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            if (secret == null) {
+                throw new IllegalStateException("The password fingerprint secret is not loaded");
+            }
+            mac = Mac.getInstance(HMAC);
+            mac.init(secret);
+            macs.set(mac);
+        }
+        mac.update(userId.getBytes(CHARSET));
+        //separates the userid from the password, a userid never contains a NUL
+        mac.update((byte) 0);
+        return mac.doFinal(password.getBytes(CHARSET));
+    }
+
+    /**
+     * Count a push whose password was already stored.
+     */
+    void recordSkippedWrite() {
+        skippedWrites.incrementAndGet();
+    }
+
+    /**
+     * Count a push whose password was encrypted and written.
+     */
+    void recordPasswordWrite() {
+        passwordWrites.incrementAndGet();
+    }
+
+    /**
+     * Get the number of pushes that found their password already stored and skipped the encryption and write.
+     *
+     * @return The skipped write count.
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    /**
+     * Get the number of pushes that encrypted and wrote their password.
+     *
+     * @return The password write count.
+     */
+    public long getPasswordWrites() {
+        return passwordWrites.get();
+    }
+
+    /**
+     * Get the share of password pushes that skipped the encryption and write.
+     *
+     * @return The skip ratio between 0 and 1.
+     */
+    public double getSkipRatio() {
+        long skipped = skippedWrites.get();
+        long total = skipped + passwordWrites.get();
+        return total == 0 ? 0 : (double) skipped / total;
+    }
+
+    /**
+     * Set the file of the fingerprint secret, <code>fingerprint.key</code> in the key directory by default. A file that
+     * does not exist is generated.
+     *
+     * @param keyFile The secret file to set.
+     */
+    public void setKeyFile(String keyFile) {
+        this.keyFile = keyFile;
+    }
+}
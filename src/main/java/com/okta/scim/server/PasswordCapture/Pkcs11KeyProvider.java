@@ -0,0 +1,94 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * Reads the key pair from a PKCS#11 token through the SunPKCS11 provider, so the private key never leaves the token.
+ * <p>
+ * <code>configFile</code> is a SunPKCS11 configuration file, for a local SoftHSM token for example:
+ * <pre>
+ * name = SoftHSM
+ * library = /usr/lib/softhsm/libsofthsm2.so
+ * slotListIndex = 0
+ * </pre>
+ * The key pair is provisioned with <code>keytool -genkeypair -keyalg RSA -keysize 2048 -alias okta-password
+ * -keystore NONE -storetype PKCS11 -providerClass sun.security.pkcs11.SunPKCS11 -providerArg softhsm.cfg</code>, and
+ * <code>password</code> is the user PIN of the token.
+ *
+ * @author praven Atluri
+ */
+public class Pkcs11KeyProvider extends KeyStoreKeyProvider {
+
+    //Token configuration, this property is set via the Spring dispatcher-servlet.xml file
+    private String configFile;
+
+    private Provider provider;
+
+    @Override
+    protected synchronized KeyStore loadKeyStore(char[] password) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS11", getProvider());
+        keyStore.load(null, password);
+        return keyStore;
+    }
+
+    @Override
+    public Object getVersion() {
+        //keys on the token only change through a restart
+        return configFile;
+    }
+
+    @Override
+    public File getKeyDirectory() {
+        return new File(configFile).getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Get the SunPKCS11 provider of the token, creating and registering it on first use. It is registered so that
+     * {@link javax.crypto.Cipher} selects it for the token's private key handles.
+     */
+    private Provider getProvider() throws GeneralSecurityException {
+        if (provider != null) {
+            return provider;
+        }
+        if (configFile == null) {
+            throw new IllegalStateException("The configFile of the PKCS#11 key provider is not set");
+        }
+        try {
+            Method configure;
+            try {
+                configure = Provider.class.getMethod("configure", String.class);
+            } catch (NoSuchMethodException ex) {
+                configure = null;
+            }
+            if (configure != null) {
+                //Java 9 and later configure a copy of the registered provider
+                provider = (Provider) configure.invoke(Security.getProvider("SunPKCS11"), configFile);
+            } else {
+                //Java 8 takes the configuration file in the constructor
+                provider = (Provider) Class.forName("sun.security.pkcs11.SunPKCS11").getConstructor(String.class).newInstance(configFile);
+            }
+        } catch (Exception ex) {
+            throw new GeneralSecurityException("Unable to load the PKCS#11 token configured in " + configFile, ex);
+        }
+        Security.addProvider(provider);
+        return provider;
+    }
+
+    /**
+     * Set the path of the SunPKCS11 configuration file.
+     *
+     * @param configFile The path to set.
+     */
+    public void setConfigFile(String configFile) {
+        this.configFile = configFile;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Reads the key pair from a PKCS#12 key store file, for example one created with
+ * <code>keytool -genkeypair -keyalg RSA -keysize 2048 -alias okta-password -storetype PKCS12 -keystore keys.p12</code>.
+ *
+ * @author praven Atluri
+ */
+public class Pkcs12KeyProvider extends KeyStoreKeyProvider {
+
+    //Key store configuration, this property is set via the Spring dispatcher-servlet.xml file
+    private String keyStoreFile;
+
+    @Override
+    protected KeyStore loadKeyStore(char[] password) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(getKeyStoreFile());
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+        return keyStore;
+    }
+
+    @Override
+    public Object getVersion() {
+        return getKeyStoreFile().lastModified();
+    }
+
+    @Override
+    public File getKeyDirectory() {
+        return getKeyStoreFile().getParentFile();
+    }
+
+    private File getKeyStoreFile() {
+        if (keyStoreFile == null) {
+            throw new IllegalStateException("The keyStoreFile of the PKCS#12 key provider is not set");
+        }
+        return new File(keyStoreFile).getAbsoluteFile();
+    }
+
+    /**
+     * Set the path of the PKCS#12 file.
+     *
+     * @param keyStoreFile The path to set.
+     */
+    public void setKeyStoreFile(String keyStoreFile) {
+        this.keyStoreFile = keyStoreFile;
+    }
+}
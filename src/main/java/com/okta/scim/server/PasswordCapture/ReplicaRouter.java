@@ -0,0 +1,388 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the read-only calls, <code>getUser</code> and <code>getUsers</code>, to read replicas of the database, so that
+ * the primary only serves the writes.
+ * <p>
+ * Every replica has its own {@link ConnectionPool}, configured in the Spring dispatcher-servlet.xml file with the url
+ * and credentials of the replica. Reads are spread over the replicas round robin. Every
+ * <code>lagCheckIntervalMillis</code> the replication lag of each replica is read with <code>lagQuery</code>; a replica
+ * lagging more than <code>maxLagSeconds</code>, not replicating, or not answering is ejected until it has caught up
+ * again. With no replica in rotation every read goes to the primary.
+ * <p>
+ * A user written through this connector is read from the primary for <code>readYourWritesMillis</code> afterwards, so
+ * that Okta reading back a user it just created or updated never sees the row from before the write. The window should
+ * be longer than <code>maxLagSeconds</code> plus <code>lagCheckIntervalMillis</code>. The window is kept per connector:
+ * connectors behind a load balancer only know their own writes.
+ *
+ * @author praven Atluri
+ */
+public class ReplicaRouter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    //Router configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private List<ConnectionPool> replicas = Collections.emptyList();
+    private long maxLagSeconds = 5;
+    private long lagCheckIntervalMillis = 5000;
+    private long readYourWritesMillis = 15000;
+    private String lagQuery = "SHOW SLAVE STATUS";
+    private String lagColumn = "Seconds_Behind_Master";
+    private int lagQueryTimeoutSeconds = 2;
+
+    private final List<Replica> rotation = new ArrayList<Replica>();
+    private final AtomicInteger next = new AtomicInteger();
+    //the time of the last write of each recently written userid
+    private final Map<String, Long> recentWrites = new ConcurrentHashMap<String, Long>();
+    private ScheduledExecutorService checker;
+
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong primaryReads = new AtomicLong();
+    private final AtomicLong readYourWritesReads = new AtomicLong();
+    private final AtomicLong ejections = new AtomicLong();
+
+    /**
+     * A replica and whether it is in rotation.
+     */
+    private static final class Replica {
+        private final ConnectionPool pool;
+        private volatile boolean healthy;
+        private volatile long lagSeconds = -1;
+
+        private Replica(ConnectionPool pool) {
+            this.pool = pool;
+        }
+    }
+
+    /**
+     * Start the replica pools, check their lag once and start the lag checker. A replica that cannot be reached is
+     * left out of rotation, it does not stop the connector from starting.
+     */
+    public void start() {
+        for (ConnectionPool pool : replicas) {
+            if (pool.getUrl() == null) {
+                throw new IllegalStateException("Every replica connection pool needs its url");
+            }
+            Replica replica = new Replica(pool);
+            try {
+                pool.start();
+            } catch (SQLException ex) {
+                LOGGER.error("Unable to connect to the replica " + pool.getUrl() + ", it is left out until it answers", ex);
+            }
+            rotation.add(replica);
+        }
+        if (rotation.isEmpty()) {
+            return;
+        }
+        checkReplicas();
+
+        checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "replica-lag-checker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkReplicas();
+            }
+        }, lagCheckIntervalMillis, lagCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the lag checker and close the replica pools.
+     */
+    public void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        for (Replica replica : rotation) {
+            replica.pool.close();
+        }
+    }
+
+    /**
+     * Get a connection to a replica for a read.
+     *
+     * @param userId The userid the read is for, null for a listing.
+     * @return The connection, or null when the read has to go to the primary: the user was written within
+     * <code>readYourWritesMillis</code>, or no replica is in rotation.
+     */
+    public Connection getConnection(String userId) {
+        if (userId != null) {
+            Long writtenAt = recentWrites.get(userId);
+            if (writtenAt != null && System.currentTimeMillis() - writtenAt < readYourWritesMillis) {
+                readYourWritesReads.incrementAndGet();
+                return null;
+            }
+        }
+
+        int size = rotation.size();
+        int first = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Replica replica = rotation.get((first + i) % size);
+            if (!replica.healthy) {
+                continue;
+            }
+            try {
+                Connection conn = replica.pool.getConnection();
+                replicaReads.incrementAndGet();
+                return conn;
+            } catch (SQLException ex) {
+                eject(replica, "it refused a connection: " + ex.getMessage());
+            }
+        }
+        primaryReads.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Send the reads of a user to the primary for <code>readYourWritesMillis</code>.
+     *
+     * @param userId The userid that was written.
+     */
+    public void recordWrite(String userId) {
+        recentWrites.put(userId, System.currentTimeMillis());
+    }
+
+    /**
+     * Read the lag of every replica, ejecting the ones that fell behind and taking back the ones that caught up.
+     */
+    private void checkReplicas() {
+        for (Replica replica : rotation) {
+            try {
+                long lag = readLag(replica.pool);
+                replica.lagSeconds = lag;
+                if (lag < 0) {
+                    eject(replica, "it is not replicating");
+                } else if (lag > maxLagSeconds) {
+                    eject(replica, "it is " + lag + " seconds behind");
+                } else if (!replica.healthy) {
+                    replica.healthy = true;
+                    LOGGER.info("The replica " + replica.pool.getUrl() + " is back in rotation, " + lag + " seconds behind");
+                }
+            } catch (SQLException ex) {
+                replica.lagSeconds = -1;
+                eject(replica, "its lag cannot be read: " + ex.getMessage());
+            }
+        }
+
+        //forget the writes whose window has passed
+        long expiredBefore = System.currentTimeMillis() - readYourWritesMillis;
+        Iterator<Long> it = recentWrites.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() < expiredBefore) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Read the replication lag of a replica.
+     *
+     * @return The lag in seconds, or -1 when the replica is not replicating.
+     */
+    private long readLag(ConnectionPool pool) throws SQLException {
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = pool.getConnection();
+            stmt = conn.createStatement();
+            stmt.setQueryTimeout(lagQueryTimeoutSeconds);
+            rs = stmt.executeQuery(lagQuery);
+            if (!rs.next()) {
+                return -1;
+            }
+            long lag = lagColumn == null || lagColumn.isEmpty() ? rs.getLong(1) : rs.getLong(lagColumn);
+            //a NULL lag means the replication threads are stopped
+            return rs.wasNull() ? -1 : lag;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException ex) {
+                    LOGGER.debug("Unable to close the lag result set: " + ex.getMessage());
+                }
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException ex) {
+                    LOGGER.debug("Unable to close the lag statement: " + ex.getMessage());
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException ex) {
+                    LOGGER.debug("Unable to return the replica connection: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void eject(Replica replica, String reason) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            ejections.incrementAndGet();
+            LOGGER.warn("The replica " + replica.pool.getUrl() + " is out of rotation, " + reason);
+        }
+    }
+
+    /**
+     * Get the number of reads sent to a replica.
+     *
+     * @return The replica read count.
+     */
+    public long getReplicaReads() {
+        return replicaReads.get();
+    }
+
+    /**
+     * Get the number of reads sent to the primary because no replica was in rotation.
+     *
+     * @return The primary read count.
+     */
+    public long getPrimaryReads() {
+        return primaryReads.get();
+    }
+
+    /**
+     * Get the number of reads sent to the primary because the user was written moments before.
+     *
+     * @return The read your writes count.
+     */
+    public long getReadYourWritesReads() {
+        return readYourWritesReads.get();
+    }
+
+    /**
+     * Get the number of times a replica was taken out of rotation.
+     *
+     * @return The ejection count.
+     */
+    public long getEjections() {
+        return ejections.get();
+    }
+
+    /**
+     * Get the number of replicas in rotation.
+     *
+     * @return The healthy replica count.
+     */
+    public int getHealthyReplicas() {
+        int healthy = 0;
+        for (Replica replica : rotation) {
+            if (replica.healthy) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Get the highest replication lag last read, over the replicas in rotation.
+     *
+     * @return The lag in seconds, or -1 when no replica is in rotation.
+     */
+    public long getMaxLagSeconds() {
+        long max = -1;
+        for (Replica replica : rotation) {
+            if (replica.healthy) {
+                max = Math.max(max, replica.lagSeconds);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Set the connection pools of the replicas, each with the url and credentials of its replica.
+     *
+     * @param replicas The replica pools to set.
+     */
+    public void setReplicas(List<ConnectionPool> replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * Set the replication lag above which a replica is taken out of rotation.
+     *
+     * @param maxLagSeconds The maximum lag in seconds to set.
+     */
+    public void setMaxLagSeconds(long maxLagSeconds) {
+        this.maxLagSeconds = maxLagSeconds;
+    }
+
+    /**
+     * Set how often the replication lag of the replicas is read.
+     *
+     * @param lagCheckIntervalMillis The interval in milliseconds to set.
+     */
+    public void setLagCheckIntervalMillis(long lagCheckIntervalMillis) {
+        this.lagCheckIntervalMillis = lagCheckIntervalMillis;
+    }
+
+    /**
+     * Set how long a user is read from the primary after it was written.
+     *
+     * @param readYourWritesMillis The window in milliseconds to set.
+     */
+    public void setReadYourWritesMillis(long readYourWritesMillis) {
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    /**
+     * Set the query reading the replication lag in seconds, SHOW SLAVE STATUS by default. No row or a NULL lag means
+     * the replica is not replicating.
+     *
+     * @param lagQuery The lag query to set.
+     */
+    public void setLagQuery(String lagQuery) {
+        this.lagQuery = lagQuery;
+    }
+
+    /**
+     * Set the column of the lag query holding the lag, Seconds_Behind_Master by default. Empty for the first column.
+     *
+     * @param lagColumn The lag column to set.
+     */
+    public void setLagColumn(String lagColumn) {
+        this.lagColumn = lagColumn;
+    }
+
+    /**
+     * Set the timeout of the lag query.
+     *
+     * @param lagQueryTimeoutSeconds The timeout in seconds to set.
+     */
+    public void setLagQueryTimeoutSeconds(int lagQueryTimeoutSeconds) {
+        this.lagQueryTimeoutSeconds = lagQueryTimeoutSeconds;
+    }
+}
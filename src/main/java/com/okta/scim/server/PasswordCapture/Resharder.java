@@ -0,0 +1,285 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background copy of the users whose shard changes from the current layout of a {@link ShardRouter} to its target
+ * layout.
+ * <p>
+ * Every current shard is read in userid order, <code>batchSize</code> users at a time. The users of a batch that belong
+ * to another shard in the target layout are upserted there and then deleted from their old shard, with the calls of
+ * single users excluded for the duration of the batch, so a user is always on exactly one shard when a call looks it
+ * up. A failure between the upsert and the delete leaves the user on its old shard, where its calls keep going, and
+ * the next run copies it again. Once every shard was read the router switches to the target layout.
+ *
+ * @author praven Atluri
+ */
+public class Resharder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Resharder.class);
+
+    private final ShardRouter router;
+    private final SqlDialect dialect;
+    private final boolean copyPasswordHmac;
+    private final UserPageCache userPageCache;
+    private final int batchSize;
+    private final long pauseMillis;
+
+    private volatile String state = "idle";
+    private volatile boolean stopping;
+    private Thread thread;
+
+    private final AtomicLong scannedUsers = new AtomicLong();
+    private final AtomicLong movedUsers = new AtomicLong();
+
+    /**
+     * A row being moved.
+     */
+    private static final class Row {
+        private String userId;
+        private String firstName;
+        private String lastName;
+        private String userName;
+        private byte[] password;
+        private byte[] passwordHmac;
+        private boolean active;
+    }
+
+    Resharder(ShardRouter router, SqlDialect dialect, boolean copyPasswordHmac, UserPageCache userPageCache,
+              int batchSize, long pauseMillis) {
+        this.router = router;
+        this.dialect = dialect;
+        this.copyPasswordHmac = copyPasswordHmac;
+        this.userPageCache = userPageCache;
+        this.batchSize = Math.max(1, batchSize);
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Start the copy in the background.
+     *
+     * @return false when it is already running.
+     */
+    synchronized boolean start() {
+        if (thread != null && thread.isAlive()) {
+            return false;
+        }
+        stopping = false;
+        state = "running";
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                copy();
+            }
+        }, "shard-resharder");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stop the copy after the batch in progress.
+     */
+    synchronized void stop() {
+        stopping = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void copy() {
+        try {
+            ShardRouter.Layout layout = router.getLayout();
+            for (String source : layout.getRing().getNames()) {
+                LOGGER.info("Resharding the users of " + source);
+                String afterUserId = "";
+                while (afterUserId != null) {
+                    if (stopping) {
+                        state = "idle";
+                        LOGGER.info("Resharding stopped, " + movedUsers.get() + " users moved");
+                        return;
+                    }
+                    afterUserId = copyBatch(source, afterUserId, layout);
+                    if (pauseMillis > 0) {
+                        Thread.sleep(pauseMillis);
+                    }
+                }
+            }
+            router.completeResharding();
+            if (userPageCache != null) {
+                //the listing cursors hold a position per shard
+                userPageCache.clear();
+            }
+            state = "complete";
+        } catch (InterruptedException ex) {
+            state = "idle";
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            state = "failed";
+            LOGGER.error("Resharding failed after moving " + movedUsers.get() + " users, start it again to carry on", ex);
+        }
+    }
+
+    /**
+     * Move the users of one batch of a shard that belong elsewhere.
+     *
+     * @return The userid to read the next batch after, or null when the shard was read to its end.
+     */
+    private String copyBatch(String source, String afterUserId, ShardRouter.Layout layout) throws SQLException {
+        router.getMoveLock().writeLock().lock();
+        Connection conn = null;
+        try {
+            conn = router.getShardConnection(source);
+            conn.setAutoCommit(false);
+
+            List<Row> rows = readBatch(conn, afterUserId);
+            scannedUsers.addAndGet(rows.size());
+
+            Map<String, List<Row>> moves = new LinkedHashMap<String, List<Row>>();
+            for (Row row : rows) {
+                String target = layout.getTarget().owner(row.userId);
+                if (!target.equals(source)) {
+                    List<Row> moving = moves.get(target);
+                    if (moving == null) {
+                        moving = new ArrayList<Row>();
+                        moves.put(target, moving);
+                    }
+                    moving.add(row);
+                }
+            }
+
+            for (Map.Entry<String, List<Row>> move : moves.entrySet()) {
+                writeRows(move.getKey(), move.getValue());
+            }
+            //only once the new shards committed, a failure before leaves the users where they were
+            for (List<Row> moved : moves.values()) {
+                deleteRows(conn, moved);
+                movedUsers.addAndGet(moved.size());
+            }
+            conn.commit();
+
+            return rows.size() < batchSize ? null : rows.get(rows.size() - 1).userId;
+        } finally {
+            if (conn != null) {
+                //rolls back an uncommitted delete
+                conn.close();
+            }
+            router.getMoveLock().writeLock().unlock();
+        }
+    }
+
+    private List<Row> readBatch(Connection conn, String afterUserId) throws SQLException {
+        List<Row> rows = new ArrayList<Row>(batchSize);
+        PreparedStatement stmt = conn.prepareStatement(dialect.limit(
+                "SELECT userid,first_name,last_name,user_name,password," + (copyPasswordHmac ? "password_hmac" : "NULL")
+                        + ",is_active FROM okta_users WHERE userid > ? ORDER BY userid"));
+        try {
+            stmt.setString(1, afterUserId);
+            stmt.setInt(2, batchSize);
+            ResultSet rs = stmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    Row row = new Row();
+                    row.userId = rs.getString(1);
+                    row.firstName = rs.getString(2);
+                    row.lastName = rs.getString(3);
+                    row.userName = rs.getString(4);
+                    row.password = rs.getBytes(5);
+                    row.passwordHmac = rs.getBytes(6);
+                    row.active = rs.getBoolean(7);
+                    rows.add(row);
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Upsert rows into their new shard, committed before they are deleted from the old one.
+     */
+    private void writeRows(String target, List<Row> rows) throws SQLException {
+        Connection conn = router.getShardConnection(target);
+        try {
+            conn.setAutoCommit(false);
+            int maxRows = dialect.getMaxRowsPerStatement();
+            for (int from = 0; from < rows.size(); from += maxRows) {
+                List<Row> chunk = rows.subList(from, Math.min(rows.size(), from + maxRows));
+                PreparedStatement stmt = conn.prepareStatement(dialect.getBulkUpsertUserSql(chunk.size(), copyPasswordHmac));
+                try {
+                    int index = 1;
+                    for (Row row : chunk) {
+                        stmt.setString(index++, row.userId);
+                        stmt.setString(index++, row.firstName);
+                        stmt.setString(index++, row.lastName);
+                        stmt.setString(index++, row.userName);
+                        stmt.setBytes(index++, row.password);
+                        if (copyPasswordHmac) {
+                            stmt.setBytes(index++, row.passwordHmac);
+                        }
+                        stmt.setBoolean(index++, row.active);
+                    }
+                    stmt.executeUpdate();
+                } finally {
+                    stmt.close();
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void deleteRows(Connection conn, List<Row> rows) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("DELETE FROM okta_users WHERE userid = ?");
+        try {
+            for (Row row : rows) {
+                stmt.setString(1, row.userId);
+                stmt.addBatch();
+            }
+            int[] counts = stmt.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                    throw new SQLException("Deleting the moved user " + rows.get(i).userId + " affected " + counts[i] + " rows");
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Get the state of the copy.
+     *
+     * @return idle, running, complete or failed.
+     */
+    String getState() {
+        return state;
+    }
+
+    long getScannedUsers() {
+        return scannedUsers.get();
+    }
+
+    long getMovedUsers() {
+        return movedUsers.get();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * The legacy key files: Java serialized key objects, by default <code>C:/keys/private.key</code> and
+ * <code>C:/keys/public.key</code>. Used when no <code>keyProvider</code> is configured, so existing deployments keep
+ * their keys.
+ *
+ * @author praven Atluri
+ */
+public class SerializedFileKeyProvider extends FileKeyProvider {
+
+    /**
+     * Create a provider of the key files at {@link EncryptionUtil#PRIVATE_KEY_FILE} and {@link EncryptionUtil#PUBLIC_KEY_FILE}.
+     */
+    public SerializedFileKeyProvider() {
+        super(new File(EncryptionUtil.PRIVATE_KEY_FILE).getParent(), new File(EncryptionUtil.PRIVATE_KEY_FILE).getName(),
+                new File(EncryptionUtil.PUBLIC_KEY_FILE).getName());
+    }
+
+    @Override
+    protected PrivateKey readPrivateKey(File keyFile) throws GeneralSecurityException, IOException {
+        return (PrivateKey) readKey(keyFile);
+    }
+
+    @Override
+    protected PublicKey readPublicKey(File keyFile) throws GeneralSecurityException, IOException {
+        return (PublicKey) readKey(keyFile);
+    }
+
+    @Override
+    protected byte[] encode(Key key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream outputStream = new ObjectOutputStream(bytes);
+        outputStream.writeObject(key);
+        outputStream.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize a key file.
+     *
+     * @param keyFile the key file
+     * @return the key
+     */
+    private static Object readKey(File keyFile) throws GeneralSecurityException, IOException {
+        ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(keyFile));
+        try {
+            return inputStream.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new GeneralSecurityException(keyFile + " does not hold a serialized key", ex);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
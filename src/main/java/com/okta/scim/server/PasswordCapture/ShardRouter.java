@@ -0,0 +1,429 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spreads <code>okta_users</code> over several databases, the shards, by consistent hashing of the immutable id of
+ * the user.
+ * <p>
+ * Every shard is a {@link ConnectionPool} with its own <code>okta_users</code> table, configured under a name in the
+ * Spring dispatcher-servlet.xml file. The names are placed <code>virtualNodes</code> times on a hash ring and a user
+ * belongs to the first shard following the hash of its id, so <code>createUser</code>, <code>updateUser</code> and
+ * <code>getUser</code> each go to one shard. Adding a shard only moves the users of the ring ranges it takes over, about
+ * one in N. Listings merge the shards, see {@link ShardedUserLister}.
+ * <p>
+ * To change the shards, the new layout is configured as <code>targetShards</code> next to <code>shards</code> and
+ * {@link #startResharding()} is called over JMX. A {@link Resharder} then copies the users whose shard changes in the
+ * background, one batch at a time, while the connector keeps serving. Until a user is copied its calls go to its old
+ * shard, afterwards to its new one: while resharding, a user that moves is looked up on its old shard first, and the
+ * copy of a batch excludes the calls of all users for the few milliseconds it takes. Once the copy is complete the new
+ * layout is used alone; <code>shards</code> should then be set to it before the next restart. A restart in the middle
+ * of a copy loses nothing, starting it again carries on with the users that are still to move. Resharding is
+ * coordinated within one connector, the other connectors on the same shards have to be stopped meanwhile.
+ *
+ * @author praven Atluri
+ */
+public class ShardRouter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardRouter.class);
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    //Shard configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private Map<String, ConnectionPool> shards = Collections.emptyMap();
+    private Map<String, ConnectionPool> targetShards;
+    private int virtualNodes = 160;
+    private int reshardBatchSize = 200;
+    private long reshardPauseMillis = 100;
+
+    //every pool of both layouts by shard name
+    private final Map<String, ConnectionPool> pools = new LinkedHashMap<String, ConnectionPool>();
+    private volatile Layout layout;
+    private Resharder resharder;
+
+    //held by the calls of single users while resharding, and exclusively by the copy of a batch
+    private final ReentrantReadWriteLock moveLock = new ReentrantReadWriteLock();
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
+
+    /**
+     * The shards in use: the ring, and while resharding the ring of the target layout.
+     */
+    static final class Layout {
+        private final Ring ring;
+        private final Ring target;
+
+        private Layout(Ring ring, Ring target) {
+            this.ring = ring;
+            this.target = target;
+        }
+
+        Ring getRing() {
+            return ring;
+        }
+
+        Ring getTarget() {
+            return target;
+        }
+
+        boolean isResharding() {
+            return target != null;
+        }
+    }
+
+    /**
+     * A consistent hash ring over shard names.
+     */
+    final class Ring {
+        private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+        private final List<String> names;
+
+        Ring(Collection<String> shardNames) {
+            if (shardNames.isEmpty()) {
+                throw new IllegalStateException("A shard layout needs at least one shard");
+            }
+            names = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(shardNames)));
+            for (String name : names) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    points.put(hash(name + "#" + i), name);
+                }
+            }
+        }
+
+        /**
+         * Get the shard of a user.
+         *
+         * @param userId The immutable id of the user.
+         * @return The shard name.
+         */
+        String owner(String userId) {
+            Map.Entry<Long, String> point = points.ceilingEntry(hash(userId));
+            return (point == null ? points.firstEntry() : point).getValue();
+        }
+
+        /**
+         * Get the shard names, sorted.
+         *
+         * @return The shard names.
+         */
+        List<String> getNames() {
+            return names;
+        }
+    }
+
+    /**
+     * Start the shard pools and build the rings.
+     *
+     * @param dialect           The dialect of the shards.
+     * @param copyPasswordHmac  Whether the shards have the password_hmac column, copied when users move.
+     * @param userPageCache     The page cache of the listings, cleared when the layout changes, may be null.
+     * @throws SQLException if a shard cannot be reached
+     */
+    public void start(SqlDialect dialect, boolean copyPasswordHmac, UserPageCache userPageCache) throws SQLException {
+        pools.putAll(shards);
+        if (targetShards != null) {
+            for (Map.Entry<String, ConnectionPool> shard : targetShards.entrySet()) {
+                ConnectionPool pool = pools.get(shard.getKey());
+                if (pool != null && pool != shard.getValue()) {
+                    throw new IllegalStateException("The shard " + shard.getKey() + " is configured with two different pools");
+                }
+                pools.put(shard.getKey(), shard.getValue());
+            }
+        }
+        for (Map.Entry<String, ConnectionPool> shard : pools.entrySet()) {
+            if (shard.getValue().getUrl() == null) {
+                throw new IllegalStateException("The pool of the shard " + shard.getKey() + " needs its url");
+            }
+            shard.getValue().start();
+        }
+
+        Ring ring = new Ring(shards.keySet());
+        layout = new Layout(ring, targetShards == null ? null : new Ring(targetShards.keySet()));
+        resharder = new Resharder(this, dialect, copyPasswordHmac, userPageCache, reshardBatchSize, reshardPauseMillis);
+        LOGGER.info("Started the shards " + ring.getNames() + (layout.isResharding()
+                ? ", resharding to " + layout.getTarget().getNames() + " once startResharding is called" : ""));
+    }
+
+    /**
+     * Stop a running copy. The users copied so far stay on their new shard.
+     */
+    public void stop() {
+        if (resharder != null) {
+            resharder.stop();
+        }
+    }
+
+    /**
+     * Get a connection to the shard of a user. While resharding, the connection excludes the copy of a batch until it
+     * is closed, so it has to be closed by the thread that got it.
+     *
+     * @param userId The immutable id of the user.
+     * @return The connection.
+     * @throws SQLException if the shard cannot be reached
+     */
+    public Connection getConnection(String userId) throws SQLException {
+        if (!layout.isResharding()) {
+            return pools.get(layout.getRing().owner(userId)).getConnection();
+        }
+
+        final ReentrantReadWriteLock.ReadLock lock = moveLock.readLock();
+        lock.lock();
+        boolean handedOut = false;
+        try {
+            //read under the lock, the copy switches the layout when it completes
+            Layout current = layout;
+            String shard = current.getRing().owner(userId);
+            if (current.isResharding()) {
+                String target = current.getTarget().owner(userId);
+                if (!shard.equals(target) && !exists(shard, userId)) {
+                    //already copied, or a new user
+                    shard = target;
+                }
+            }
+            Connection conn = releasingOnClose(pools.get(shard).getConnection(), lock);
+            handedOut = true;
+            return conn;
+        } finally {
+            if (!handedOut) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get a connection to a shard by name, for listings. It does not exclude the copy: a listing taken while users
+     * move may miss or repeat the users of the batch being copied.
+     *
+     * @param shard The shard name.
+     * @return The connection.
+     * @throws SQLException if the shard cannot be reached
+     */
+    Connection getShardConnection(String shard) throws SQLException {
+        return pools.get(shard).getConnection();
+    }
+
+    /**
+     * Get the names of every shard that may hold users: both layouts while resharding.
+     *
+     * @return The shard names, sorted.
+     */
+    List<String> getShardNames() {
+        Layout current = layout;
+        if (!current.isResharding()) {
+            return current.getRing().getNames();
+        }
+        TreeSet<String> names = new TreeSet<String>(current.getRing().getNames());
+        names.addAll(current.getTarget().getNames());
+        return new ArrayList<String>(names);
+    }
+
+    Layout getLayout() {
+        return layout;
+    }
+
+    ReentrantReadWriteLock getMoveLock() {
+        return moveLock;
+    }
+
+    /**
+     * Use the target layout alone, once every user was copied.
+     */
+    void completeResharding() {
+        moveLock.writeLock().lock();
+        try {
+            layout = new Layout(layout.getTarget(), null);
+        } finally {
+            moveLock.writeLock().unlock();
+        }
+        LOGGER.info("Resharding complete, the users are on " + layout.getRing().getNames()
+                + ". Set shards to the targetShards layout before the next restart");
+    }
+
+    private boolean exists(String shard, String userId) throws SQLException {
+        Connection conn = pools.get(shard).getConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT userid FROM okta_users WHERE userid = ?");
+            stmt.setString(1, userId);
+            rs = stmt.executeQuery();
+            return rs.next();
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (stmt != null) {
+                stmt.close();
+            }
+            conn.close();
+        }
+    }
+
+    /**
+     * Wrap a connection so that closing it releases the lock, once.
+     */
+    private static Connection releasingOnClose(final Connection conn, final ReentrantReadWriteLock.ReadLock lock) {
+        final AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(ShardRouter.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        try {
+                            return method.invoke(conn, args);
+                        } catch (InvocationTargetException ex) {
+                            throw ex.getCause();
+                        } finally {
+                            if ("close".equals(method.getName()) && released.compareAndSet(false, true)) {
+                                lock.unlock();
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * The ring position of a key, the first 8 bytes of its MD5 digest.
+     */
+    private long hash(String key) {
+        MessageDigest digest = digests.get();
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("MD5 is not available", ex);
+            }
+            digests.set(digest);
+        }
+        byte[] bytes = digest.digest(key.getBytes(CHARSET));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * Start copying the users whose shard changes to the targetShards layout, in the background.
+     *
+     * @return A description of what was started.
+     */
+    public String startResharding() {
+        Layout current = layout;
+        if (current == null) {
+            return "Sharding is not enabled, shardRouter is not set on the service";
+        }
+        if (!current.isResharding()) {
+            return "Nothing to do, no targetShards layout is configured or resharding completed";
+        }
+        return resharder.start() ? "Resharding started" : "Resharding is already running";
+    }
+
+    /**
+     * Get the state of resharding.
+     *
+     * @return idle, running, complete or failed.
+     */
+    public String getReshardingState() {
+        return resharder == null ? "idle" : resharder.getState();
+    }
+
+    /**
+     * Get the number of users read by the copy.
+     *
+     * @return The scanned user count.
+     */
+    public long getScannedUsers() {
+        return resharder == null ? 0 : resharder.getScannedUsers();
+    }
+
+    /**
+     * Get the number of users the copy moved to their new shard.
+     *
+     * @return The moved user count.
+     */
+    public long getMovedUsers() {
+        return resharder == null ? 0 : resharder.getMovedUsers();
+    }
+
+    /**
+     * Get the shard names in use.
+     *
+     * @return The shard names.
+     */
+    public String getShardLayout() {
+        Layout current = layout;
+        return current == null ? "" : current.getRing().getNames().toString();
+    }
+
+    /**
+     * Set the shards, each a connection pool with its own okta_users table, by name. The names place the shards on
+     * the ring: renaming a shard moves its users.
+     *
+     * @param shards The shards to set.
+     */
+    public void setShards(Map<String, ConnectionPool> shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Set the layout to reshard to. Shards kept from the current layout keep their name and pool.
+     *
+     * @param targetShards The target shards to set.
+     */
+    public void setTargetShards(Map<String, ConnectionPool> targetShards) {
+        this.targetShards = targetShards;
+    }
+
+    /**
+     * Set the number of ring positions per shard, the more the more even the spread. Changing it moves users.
+     *
+     * @param virtualNodes The number of virtual nodes to set.
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Set the number of users read per batch while resharding, the calls of single users wait for the copy of a batch.
+     *
+     * @param reshardBatchSize The batch size to set.
+     */
+    public void setReshardBatchSize(int reshardBatchSize) {
+        this.reshardBatchSize = reshardBatchSize;
+    }
+
+    /**
+     * Set the pause between two batches while resharding, to leave the shards room for the calls.
+     *
+     * @param reshardPauseMillis The pause in milliseconds to set.
+     */
+    public void setReshardPauseMillis(long reshardPauseMillis) {
+        this.reshardPauseMillis = reshardPauseMillis;
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Lists the users of every shard of a {@link ShardRouter} as one listing in userid order, by a k-way merge of the
+ * shards.
+ * <p>
+ * Each shard is read by keyset like the unsharded listing, a chunk at a time, and the heads of the shards are merged.
+ * The position in the listing is a cursor holding the last userid read from each shard, so every shard only ever
+ * compares userids with its own collation. Memory use is one chunk per shard.
+ *
+ * @author praven Atluri
+ */
+public class ShardedUserLister {
+
+    //separates the per shard positions of a cursor, a userid never contains a NUL
+    private static final String CURSOR_SEPARATOR = "\u0000";
+
+    private final ShardRouter router;
+    private final SqlDialect dialect;
+
+    /**
+     * The unread users of one shard.
+     */
+    private static final class ShardReader {
+        private final String shard;
+        private String afterUserId;
+        private boolean exhausted;
+        private final ArrayDeque<String[]> rows = new ArrayDeque<String[]>();
+
+        private ShardReader(String shard, String afterUserId) {
+            this.shard = shard;
+            this.afterUserId = afterUserId;
+        }
+    }
+
+    public ShardedUserLister(ShardRouter router, SqlDialect dialect) {
+        this.router = router;
+        this.dialect = dialect;
+    }
+
+    /**
+     * Count the users of a query on every shard.
+     *
+     * @param query The query.
+     * @return The count.
+     * @throws SQLException
+     */
+    public int count(UserQuery query) throws SQLException {
+        int count = 0;
+        for (String shard : router.getShardNames()) {
+            Connection conn = router.getShardConnection(shard);
+            try {
+                PreparedStatement stmt = conn.prepareStatement(query.toCountSql());
+                try {
+                    query.bind(stmt);
+                    ResultSet rs = stmt.executeQuery();
+                    try {
+                        count += rs.next() ? rs.getInt(1) : 0;
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read users in listing order, handing each to a handler.
+     *
+     * @param query     The query.
+     * @param cursor    The position to read after, the empty string for the start of the listing.
+     * @param count     The number of users to read.
+     * @param chunkSize The number of users read from a shard at a time.
+     * @param handler   Receives the users, may be null.
+     * @return The position after the last user read, or null when there were fewer than <code>count</code> users.
+     * @throws SQLException
+     * @throws IOException  if the handler failed
+     */
+    public String read(UserQuery query, String cursor, long count, int chunkSize,
+                       PasswordCaptureSCIMServiceImpl.UserStreamHandler handler) throws SQLException, IOException {
+        boolean idsOnly = handler == null;
+        ShardReader[] readers = decode(cursor);
+        long read = 0;
+        while (read < count) {
+            ShardReader next = null;
+            for (ShardReader reader : readers) {
+                if (reader.rows.isEmpty() && !reader.exhausted) {
+                    fetch(reader, query, (int) Math.min(chunkSize, count - read), idsOnly);
+                }
+                if (!reader.rows.isEmpty() && (next == null || reader.rows.peek()[0].compareTo(next.rows.peek()[0]) < 0)) {
+                    next = reader;
+                }
+            }
+            if (next == null) {
+                return null;
+            }
+            String[] row = next.rows.poll();
+            next.afterUserId = row[0];
+            if (handler != null) {
+                handler.user(row[0], row[1], row[2], row[3], Boolean.parseBoolean(row[4]));
+            }
+            read++;
+        }
+        return encode(readers);
+    }
+
+    /**
+     * Skip over users in listing order, reading their userids only.
+     *
+     * @param query     The query.
+     * @param cursor    The position to skip from, the empty string for the start of the listing.
+     * @param skipped   The number of users to skip.
+     * @param chunkSize The number of userids read from a shard at a time.
+     * @return The position after the skipped users, or null when there are not that many users.
+     * @throws SQLException
+     */
+    public String skip(UserQuery query, String cursor, long skipped, int chunkSize) throws SQLException {
+        try {
+            return read(query, cursor, skipped, chunkSize, null);
+        } catch (IOException ex) {
+            //there is no handler to fail
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Read the next chunk of a shard.
+     */
+    private void fetch(ShardReader reader, UserQuery query, int chunkSize, boolean idsOnly) throws SQLException {
+        Connection conn = router.getShardConnection(reader.shard);
+        try {
+            PreparedStatement stmt = conn.prepareStatement(dialect.limit(query.toPageSql(idsOnly ? "userid" : UserQuery.COLUMNS)),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            try {
+                stmt.setFetchSize(chunkSize);
+                int index = query.bind(stmt);
+                stmt.setString(index++, reader.afterUserId);
+                stmt.setInt(index, chunkSize);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    int fetched = 0;
+                    while (rs.next()) {
+                        reader.rows.add(idsOnly ? new String[]{rs.getString(1)}
+                                : new String[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                                String.valueOf(rs.getBoolean(5))});
+                        fetched++;
+                    }
+                    reader.exhausted = fetched < chunkSize;
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Check whether a cursor was taken with the current shards. A listing running while resharding completes can cache
+     * a cursor of the previous shards.
+     *
+     * @param cursor The cursor.
+     * @return true when the cursor can be read from.
+     */
+    public boolean isCurrent(String cursor) {
+        return cursor.isEmpty() || cursor.split(CURSOR_SEPARATOR, -1).length == router.getShardNames().size();
+    }
+
+    private ShardReader[] decode(String cursor) {
+        List<String> shards = router.getShardNames();
+        String[] positions = cursor == null || cursor.isEmpty() ? new String[0] : cursor.split(CURSOR_SEPARATOR, -1);
+        if (positions.length != 0 && positions.length != shards.size()) {
+            throw new IllegalStateException("The listing cursor does not match the " + shards.size() + " shards");
+        }
+        ShardReader[] readers = new ShardReader[shards.size()];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new ShardReader(shards.get(i), positions.length == 0 ? "" : positions[i]);
+        }
+        return readers;
+    }
+
+    private static String encode(ShardReader[] readers) {
+        StringBuilder cursor = new StringBuilder();
+        for (int i = 0; i < readers.length; i++) {
+            if (i > 0) {
+                cursor.append(CURSOR_SEPARATOR);
+            }
+            cursor.append(readers[i].afterUserId);
+        }
+        return cursor.toString();
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * The vendor specific parts of talking to the <code>okta_users</code> table.
+ * <p>
+ * The dialect is resolved once when the service starts (see {@link SqlDialects}), so the CRUD methods never branch on
+ * the database type. Supporting another database means implementing this interface and naming the class in the
+ * <code>databaseType</code> property of the service.
+ *
+ * @author praven Atluri
+ */
+public interface SqlDialect {
+
+    /**
+     * Get the name of the database type, as used in the <code>databaseType</code> property.
+     *
+     * @return The database type name.
+     */
+    String getName();
+
+    /**
+     * Get the JDBC driver class to load before the first connection is opened.
+     *
+     * @return The driver class name.
+     */
+    String getDriverClassName();
+
+    /**
+     * Build the JDBC url from the service connection properties.
+     *
+     * @param serverName            The server name.
+     * @param serverPort            The server port.
+     * @param databaseName          The database name.
+     * @param databaseConnectionURL The full connection url, if one was configured.
+     * @return The JDBC url.
+     */
+    String buildConnectionUrl(String serverName, int serverPort, String databaseName, String databaseConnectionURL);
+
+    /**
+     * Add the driver options that make prepared statements server side, so a statement cached by the
+     * {@link ConnectionPool} skips parse and plan on every execution.
+     *
+     * @param connectionUrl The JDBC url.
+     * @return The JDBC url with the driver options added, or unchanged when the driver has no such option.
+     */
+    String enableServerSidePrepare(String connectionUrl);
+
+    /**
+     * Tells whether the connection url already carries the credentials.
+     *
+     * @return true when the user name and password must not be passed separately.
+     */
+    boolean isCredentialsInUrl();
+
+    /**
+     * Get the upsert for a single user. The parameters are userid, first_name, last_name, user_name and is_active.
+     *
+     * @return The upsert statement.
+     */
+    String getUpsertUserSql();
+
+    /**
+     * Get the highest update count a successful upsert may report.
+     *
+     * @return The highest update count of a single row upsert.
+     */
+    int getUpsertMaxAffectedRows();
+
+    /**
+     * Get a multi-row upsert used to load many users in one statement. Every row takes the parameters userid,
+     * first_name, last_name, user_name, password, password_hmac when it is written, and is_active, in that order.
+     *
+     * @param rows             The number of rows, at most {@link #getMaxRowsPerStatement()}.
+     * @param withPasswordHmac Whether the password_hmac column is written, it only exists once password fingerprints
+     *                         are set up.
+     * @return The bulk upsert statement.
+     */
+    String getBulkUpsertUserSql(int rows, boolean withPasswordHmac);
+
+    /**
+     * Get the number of rows a single multi-row statement may carry, bounded by the driver's parameter limit.
+     *
+     * @return The maximum number of rows per statement.
+     */
+    int getMaxRowsPerStatement();
+
+    /**
+     * Limit an ordered query for keyset pagination. The row count is bound as the last parameter.
+     *
+     * @param orderedQuery A query ending with its ORDER BY clause.
+     * @return The limited query.
+     */
+    String limit(String orderedQuery);
+
+    /**
+     * Apply offset pagination to an ordered query. The parameters are bound with {@link #bindOffsetLimit}.
+     *
+     * @param orderedQuery A query ending with its ORDER BY clause.
+     * @return The paginated query.
+     */
+    String offsetLimit(String orderedQuery);
+
+    /**
+     * Bind the parameters added by {@link #offsetLimit(String)}.
+     *
+     * @param stmt       The statement.
+     * @param index      The index of the first pagination parameter.
+     * @param offset     The number of rows to skip.
+     * @param maxResults The number of rows to return.
+     * @return The index of the next parameter.
+     * @throws SQLException
+     */
+    int bindOffsetLimit(PreparedStatement stmt, int index, long offset, int maxResults) throws SQLException;
+}
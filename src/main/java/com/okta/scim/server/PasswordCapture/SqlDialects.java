@@ -0,0 +1,45 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Resolves the {@link SqlDialect} for the <code>databaseType</code> configured in the Spring dispatcher-servlet.xml file.
+ *
+ * @author praven Atluri
+ */
+public final class SqlDialects {
+
+    private SqlDialects() {
+    }
+
+    /**
+     * Resolve a dialect by database type. Besides the built-in <code>mysql</code> and <code>sqlserver</code> types,
+     * the fully qualified name of a {@link SqlDialect} implementation with a no-argument constructor is accepted.
+     *
+     * @param databaseType The database type.
+     * @return The dialect.
+     * @throws IllegalArgumentException if the type is unknown.
+     */
+    public static SqlDialect forDatabaseType(String databaseType) {
+        if (databaseType == null || databaseType.equalsIgnoreCase(MySqlDialect.NAME)) {
+            return new MySqlDialect();
+        }
+        if (databaseType.equalsIgnoreCase(SqlServerDialect.NAME)) {
+            return new SqlServerDialect();
+        }
+
+        try {
+            Class<?> dialectClass = Class.forName(databaseType);
+            return (SqlDialect) dialectClass.getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException ex) {
+            //the dialect constructor failed, report what it threw
+            throw new IllegalArgumentException("Unable to create the SqlDialect " + databaseType, ex.getCause());
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Unknown database type " + databaseType
+                    + ", expected mysql, sqlserver or the class name of a SqlDialect", ex);
+        }
+    }
+}
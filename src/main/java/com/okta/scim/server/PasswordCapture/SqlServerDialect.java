@@ -0,0 +1,105 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * The Microsoft SQL Server dialect. The connection url, including the credentials, comes from the
+ * <code>databaseConnectionURL</code> property.
+ *
+ * @author praven Atluri
+ */
+public class SqlServerDialect implements SqlDialect {
+
+    public static final String NAME = "sqlserver";
+
+    //SQL Server accepts at most 2100 parameters per statement, each row binds up to 7
+    private static final int MAX_ROWS_PER_STATEMENT = 290;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDriverClassName() {
+        return "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    }
+
+    @Override
+    public String buildConnectionUrl(String serverName, int serverPort, String databaseName, String databaseConnectionURL) {
+        return databaseConnectionURL;
+    }
+
+    @Override
+    public String enableServerSidePrepare(String connectionUrl) {
+        //the Microsoft driver already prepares server side with sp_prepexec
+        return connectionUrl;
+    }
+
+    @Override
+    public boolean isCredentialsInUrl() {
+        return true;
+    }
+
+    @Override
+    public String getUpsertUserSql() {
+        //HOLDLOCK keeps the key range locked between the match and the insert
+        return "MERGE okta_users WITH (HOLDLOCK) AS t"
+                + " USING (SELECT ? AS userid, ? AS first_name, ? AS last_name, ? AS user_name, ? AS is_active) AS s"
+                + " ON t.userid = s.userid"
+                + " WHEN MATCHED THEN UPDATE SET first_name = s.first_name, last_name = s.last_name, user_name = s.user_name, is_active = s.is_active"
+                + " WHEN NOT MATCHED THEN INSERT (userid, first_name, last_name, user_name, is_active)"
+                + " VALUES (s.userid, s.first_name, s.last_name, s.user_name, s.is_active);";
+    }
+
+    @Override
+    public int getUpsertMaxAffectedRows() {
+        return 1;
+    }
+
+    @Override
+    public String getBulkUpsertUserSql(int rows, boolean withPasswordHmac) {
+        String row = withPasswordHmac ? "(?, ?, ?, ?, ?, ?, ?)" : "(?, ?, ?, ?, ?, ?)";
+        String hmac = withPasswordHmac ? "password_hmac, " : "";
+        StringBuilder sql = new StringBuilder("MERGE okta_users WITH (HOLDLOCK) AS t USING (VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ", ").append(row);
+        }
+        sql.append(") AS s (userid, first_name, last_name, user_name, password, ").append(hmac).append("is_active)")
+                .append(" ON t.userid = s.userid")
+                .append(" WHEN MATCHED THEN UPDATE SET first_name = s.first_name, last_name = s.last_name,")
+                .append(" user_name = s.user_name, password = s.password,")
+                .append(withPasswordHmac ? " password_hmac = s.password_hmac," : "")
+                .append(" is_active = s.is_active")
+                .append(" WHEN NOT MATCHED THEN INSERT (userid, first_name, last_name, user_name, password, ").append(hmac).append("is_active)")
+                .append(" VALUES (s.userid, s.first_name, s.last_name, s.user_name, s.password, ")
+                .append(withPasswordHmac ? "s.password_hmac, " : "").append("s.is_active);");
+        return sql.toString();
+    }
+
+    @Override
+    public int getMaxRowsPerStatement() {
+        return MAX_ROWS_PER_STATEMENT;
+    }
+
+    @Override
+    public String limit(String orderedQuery) {
+        return orderedQuery + " OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY";
+    }
+
+    @Override
+    public String offsetLimit(String orderedQuery) {
+        return orderedQuery + " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+    }
+
+    @Override
+    public int bindOffsetLimit(PreparedStatement stmt, int index, long offset, int maxResults) throws SQLException {
+        stmt.setLong(index++, offset);
+        stmt.setInt(index++, maxResults);
+        return index;
+    }
+}
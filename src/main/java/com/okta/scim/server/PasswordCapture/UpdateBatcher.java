@@ -0,0 +1,465 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional write-behind mode for <code>updateUser</code>.
+ * <p>
+ * Updates are queued in a bounded buffer and a single flusher thread writes them as JDBC batches of at most
+ * <code>batchSize</code> rows, waiting at most <code>windowMillis</code> for a batch to fill. Each batch is one
+ * transaction, so a burst of password pushes costs one commit per batch instead of one per user. Callers block in
+ * {@link #submit(UserUpdate)} until their batch has been committed, so a SCIM call is only acknowledged once its row is
+ * durable.
+ * <p>
+ * When a batch fails, its updates are retried one transaction each so that a single bad row only fails its own caller.
+ * <p>
+ * Updates of a user that still has an update waiting in the queue are coalesced into the waiting one, last writer wins
+ * per column, so a profile push followed by a password push and a retry of the same user cost a single row write. All
+ * the coalesced callers are acknowledged when that write commits. Updates that cannot be coalesced, because only one of
+ * them is guarded by a password fingerprint or their guards differ, wait for the queued update to be written and are
+ * then queued behind it.
+ *
+ * @author praven Atluri
+ */
+public class UpdateBatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpdateBatcher.class);
+
+    //Batching configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private int batchSize = 100;
+    private long windowMillis = 20;
+    private int queueCapacity = 10000;
+    private long submitTimeoutMillis = 30000;
+
+    private BlockingQueue<PendingUpdate> queue;
+    //the queued updates that have not been picked up by the flusher yet, keyed by userid
+    private final Map<String, PendingUpdate> queuedByUser = new HashMap<String, PendingUpdate>();
+    private DataSource dataSource;
+    private Thread flusher;
+    private volatile boolean running;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Starts the flusher thread.
+     *
+     * @param dataSource The data source the batches are written to.
+     */
+    public synchronized void start(DataSource dataSource) {
+        if (running) {
+            return;
+        }
+        this.dataSource = dataSource;
+        this.queue = new ArrayBlockingQueue<PendingUpdate>(queueCapacity);
+        running = true;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "update-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+        LOGGER.info("Started write-behind updates with batchSize=" + batchSize + " windowMillis=" + windowMillis);
+    }
+
+    /**
+     * Stops accepting updates, writes the ones already queued and stops the flusher thread.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            flusher.join(submitTimeoutMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues an update and waits until the batch it belongs to has been committed.
+     *
+     * @param update The update to write.
+     * @return false when the update is guarded by a password fingerprint that did not match, nothing was written.
+     * @throws OnPremUserManagementException if the update failed, did not update exactly one row, or timed out.
+     */
+    public boolean submit(UserUpdate update) throws OnPremUserManagementException {
+        if (!running) {
+            throw new OnPremUserManagementException("UPDATE_USER_FAILED", "Write-behind updates are not running.");
+        }
+
+        PendingUpdate pending = null;
+        boolean merged = false;
+        try {
+            while (pending == null) {
+                PendingUpdate blocking = null;
+                synchronized (queuedByUser) {
+                    PendingUpdate queued = queuedByUser.get(update.getUserId());
+                    if (queued == null) {
+                        pending = new PendingUpdate(update);
+                        queuedByUser.put(update.getUserId(), pending);
+                    } else if (queued.update.canMerge(update)) {
+                        //superseded before it was written, fold this update into the queued one
+                        queued.update.merge(update);
+                        pending = queued;
+                        merged = true;
+                        coalesced.incrementAndGet();
+                    } else {
+                        blocking = queued;
+                    }
+                }
+                //the queued update has another guard, write this one after it
+                if (blocking != null && !blocking.done.await(submitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new OnPremUserManagementException("UPDATE_USER_TIMEOUT", "Timed out waiting for the queued update of user "
+                            + update.getUserId() + " to be committed");
+                }
+            }
+
+            //a full queue pushes back on the SCIM callers instead of growing without bound
+            if (!merged && !queue.offer(pending, submitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                synchronized (queuedByUser) {
+                    queuedByUser.remove(update.getUserId());
+                }
+                //other callers may have been coalesced into it already
+                pending.fail("UPDATE_USER_QUEUE_FULL", new SQLException("Timed out queueing the update of user " + update.getUserId()));
+            }
+            if (!pending.done.await(submitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new OnPremUserManagementException("UPDATE_USER_TIMEOUT", "Timed out waiting for the update of user " + update.getUserId() + " to be committed");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new OnPremUserManagementException("UPDATE_USER_FAILED", "Interrupted while updating user " + update.getUserId(), ex);
+        }
+
+        if (pending.error != null) {
+            throw new OnPremUserManagementException(pending.errorCode, pending.error.getMessage(), pending.error);
+        }
+        if (pending.affectedRows == 0 && pending.update.isGuarded()) {
+            return false;
+        }
+        if (pending.affectedRows != 1) {
+            throw new OnPremUserManagementException("UPDATE_USER_FAILED", "Updating user " + update.getUserId()
+                    + " failed, expected 1 row affected but " + pending.affectedRows + " rows affected.");
+        }
+        return true;
+    }
+
+    private void flushLoop() {
+        List<PendingUpdate> batch = new ArrayList<PendingUpdate>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingUpdate first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                //wait for the batch to fill, but never hold the first caller longer than the window
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingUpdate next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                detach(batch);
+                flush(batch);
+                batch.clear();
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Write-behind flusher interrupted, writing the queued updates one by one");
+                running = false;
+                break;
+            } catch (RuntimeException ex) {
+                LOGGER.error("Unexpected write-behind failure", ex);
+                for (PendingUpdate pending : batch) {
+                    pending.fail(new SQLException(ex.getMessage(), ex));
+                }
+                batch.clear();
+            }
+        }
+
+        //anything still queued after an interrupt, or queued while stopping
+        queue.drainTo(batch);
+        if (!batch.isEmpty()) {
+            detach(batch);
+            flushOneByOne(batch);
+        }
+    }
+
+    /**
+     * Stops coalescing into updates that are about to be written, later updates of the same users queue behind them.
+     */
+    private void detach(List<PendingUpdate> batch) {
+        synchronized (queuedByUser) {
+            for (PendingUpdate pending : batch) {
+                queuedByUser.remove(pending.update.getUserId());
+            }
+        }
+    }
+
+    /**
+     * Writes a batch in one transaction, one JDBC batch per distinct UPDATE statement.
+     */
+    private void flush(List<PendingUpdate> batch) {
+        Map<String, List<PendingUpdate>> bySql = new LinkedHashMap<String, List<PendingUpdate>>();
+        for (PendingUpdate pending : batch) {
+            String sql = pending.update.toSql();
+            List<PendingUpdate> group = bySql.get(sql);
+            if (group == null) {
+                group = new ArrayList<PendingUpdate>();
+                bySql.put(sql, group);
+            }
+            group.add(pending);
+        }
+
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(false);
+
+            Map<PendingUpdate, Integer> affectedRows = new LinkedHashMap<PendingUpdate, Integer>();
+            for (Map.Entry<String, List<PendingUpdate>> group : bySql.entrySet()) {
+                PreparedStatement stmt = conn.prepareStatement(group.getKey());
+                try {
+                    for (PendingUpdate pending : group.getValue()) {
+                        pending.update.bind(stmt);
+                        stmt.addBatch();
+                    }
+                    int[] counts = stmt.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        affectedRows.put(group.getValue().get(i), counts[i] == Statement.SUCCESS_NO_INFO ? 1 : counts[i]);
+                    }
+                } finally {
+                    stmt.close();
+                }
+            }
+
+            conn.commit();
+
+            batches.incrementAndGet();
+            updates.addAndGet(batch.size());
+            for (Map.Entry<PendingUpdate, Integer> entry : affectedRows.entrySet()) {
+                entry.getKey().complete(entry.getValue());
+            }
+        } catch (SQLException ex) {
+            rollback(conn);
+            close(conn);
+            conn = null;
+            if (ex instanceof BatchUpdateException || batch.size() > 1) {
+                LOGGER.warn("Write-behind batch of " + batch.size() + " updates failed, retrying them one by one: " + ex.getMessage());
+                flushOneByOne(batch);
+            } else {
+                batch.get(0).fail(ex);
+            }
+        } finally {
+            close(conn);
+        }
+    }
+
+    private void flushOneByOne(List<PendingUpdate> batch) {
+        fallbacks.incrementAndGet();
+        for (PendingUpdate pending : batch) {
+            Connection conn = null;
+            PreparedStatement stmt = null;
+            try {
+                conn = dataSource.getConnection();
+                conn.setAutoCommit(false);
+                stmt = conn.prepareStatement(pending.update.toSql());
+                pending.update.bind(stmt);
+                int affectedRows = stmt.executeUpdate();
+                conn.commit();
+                updates.incrementAndGet();
+                pending.complete(affectedRows);
+            } catch (SQLException ex) {
+                LOGGER.error("Write-behind update of user " + pending.update.getUserId() + " failed - SQLException: " + ex.getMessage()
+                        + "\r\nSQLState: " + ex.getSQLState() + "\r\nVendorError: " + ex.getErrorCode(), ex);
+                rollback(conn);
+                pending.fail(ex);
+            } finally {
+                if (stmt != null) {
+                    try {
+                        stmt.close();
+                    } catch (SQLException sqlEx) {
+                        LOGGER.error("Unable cleanup and close the statement", sqlEx);
+                    }
+                }
+                close(conn);
+            }
+        }
+    }
+
+    private static void rollback(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                LOGGER.error("Rollback failed", e);
+            }
+        }
+    }
+
+    private static void close(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException sqlEx) {
+                LOGGER.error("Unable cleanup and close the db connection", sqlEx);
+            }
+        }
+    }
+
+    /**
+     * An update waiting for its batch to be committed.
+     */
+    private static final class PendingUpdate {
+        private final UserUpdate update;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int affectedRows;
+        private volatile SQLException error;
+        private volatile String errorCode;
+
+        private PendingUpdate(UserUpdate update) {
+            this.update = update;
+        }
+
+        private void complete(int affectedRows) {
+            this.affectedRows = affectedRows;
+            done.countDown();
+        }
+
+        private void fail(SQLException error) {
+            fail("UPDATE_USER_FAILED_EXCEPTION", error);
+        }
+
+        private void fail(String errorCode, SQLException error) {
+            this.errorCode = errorCode;
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Get the number of committed batches.
+     *
+     * @return The batch count.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Get the number of updates written.
+     *
+     * @return The update count.
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * Get the average number of updates per committed batch.
+     *
+     * @return The average batch size.
+     */
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) updates.get() / count;
+    }
+
+    /**
+     * Get the number of batches that failed and were retried one update at a time.
+     *
+     * @return The fallback count.
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * Get the number of updates absorbed by coalescing them into an update of the same user that was still queued.
+     *
+     * @return The coalesced update count.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Get the number of updates waiting to be written.
+     *
+     * @return The queue length.
+     */
+    public int getQueuedUpdates() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Set the maximum number of updates written in one batch.
+     *
+     * @param batchSize The batch size to set.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set how long the flusher waits for a batch to fill once the first update has been queued.
+     *
+     * @param windowMillis The batching window in milliseconds to set.
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Set the maximum number of queued updates.
+     *
+     * @param queueCapacity The queue capacity to set.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Set how long a caller waits to queue its update and again for it to be committed.
+     *
+     * @param submitTimeoutMillis The timeout in milliseconds to set.
+     */
+    public void setSubmitTimeoutMillis(long submitTimeoutMillis) {
+        this.submitTimeoutMillis = submitTimeoutMillis;
+    }
+}
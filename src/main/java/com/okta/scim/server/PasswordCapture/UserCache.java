@@ -0,0 +1,302 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, read-through cache of <code>okta_users</code> rows for <code>getUser</code>, keyed by userid. The rows
+ * are also the snapshots <code>updateUser</code> compares a push against, see {@link ChangeDetector}.
+ * <p>
+ * Only the stored columns are cached: the password stays the encrypted blob, it is never held in plain text. Entries
+ * expire <code>ttlMillis</code> after they were loaded, and the least recently used entries are evicted once the
+ * estimated size of all entries exceeds <code>maxWeightBytes</code>. <code>createUser</code> and <code>updateUser</code>
+ * invalidate the row they wrote.
+ * <p>
+ * A load that raced with an invalidation is not cached, see {@link #beginLoad()}.
+ *
+ * @author praven Atluri
+ */
+public class UserCache {
+
+    //rough per entry overhead of the map entry, the row object and the strings
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+    //Cache configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private long ttlMillis = 60 * 1000;
+    private long maxWeightBytes = 16 * 1024 * 1024;
+
+    private final LinkedHashMap<String, CachedUser> entries = new LinkedHashMap<String, CachedUser>(1024, 0.75f, true);
+    private long weight;
+    private long invalidations;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * Get a cached row.
+     *
+     * @param userId The userid.
+     * @return The cached row, or null when it is not cached or has expired.
+     */
+    public synchronized CachedUser get(String userId) {
+        CachedUser cached = entries.get(userId);
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.loadedAt > ttlMillis) {
+            remove(userId);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached;
+    }
+
+    /**
+     * Called before the database is read for a row that missed the cache. The returned token is passed to
+     * {@link #put(String, CachedUser, long)} so that a row read before a concurrent write committed is never cached.
+     *
+     * @return The load token.
+     */
+    public synchronized long beginLoad() {
+        return invalidations;
+    }
+
+    /**
+     * Cache a row loaded from the database, unless a row was invalidated since the load began.
+     *
+     * @param userId The userid.
+     * @param user   The row.
+     * @param token  The token returned by {@link #beginLoad()}.
+     */
+    public synchronized void put(String userId, CachedUser user, long token) {
+        if (token != invalidations) {
+            return;
+        }
+        remove(userId);
+        user.weight = ENTRY_OVERHEAD_BYTES + 2 * userId.length() + user.getWeight();
+        entries.put(userId, user);
+        weight += user.weight;
+
+        //the iteration order of an access ordered map is least recently used first
+        Iterator<Map.Entry<String, CachedUser>> it = entries.entrySet().iterator();
+        while (weight > maxWeightBytes && it.hasNext()) {
+            Map.Entry<String, CachedUser> eldest = it.next();
+            it.remove();
+            weight -= eldest.getValue().weight;
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop a row after it was written.
+     *
+     * @param userId The userid.
+     */
+    public synchronized void invalidate(String userId) {
+        invalidations++;
+        remove(userId);
+    }
+
+    /**
+     * Drop every cached row.
+     */
+    public synchronized void clear() {
+        invalidations++;
+        entries.clear();
+        weight = 0;
+    }
+
+    private void remove(String userId) {
+        CachedUser removed = entries.remove(userId);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    /**
+     * A cached <code>okta_users</code> row.
+     */
+    public static class CachedUser {
+        private final String firstName;
+        private final String lastName;
+        private final String userName;
+        private final byte[] password;
+        private final byte[] passwordHmac;
+        private final boolean active;
+        private final long loadedAt = System.currentTimeMillis();
+        private int weight;
+
+        /**
+         * Create a cached row.
+         *
+         * @param firstName    The first_name column.
+         * @param lastName     The last_name column.
+         * @param userName     The user_name column.
+         * @param password     The encrypted password column.
+         * @param passwordHmac The password_hmac column, null when password fingerprints are not used.
+         * @param active       The is_active column.
+         */
+        public CachedUser(String firstName, String lastName, String userName, byte[] password, byte[] passwordHmac, boolean active) {
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.userName = userName;
+            this.password = password;
+            this.passwordHmac = passwordHmac;
+            this.active = active;
+        }
+
+        /**
+         * Get the first_name column.
+         *
+         * @return The first name.
+         */
+        public String getFirstName() {
+            return firstName;
+        }
+
+        /**
+         * Get the last_name column.
+         *
+         * @return The last name.
+         */
+        public String getLastName() {
+            return lastName;
+        }
+
+        /**
+         * Get the user_name column.
+         *
+         * @return The user name.
+         */
+        public String getUserName() {
+            return userName;
+        }
+
+        /**
+         * Get the password column, still encrypted.
+         *
+         * @return The encrypted password, null when none is stored.
+         */
+        public byte[] getPassword() {
+            return password;
+        }
+
+        /**
+         * Get the password_hmac column.
+         *
+         * @return The password fingerprint, null when password fingerprints are not used.
+         */
+        public byte[] getPasswordHmac() {
+            return passwordHmac;
+        }
+
+        /**
+         * Get the is_active column.
+         *
+         * @return Whether the user is active.
+         */
+        public boolean isActive() {
+            return active;
+        }
+
+        private int getWeight() {
+            return weight(firstName) + weight(lastName) + weight(userName)
+                    + (password == null ? 0 : password.length) + (passwordHmac == null ? 0 : passwordHmac.length);
+        }
+
+        private static int weight(String column) {
+            return column == null ? 0 : 2 * column.length();
+        }
+    }
+
+    /**
+     * Get the number of lookups served from the cache.
+     *
+     * @return The hit count.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that had to read the database.
+     *
+     * @return The miss count.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the share of lookups served from the cache.
+     *
+     * @return The hit ratio between 0 and 1.
+     */
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Get the number of entries evicted to stay under <code>maxWeightBytes</code>.
+     *
+     * @return The eviction count.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Get the number of entries dropped because they outlived <code>ttlMillis</code>.
+     *
+     * @return The expiration count.
+     */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * Get the number of cached rows.
+     *
+     * @return The number of entries.
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Get the estimated size of all cached rows.
+     *
+     * @return The weight in bytes.
+     */
+    public synchronized long getWeightBytes() {
+        return weight;
+    }
+
+    /**
+     * Set how long a row is served from the cache after it was loaded.
+     *
+     * @param ttlMillis The time to live in milliseconds to set.
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Set the estimated size the cached rows may take before the least recently used ones are evicted.
+     *
+     * @param maxWeightBytes The maximum weight in bytes to set.
+     */
+    public void setMaxWeightBytes(long maxWeightBytes) {
+        this.maxWeightBytes = maxWeightBytes;
+    }
+}
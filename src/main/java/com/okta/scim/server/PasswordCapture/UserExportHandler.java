@@ -0,0 +1,191 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.HttpRequestHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+/**
+ * Streams large pages of users as a SCIM list response, for imports.
+ * <p>
+ * The SCIM SDK serialises the whole <code>getUsers</code> response from a list built in memory, which does not hold up
+ * with pages of tens of thousands of users. This handler reads the page with
+ * {@link PasswordCaptureSCIMServiceImpl#streamUsers} and writes each user into the HTTP response with Jackson's
+ * streaming generator as it is read, so memory use does not grow with the page size. It answers
+ * <code>GET ?startIndex=&amp;count=</code>; paging through in order reads every page by keyset, see
+ * {@link UserPageCache}.
+ * <p>
+ * The handler bypasses the SCIM SDK and its authentication, so it is disabled by default and every request has to
+ * carry <code>Authorization: Bearer &lt;accessToken&gt;</code>. It is mapped in web.xml through Spring's
+ * <code>HttpRequestHandlerServlet</code>, under the name of this bean.
+ *
+ * @author praven Atluri
+ */
+public class UserExportHandler implements HttpRequestHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserExportHandler.class);
+
+    private static final String SCHEMA_CORE = "urn:scim:schemas:core:1.0";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    //Export configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private PasswordCaptureSCIMServiceImpl service;
+    private boolean enabled = false;
+    private String accessToken;
+    private int maxPageSize = 50000;
+    private int fetchSize = 1000;
+
+    @Override
+    public void handleRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!enabled) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!isAuthorized(request.getHeader("Authorization"))) {
+            response.setHeader("WWW-Authenticate", "Bearer");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        if (!"GET".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+
+        long startIndex;
+        int count;
+        try {
+            startIndex = request.getParameter("startIndex") == null ? 1 : Long.parseLong(request.getParameter("startIndex"));
+            count = request.getParameter("count") == null ? maxPageSize : Integer.parseInt(request.getParameter("count"));
+        } catch (NumberFormatException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "startIndex and count must be numbers");
+            return;
+        }
+        startIndex = Math.max(1, startIndex);
+        count = Math.max(0, Math.min(count, maxPageSize));
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        final JsonGenerator json = JSON_FACTORY.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        final String customUrn = PasswordCaptureSCIMServiceImpl.USER_CUSTOM_URN;
+        int streamed;
+        try {
+            json.writeStartObject();
+            json.writeArrayFieldStart("schemas");
+            json.writeString(SCHEMA_CORE);
+            json.writeEndArray();
+            json.writeNumberField("startIndex", startIndex);
+
+            streamed = service.streamUsers(null, startIndex, count, fetchSize, new PasswordCaptureSCIMServiceImpl.UserStreamHandler() {
+                @Override
+                public void start(int totalResults) throws IOException {
+                    json.writeNumberField("totalResults", totalResults);
+                    json.writeArrayFieldStart("Resources");
+                }
+
+                @Override
+                public void user(String userId, String firstName, String lastName, String userName, boolean active) throws IOException {
+                    json.writeStartObject();
+                    json.writeArrayFieldStart("schemas");
+                    json.writeString(SCHEMA_CORE);
+                    json.writeString(customUrn);
+                    json.writeEndArray();
+                    json.writeStringField("id", userId);
+                    json.writeStringField("userName", userName);
+                    json.writeObjectFieldStart("name");
+                    json.writeStringField("givenName", firstName);
+                    json.writeStringField("familyName", lastName);
+                    json.writeEndObject();
+                    json.writeBooleanField("active", active);
+                    json.writeObjectFieldStart(customUrn);
+                    json.writeStringField(PasswordCaptureSCIMServiceImpl.CUSTOM_SCHEMA_PROPERTY_NAME_UNIQUE_ID, userId);
+                    json.writeEndObject();
+                    json.writeEndObject();
+                }
+            });
+
+            json.writeEndArray();
+            //known only once the page is written, JSON members are unordered
+            json.writeNumberField("itemsPerPage", streamed);
+            json.writeEndObject();
+            json.close();
+        } catch (OnPremUserManagementException ex) {
+            //the users are read while the response is written, once it is committed the status cannot change and the
+            //client sees a truncated document
+            LOGGER.error("Unable to export the users from " + startIndex, ex);
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+            }
+            return;
+        }
+        LOGGER.info("Exported " + streamed + " users from " + startIndex);
+    }
+
+    /**
+     * Check the bearer token in constant time.
+     */
+    private boolean isAuthorized(String authorization) {
+        if (accessToken == null || accessToken.isEmpty() || authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
+        }
+        return MessageDigest.isEqual(accessToken.getBytes(CHARSET), authorization.substring(7).trim().getBytes(CHARSET));
+    }
+
+    /**
+     * Set the service the users are read from.
+     *
+     * @param service The service to set.
+     */
+    public void setService(PasswordCaptureSCIMServiceImpl service) {
+        this.service = service;
+    }
+
+    /**
+     * Set whether the export answers requests, it is disabled by default.
+     *
+     * @param enabled Whether the export is enabled.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Set the bearer token every request has to carry. Without a token every request is refused.
+     *
+     * @param accessToken The access token to set.
+     */
+    public void setAccessToken(String accessToken) {
+        this.accessToken = accessToken;
+    }
+
+    /**
+     * Set the largest page the export returns, whatever count the client asks for.
+     *
+     * @param maxPageSize The maximum page size to set.
+     */
+    public void setMaxPageSize(int maxPageSize) {
+        this.maxPageSize = maxPageSize;
+    }
+
+    /**
+     * Set the number of users read from the database per chunk, the most held in memory at once.
+     *
+     * @param fetchSize The fetch size to set.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+}
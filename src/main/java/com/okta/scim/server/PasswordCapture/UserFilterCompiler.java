@@ -0,0 +1,283 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles the SCIM filter of a <code>getUsers</code> call into a parameterised {@link UserQuery} on
+ * <code>okta_users</code>.
+ * <p>
+ * The SCIM SDK only hands over eq filters on one attribute and or filters of them, so those are the filters compiled:
+ * eq on id, userName, name.givenName, name.familyName, active and the custom unique id, combined with or. Filter values
+ * are always bound as parameters, never written into the SQL.
+ * <p>
+ * A filter is only run when the database can find its rows from an index: eq on userid, user_name, first_name or
+ * last_name, and an or needs every term to be one. A filter on active, alone or in an or, would read the whole table
+ * for every page and is rejected unless <code>allowFullScan</code> is set.
+ * <p>
+ * The SQL only depends on the structure of the filter, its operators and attributes, not on the values. The compiled
+ * SQL of the last <code>maxShapes</code> structures is cached, so the filter of every page only has its values read.
+ *
+ * @author praven Atluri
+ */
+public class UserFilterCompiler {
+
+    /**
+     * The columns with an index, see okta_users_table_schema.sql.
+     */
+    private static final List<String> INDEXED_COLUMNS = Collections.unmodifiableList(
+            Arrays.asList("userid", "user_name", "first_name", "last_name"));
+
+    //Compiler configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private int maxShapes = 256;
+    private boolean allowFullScan = false;
+
+    //access ordered, the least recently used structure is dropped first
+    private final LinkedHashMap<String, Shape> shapes = new LinkedHashMap<String, Shape>(64, 0.75f, true);
+
+    private final AtomicLong shapeHits = new AtomicLong();
+    private final AtomicLong shapeMisses = new AtomicLong();
+    private final AtomicLong rejectedFilters = new AtomicLong();
+
+    /**
+     * How a filter value is bound.
+     */
+    private enum Binding {
+        VALUE, BOOLEAN
+    }
+
+    /**
+     * The compiled SQL of a filter structure and the binding of each of its parameters.
+     */
+    private static final class Shape {
+        private final String condition;
+        private final List<Binding> bindings;
+        private final boolean indexed;
+
+        private Shape(String condition, List<Binding> bindings, boolean indexed) {
+            this.condition = condition;
+            this.bindings = bindings;
+            this.indexed = indexed;
+        }
+    }
+
+    /**
+     * Compile a filter.
+     *
+     * @param filter The SCIM filter, null to list every user.
+     * @return The query of the filtered users.
+     * @throws OnPremUserManagementException with UNSUPPORTED_FILTER if the filter is not supported, or would read the
+     *                                       whole table and <code>allowFullScan</code> is not set.
+     */
+    public UserQuery compile(SCIMFilter filter) throws OnPremUserManagementException {
+        if (filter == null) {
+            //keyset pages on the primary key
+            return new UserQuery(null, null);
+        }
+
+        StringBuilder key = new StringBuilder();
+        List<String> values = new ArrayList<String>();
+        describe(filter, key, values);
+
+        Shape shape = getShape(key.toString());
+        if (shape == null) {
+            shapeMisses.incrementAndGet();
+            List<Binding> bindings = new ArrayList<Binding>();
+            StringBuilder condition = new StringBuilder();
+            boolean indexed = compile(filter, condition, bindings);
+            shape = new Shape(condition.toString(), Collections.unmodifiableList(bindings), indexed);
+            putShape(key.toString(), shape);
+        } else {
+            shapeHits.incrementAndGet();
+        }
+
+        if (!shape.indexed && !allowFullScan) {
+            rejectedFilters.incrementAndGet();
+            throw new OnPremUserManagementException("UNSUPPORTED_FILTER", "The filter cannot use an index of okta_users and"
+                    + " would read the whole table, filter on userName, id or the name, or set allowFullScan");
+        }
+
+        List<Object> parameters = new ArrayList<Object>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            parameters.add(bind(shape.bindings.get(i), values.get(i)));
+        }
+        return new UserQuery(shape.condition, parameters);
+    }
+
+    /**
+     * Write the structure of a filter into the shape key and collect its values in the order of the parameters.
+     */
+    private static void describe(SCIMFilter filter, StringBuilder key, List<String> values) throws OnPremUserManagementException {
+        SCIMFilterType type = filter.getFilterType();
+        key.append(type).append('(');
+        if (type == SCIMFilterType.OR) {
+            for (SCIMFilter expression : getExpressions(filter)) {
+                describe(expression, key, values);
+                key.append(',');
+            }
+        } else {
+            key.append(getColumn(filter.getFilterAttribute()));
+            values.add(filter.getFilterValue());
+        }
+        key.append(')');
+    }
+
+    /**
+     * Compile a filter into a condition.
+     *
+     * @return Whether the rows of the condition can be found from an index.
+     */
+    private static boolean compile(SCIMFilter filter, StringBuilder condition, List<Binding> bindings)
+            throws OnPremUserManagementException {
+        SCIMFilterType type = filter.getFilterType();
+        if (type == SCIMFilterType.OR) {
+            //an or reads the rows of every term
+            boolean indexed = true;
+            condition.append('(');
+            String separator = "";
+            for (SCIMFilter expression : getExpressions(filter)) {
+                condition.append(separator);
+                indexed &= compile(expression, condition, bindings);
+                separator = " OR ";
+            }
+            condition.append(')');
+            return indexed;
+        }
+        if (type != SCIMFilterType.EQUALS) {
+            throw new OnPremUserManagementException("UNSUPPORTED_FILTER", "The " + type + " filter is not supported");
+        }
+
+        String column = getColumn(filter.getFilterAttribute());
+        condition.append(column).append(" = ?");
+        bindings.add("is_active".equals(column) ? Binding.BOOLEAN : Binding.VALUE);
+        return INDEXED_COLUMNS.contains(column);
+    }
+
+    private static Object bind(Binding binding, String value) {
+        return binding == Binding.BOOLEAN ? Boolean.valueOf(value) : value;
+    }
+
+    private static List<SCIMFilter> getExpressions(SCIMFilter filter) throws OnPremUserManagementException {
+        List<SCIMFilter> expressions = filter.getFilterExpressions();
+        if (expressions == null || expressions.isEmpty()) {
+            throw new OnPremUserManagementException("UNSUPPORTED_FILTER", "The " + filter.getFilterType() + " filter has no terms");
+        }
+        return expressions;
+    }
+
+    /**
+     * Get the okta_users column of a SCIM filter attribute.
+     *
+     * @param attribute The filtered attribute.
+     * @return The column.
+     * @throws OnPremUserManagementException with UNSUPPORTED_FILTER if the attribute is not stored.
+     */
+    static String getColumn(SCIMFilterAttribute attribute) throws OnPremUserManagementException {
+        String name = attribute.getAttributeName();
+        String subName = attribute.getSubAttributeName();
+        String column = null;
+        if (PasswordCaptureSCIMServiceImpl.USER_CUSTOM_URN.equals(attribute.getSchema())) {
+            if (PasswordCaptureSCIMServiceImpl.CUSTOM_SCHEMA_PROPERTY_NAME_UNIQUE_ID.equals(name)) {
+                column = "userid";
+            }
+        } else if ("id".equals(name)) {
+            column = "userid";
+        } else if ("userName".equals(name)) {
+            column = "user_name";
+        } else if ("active".equals(name)) {
+            column = "is_active";
+        } else if ("name".equals(name) && "givenName".equals(subName)) {
+            column = "first_name";
+        } else if ("name".equals(name) && "familyName".equals(subName)) {
+            column = "last_name";
+        }
+        if (column == null) {
+            throw new OnPremUserManagementException("UNSUPPORTED_FILTER", "Filtering on " + name
+                    + (subName == null ? "" : "." + subName) + " is not supported");
+        }
+        return column;
+    }
+
+    private Shape getShape(String key) {
+        synchronized (shapes) {
+            return shapes.get(key);
+        }
+    }
+
+    private void putShape(String key, Shape shape) {
+        synchronized (shapes) {
+            shapes.put(key, shape);
+            if (shapes.size() > maxShapes) {
+                shapes.remove(shapes.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Get the number of filters rejected because they would read the whole table.
+     *
+     * @return The rejected filter count.
+     */
+    public long getRejectedFilters() {
+        return rejectedFilters.get();
+    }
+
+    /**
+     * Get the number of filters whose SQL was taken from the cache.
+     *
+     * @return The shape hit count.
+     */
+    public long getShapeHits() {
+        return shapeHits.get();
+    }
+
+    /**
+     * Get the number of filters whose SQL had to be compiled.
+     *
+     * @return The shape miss count.
+     */
+    public long getShapeMisses() {
+        return shapeMisses.get();
+    }
+
+    /**
+     * Get the number of cached filter structures.
+     *
+     * @return The number of shapes.
+     */
+    public int getSize() {
+        synchronized (shapes) {
+            return shapes.size();
+        }
+    }
+
+    /**
+     * Set the maximum number of cached filter structures.
+     *
+     * @param maxShapes The maximum number of shapes to set.
+     */
+    public void setMaxShapes(int maxShapes) {
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * Set whether filters that cannot use an index are run, reading the whole table.
+     *
+     * @param allowFullScan Whether full scans are allowed.
+     */
+    public void setAllowFullScan(boolean allowFullScan) {
+        this.allowFullScan = allowFullScan;
+    }
+}
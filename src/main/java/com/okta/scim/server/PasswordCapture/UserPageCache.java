@@ -0,0 +1,264 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Page boundaries and row counts of the <code>getUsers</code> listings.
+ * <p>
+ * SCIM pages by start index, while the listing is read by keyset: the rows after the last userid of the previous
+ * page. This cache remembers, per query, the userid each start index follows, so a client paging through the listing
+ * in order reads every page with a single index range scan. A start index that was never reached is found from the
+ * nearest remembered boundary below it, skipping over the userid index only.
+ * <p>
+ * The row count of each query is cached for <code>countTtlMillis</code>, counting a large table on every page would
+ * cost more than the page itself. A query's boundaries are dropped once it has not been used for
+ * <code>ttlMillis</code>. Rows created while a client pages through a listing show up on the pages that are still to
+ * come, they do not shift the pages already read.
+ *
+ * @author praven Atluri
+ */
+public class UserPageCache {
+
+    //Cache configuration, these properties are set via the Spring dispatcher-servlet.xml file
+    private long ttlMillis = 10 * 60 * 1000;
+    private long countTtlMillis = 60 * 1000;
+    private int maxQueries = 1000;
+    private int maxBoundariesPerQuery = 100000;
+
+    //access ordered, the least recently used query is dropped first
+    private final LinkedHashMap<String, QueryPages> queries = new LinkedHashMap<String, QueryPages>(64, 0.75f, true);
+
+    private long boundaryHits;
+    private long boundaryMisses;
+    private long countHits;
+    private long countMisses;
+
+    /**
+     * A start index and the userid the rows from that index follow.
+     */
+    public static final class Boundary {
+        private final long startIndex;
+        private final String afterUserId;
+
+        private Boundary(long startIndex, String afterUserId) {
+            this.startIndex = startIndex;
+            this.afterUserId = afterUserId;
+        }
+
+        /**
+         * Get the start index the boundary is at.
+         *
+         * @return The 1 based start index.
+         */
+        public long getStartIndex() {
+            return startIndex;
+        }
+
+        /**
+         * Get the userid the rows from the start index follow.
+         *
+         * @return The userid, the empty string for the start of the listing.
+         */
+        public String getAfterUserId() {
+            return afterUserId;
+        }
+    }
+
+    /**
+     * Get the remembered boundary closest to a start index, at or below it.
+     *
+     * @param queryKey   The key of the query.
+     * @param startIndex The 1 based start index.
+     * @return The boundary, or null when none is remembered and the listing has to be read from its start.
+     */
+    public synchronized Boundary floor(String queryKey, long startIndex) {
+        QueryPages pages = get(queryKey);
+        Map.Entry<Long, String> entry = pages == null ? null : pages.boundaries.floorEntry(startIndex);
+        if (entry != null && entry.getKey() == startIndex) {
+            boundaryHits++;
+        } else {
+            boundaryMisses++;
+        }
+        return entry == null ? null : new Boundary(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Remember the userid the rows from a start index follow.
+     *
+     * @param queryKey    The key of the query.
+     * @param startIndex  The 1 based start index.
+     * @param afterUserId The userid of the row just before the start index.
+     */
+    public synchronized void put(String queryKey, long startIndex, String afterUserId) {
+        QueryPages pages = getOrCreate(queryKey);
+        pages.boundaries.put(startIndex, afterUserId);
+        if (pages.boundaries.size() > maxBoundariesPerQuery) {
+            //a client pages forward, the lowest start index is the least likely to be read again
+            pages.boundaries.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Get the cached row count of a query.
+     *
+     * @param queryKey The key of the query.
+     * @return The count, or -1 when it is not cached or has expired.
+     */
+    public synchronized int getCount(String queryKey) {
+        QueryPages pages = get(queryKey);
+        if (pages == null || pages.count < 0 || System.currentTimeMillis() - pages.countLoadedAt > countTtlMillis) {
+            countMisses++;
+            return -1;
+        }
+        countHits++;
+        return pages.count;
+    }
+
+    /**
+     * Cache the row count of a query.
+     *
+     * @param queryKey The key of the query.
+     * @param count    The count.
+     */
+    public synchronized void putCount(String queryKey, int count) {
+        QueryPages pages = getOrCreate(queryKey);
+        pages.count = count;
+        pages.countLoadedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Drop every boundary and count.
+     */
+    public synchronized void clear() {
+        queries.clear();
+    }
+
+    private QueryPages get(String queryKey) {
+        expire();
+        QueryPages pages = queries.get(queryKey);
+        if (pages != null) {
+            pages.usedAt = System.currentTimeMillis();
+        }
+        return pages;
+    }
+
+    private QueryPages getOrCreate(String queryKey) {
+        QueryPages pages = get(queryKey);
+        if (pages == null) {
+            pages = new QueryPages();
+            queries.put(queryKey, pages);
+            if (queries.size() > maxQueries) {
+                Iterator<QueryPages> it = queries.values().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        return pages;
+    }
+
+    private void expire() {
+        long unusedSince = System.currentTimeMillis() - ttlMillis;
+        //the iteration order of an access ordered map is least recently used first
+        Iterator<QueryPages> it = queries.values().iterator();
+        while (it.hasNext() && it.next().usedAt < unusedSince) {
+            it.remove();
+        }
+    }
+
+    /**
+     * The boundaries and count of one query.
+     */
+    private static final class QueryPages {
+        private final TreeMap<Long, String> boundaries = new TreeMap<Long, String>();
+        private int count = -1;
+        private long countLoadedAt;
+        private long usedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the number of pages whose start index was remembered.
+     *
+     * @return The boundary hit count.
+     */
+    public synchronized long getBoundaryHits() {
+        return boundaryHits;
+    }
+
+    /**
+     * Get the number of pages whose start index had to be found by skipping over the index.
+     *
+     * @return The boundary miss count.
+     */
+    public synchronized long getBoundaryMisses() {
+        return boundaryMisses;
+    }
+
+    /**
+     * Get the number of row counts served from the cache.
+     *
+     * @return The count hit count.
+     */
+    public synchronized long getCountHits() {
+        return countHits;
+    }
+
+    /**
+     * Get the number of row counts that had to be queried.
+     *
+     * @return The count miss count.
+     */
+    public synchronized long getCountMisses() {
+        return countMisses;
+    }
+
+    /**
+     * Get the number of queries with remembered boundaries or counts.
+     *
+     * @return The number of queries.
+     */
+    public synchronized int getSize() {
+        return queries.size();
+    }
+
+    /**
+     * Set how long the boundaries of a query are kept after it was last used.
+     *
+     * @param ttlMillis The time to live in milliseconds to set.
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Set how long the row count of a query is served from the cache.
+     *
+     * @param countTtlMillis The time to live in milliseconds to set.
+     */
+    public void setCountTtlMillis(long countTtlMillis) {
+        this.countTtlMillis = countTtlMillis;
+    }
+
+    /**
+     * Set the maximum number of queries with remembered boundaries.
+     *
+     * @param maxQueries The maximum number of queries to set.
+     */
+    public void setMaxQueries(int maxQueries) {
+        this.maxQueries = maxQueries;
+    }
+
+    /**
+     * Set the maximum number of boundaries remembered per query.
+     *
+     * @param maxBoundariesPerQuery The maximum number of boundaries to set.
+     */
+    public void setMaxBoundariesPerQuery(int maxBoundariesPerQuery) {
+        this.maxBoundariesPerQuery = maxBoundariesPerQuery;
+    }
+}
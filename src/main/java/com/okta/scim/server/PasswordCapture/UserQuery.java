@@ -0,0 +1,101 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The <code>okta_users</code> rows a <code>getUsers</code> call lists: a SQL condition with its parameters, built from
+ * the SCIM filter. Pages are read in userid order after the last userid of the previous page, so the next page of a
+ * sequential walk is an index range scan however deep into the listing it is.
+ *
+ * @author praven Atluri
+ */
+public class UserQuery {
+
+    /**
+     * The columns a listed user is built from.
+     */
+    static final String COLUMNS = "userid,first_name,last_name,user_name,is_active";
+
+    private final String condition;
+    private final List<Object> values;
+
+    /**
+     * Create a query.
+     *
+     * @param condition The SQL condition, null or empty for all the rows.
+     * @param values    The parameters of the condition, in order.
+     */
+    public UserQuery(String condition, List<Object> values) {
+        this.condition = condition == null ? "" : condition;
+        this.values = values == null ? Collections.emptyList() : new ArrayList<Object>(values);
+    }
+
+    /**
+     * Get the query counting the rows.
+     *
+     * @return The SQL.
+     */
+    public String toCountSql() {
+        return "SELECT COUNT(*) FROM okta_users" + (condition.isEmpty() ? "" : " WHERE " + condition);
+    }
+
+    /**
+     * Get the query of the rows after a userid, in userid order. The dialect appends the limit.
+     *
+     * @param columns The selected columns.
+     * @return The SQL.
+     */
+    public String toPageSql(String columns) {
+        return "SELECT " + columns + " FROM okta_users WHERE " + (condition.isEmpty() ? "" : "(" + condition + ") AND ")
+                + "userid > ? ORDER BY userid";
+    }
+
+    /**
+     * Bind the parameters of the condition.
+     *
+     * @param stmt The statement.
+     * @return The index of the next parameter.
+     * @throws SQLException
+     */
+    public int bind(PreparedStatement stmt) throws SQLException {
+        int index = 1;
+        for (Object value : values) {
+            stmt.setObject(index++, value);
+        }
+        return index;
+    }
+
+    /**
+     * Get a key that is equal for queries listing the same rows, for caching.
+     *
+     * @return The key.
+     */
+    public String getKey() {
+        return condition + " " + values;
+    }
+
+    /**
+     * Get the SQL condition of the filter.
+     *
+     * @return The condition, empty for all the rows.
+     */
+    public String getCondition() {
+        return condition;
+    }
+
+    /**
+     * Get the parameters of the condition.
+     *
+     * @return The parameters, in order.
+     */
+    public List<Object> getValues() {
+        return Collections.unmodifiableList(values);
+    }
+}
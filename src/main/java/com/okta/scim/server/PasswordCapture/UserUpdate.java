@@ -0,0 +1,332 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * The columns of one <code>okta_users</code> row written by <code>updateUser</code>. Columns left <code>null</code> are not
+ * written, so the UPDATE statement only depends on which columns are set and updates with the same columns can share
+ * a JDBC batch.
+ * <p>
+ * An update can be guarded by the fingerprint of the stored password, see {@link PasswordFingerprint}: it then only
+ * writes the row while <code>password_hmac</code> still matches, and affects no row otherwise.
+ *
+ * @author praven Atluri
+ */
+public class UserUpdate {
+
+    private final String userId;
+    private String firstName;
+    private String lastName;
+    private String userName;
+    private byte[] password;
+    private byte[] passwordHmac;
+    private Boolean active;
+    private byte[] expectedPasswordHmac;
+
+    /**
+     * Create an update of the given user that does not write any column yet.
+     *
+     * @param userId The immutable id of the user.
+     */
+    public UserUpdate(String userId) {
+        this.userId = userId;
+    }
+
+    /**
+     * Get the UPDATE statement for the columns that are set.
+     *
+     * @return The UPDATE statement.
+     */
+    public String toSql() {
+        StringBuilder sql = new StringBuilder("UPDATE okta_users set ");
+        int columns = 0;
+        columns = appendColumn(sql, "first_name", firstName != null, columns);
+        columns = appendColumn(sql, "last_name", lastName != null, columns);
+        columns = appendColumn(sql, "user_name", userName != null, columns);
+        columns = appendColumn(sql, "password", password != null, columns);
+        columns = appendColumn(sql, "password_hmac", passwordHmac != null, columns);
+        appendColumn(sql, "is_active", active != null, columns);
+        sql.append(" WHERE userid = ?");
+        if (expectedPasswordHmac != null) {
+            sql.append(" AND password_hmac = ?");
+        }
+        return sql.toString();
+    }
+
+    private static int appendColumn(StringBuilder sql, String column, boolean set, int columns) {
+        if (!set) {
+            return columns;
+        }
+        if (columns > 0) {
+            sql.append(", ");
+        }
+        sql.append(column).append("=?");
+        return columns + 1;
+    }
+
+    /**
+     * Bind the parameters of the statement returned by {@link #toSql()}.
+     *
+     * @param stmt The statement.
+     * @throws SQLException
+     */
+    public void bind(PreparedStatement stmt) throws SQLException {
+        int index = 1;
+        if (firstName != null) {
+            stmt.setString(index++, firstName);
+        }
+        if (lastName != null) {
+            stmt.setString(index++, lastName);
+        }
+        if (userName != null) {
+            stmt.setString(index++, userName);
+        }
+        if (password != null) {
+            stmt.setBytes(index++, password);
+        }
+        if (passwordHmac != null) {
+            stmt.setBytes(index++, passwordHmac);
+        }
+        if (active != null) {
+            stmt.setBoolean(index++, active);
+        }
+        stmt.setString(index++, userId);
+        if (expectedPasswordHmac != null) {
+            stmt.setBytes(index, expectedPasswordHmac);
+        }
+    }
+
+    /**
+     * Fold a newer update of the same user into this one. Every column the newer update writes wins, the columns it
+     * leaves alone keep the value from this update. Only updates with the same guard are folded, see
+     * {@link #canMerge(UserUpdate)}.
+     *
+     * @param newer The newer update of the same user.
+     */
+    public void merge(UserUpdate newer) {
+        if (!userId.equals(newer.userId)) {
+            throw new IllegalArgumentException("Cannot merge the update of user " + newer.userId + " into the update of user " + userId);
+        }
+        if (!canMerge(newer)) {
+            throw new IllegalArgumentException("Cannot merge updates of user " + userId + " with different password guards");
+        }
+        if (newer.firstName != null) {
+            firstName = newer.firstName;
+        }
+        if (newer.lastName != null) {
+            lastName = newer.lastName;
+        }
+        if (newer.userName != null) {
+            userName = newer.userName;
+        }
+        if (newer.password != null) {
+            password = newer.password;
+            passwordHmac = newer.passwordHmac;
+        }
+        if (newer.active != null) {
+            active = newer.active;
+        }
+    }
+
+    /**
+     * Tells whether a newer update can be folded into this one. A guard covers the columns of the call that set it: when
+     * it misses, only that caller writes its columns again. Folding an unguarded update into a guarded one, or the
+     * other way round, would let a missed guard drop the columns of the unguarded caller, so only updates that are both
+     * unguarded, or both guarded by the same fingerprint, are folded.
+     *
+     * @param newer The newer update of the same user.
+     * @return false when the newer update has to be written on its own, after this one.
+     */
+    public boolean canMerge(UserUpdate newer) {
+        if (isGuarded() || newer.isGuarded()) {
+            return Arrays.equals(expectedPasswordHmac, newer.expectedPasswordHmac);
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether the update only applies while the stored password fingerprint matches.
+     *
+     * @return true for a guarded update.
+     */
+    public boolean isGuarded() {
+        return expectedPasswordHmac != null;
+    }
+
+    /**
+     * Stop writing the columns that already hold the value of this update in the stored row. The password is left
+     * alone, the encrypted values cannot be compared.
+     *
+     * @param row The stored row of the user.
+     * @return The number of columns that are no longer written.
+     */
+    public int removeUnchanged(UserCache.CachedUser row) {
+        int removed = 0;
+        if (firstName != null && firstName.equals(row.getFirstName())) {
+            firstName = null;
+            removed++;
+        }
+        if (lastName != null && lastName.equals(row.getLastName())) {
+            lastName = null;
+            removed++;
+        }
+        if (userName != null && userName.equals(row.getUserName())) {
+            userName = null;
+            removed++;
+        }
+        if (active != null && active == row.isActive()) {
+            active = null;
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Tells whether no column is written.
+     *
+     * @return true when there is nothing to update.
+     */
+    public boolean isEmpty() {
+        return firstName == null && lastName == null && userName == null && password == null && passwordHmac == null && active == null;
+    }
+
+    /**
+     * Get the user the update writes.
+     *
+     * @return The immutable id of the user.
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Get the first_name column to write.
+     *
+     * @return The first name, null when the column is not written.
+     */
+    public String getFirstName() {
+        return firstName;
+    }
+
+    /**
+     * Write the first_name column.
+     *
+     * @param firstName The first name, null to leave the column alone.
+     */
+    public void setFirstName(String firstName) {
+        this.firstName = firstName;
+    }
+
+    /**
+     * Get the last_name column to write.
+     *
+     * @return The last name, null when the column is not written.
+     */
+    public String getLastName() {
+        return lastName;
+    }
+
+    /**
+     * Write the last_name column.
+     *
+     * @param lastName The last name, null to leave the column alone.
+     */
+    public void setLastName(String lastName) {
+        this.lastName = lastName;
+    }
+
+    /**
+     * Get the user_name column to write.
+     *
+     * @return The user name, null when the column is not written.
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Write the user_name column.
+     *
+     * @param userName The user name, null to leave the column alone.
+     */
+    public void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+    /**
+     * Get the encrypted password to write.
+     *
+     * @return The encrypted password, null when the column is not written.
+     */
+    public byte[] getPassword() {
+        return password;
+    }
+
+    /**
+     * Write the password column.
+     *
+     * @param password The encrypted password, null to leave the column alone.
+     */
+    public void setPassword(byte[] password) {
+        this.password = password;
+    }
+
+    /**
+     * Get the fingerprint of the written password.
+     *
+     * @return The password_hmac column, null when the column is not written.
+     */
+    public byte[] getPasswordHmac() {
+        return passwordHmac;
+    }
+
+    /**
+     * Write the password_hmac column, together with the password it is the fingerprint of.
+     *
+     * @param passwordHmac The password fingerprint, null to leave the column alone.
+     */
+    public void setPasswordHmac(byte[] passwordHmac) {
+        this.passwordHmac = passwordHmac;
+    }
+
+    /**
+     * Get the password fingerprint the stored row must still have for the update to apply.
+     *
+     * @return The expected password_hmac, null for an unguarded update.
+     */
+    public byte[] getExpectedPasswordHmac() {
+        return expectedPasswordHmac;
+    }
+
+    /**
+     * Only apply the update while the stored row still has the given password fingerprint.
+     *
+     * @param expectedPasswordHmac The expected password_hmac, null for an unguarded update.
+     */
+    public void setExpectedPasswordHmac(byte[] expectedPasswordHmac) {
+        this.expectedPasswordHmac = expectedPasswordHmac;
+    }
+
+    /**
+     * Get the is_active column to write.
+     *
+     * @return Whether the user is active, null when the column is not written.
+     */
+    public Boolean getActive() {
+        return active;
+    }
+
+    /**
+     * Write the is_active column.
+     *
+     * @param active Whether the user is active, null to leave the column alone.
+     */
+    public void setActive(Boolean active) {
+        this.active = active;
+    }
+}
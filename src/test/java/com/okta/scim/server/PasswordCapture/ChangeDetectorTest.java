@@ -0,0 +1,91 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link ChangeDetector} and the column comparison of {@link UserUpdate#removeUnchanged(UserCache.CachedUser)}.
+ *
+ * @author praven Atluri
+ */
+public class ChangeDetectorTest {
+
+    private static final byte[] PASSWORD = {1, 2, 3};
+
+    private static final UserCache.CachedUser ROW =
+            new UserCache.CachedUser("Ann", "Smith", "ann@example.com", PASSWORD, null, true);
+
+    private final ChangeDetector detector = new ChangeDetector();
+
+    @Test
+    public void onlyTheChangedColumnsAreWritten() {
+        UserUpdate update = push("Ann", "Jones", "ann@example.com", true);
+
+        detector.removeUnchanged(update, ROW);
+
+        assertEquals("UPDATE okta_users set last_name=? WHERE userid = ?", update.toSql());
+        assertEquals(3, detector.getSuppressedColumns());
+    }
+
+    @Test
+    public void pushThatChangesNothingIsEmpty() {
+        UserUpdate update = push("Ann", "Smith", "ann@example.com", true);
+
+        detector.removeUnchanged(update, ROW);
+
+        //updateUser issues no statement for it
+        assertTrue(update.isEmpty());
+        assertEquals(4, detector.getSuppressedColumns());
+    }
+
+    @Test
+    public void deactivationIsWritten() {
+        UserUpdate update = push("Ann", "Smith", "ann@example.com", false);
+
+        detector.removeUnchanged(update, ROW);
+
+        assertFalse(update.isEmpty());
+        assertEquals(Boolean.FALSE, update.getActive());
+        assertNull(update.getFirstName());
+    }
+
+    @Test
+    public void passwordIsAlwaysWritten() {
+        UserUpdate update = push("Ann", "Smith", "ann@example.com", true);
+        update.setPassword(PASSWORD);
+
+        detector.removeUnchanged(update, ROW);
+
+        //the ciphertexts cannot be compared, the fingerprint guard skips unchanged passwords
+        assertFalse(update.isEmpty());
+        assertArrayEquals(PASSWORD, update.getPassword());
+    }
+
+    @Test
+    public void ratioCountsEveryComparedPush() {
+        detector.removeUnchanged(push("Ann", "Jones", "ann@example.com", true), ROW);
+        UserUpdate unchanged = push("Ann", "Smith", "ann@example.com", true);
+        detector.removeUnchanged(unchanged, ROW);
+        detector.recordSuppressedUpdate();
+
+        assertEquals(2, detector.getComparedUpdates());
+        assertEquals(0.5, detector.getSuppressionRatio(), 0.001);
+    }
+
+    private static UserUpdate push(String firstName, String lastName, String userName, boolean active) {
+        UserUpdate update = new UserUpdate("u1");
+        update.setFirstName(firstName);
+        update.setLastName(lastName);
+        update.setUserName(userName);
+        update.setActive(active);
+        return update;
+    }
+}
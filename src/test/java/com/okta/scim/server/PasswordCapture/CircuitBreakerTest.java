@@ -0,0 +1,197 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link CircuitBreaker}.
+ *
+ * @author praven Atluri
+ */
+public class CircuitBreakerTest {
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new CircuitBreaker();
+        breaker.setWindowSize(4);
+        breaker.setMinimumCalls(4);
+        breaker.setFailureRatePercent(50);
+        breaker.setOpenMillis(60000);
+        breaker.setHalfOpenCalls(2);
+        breaker.setRetryBaseMillis(1);
+        breaker.setRetryMaxMillis(1);
+    }
+
+    @Test
+    public void staysClosedBelowTheMinimumCalls() {
+        failCalls(3, new SQLTimeoutException("timeout"));
+
+        assertEquals("CLOSED", breaker.getState());
+        assertEquals(100.0, breaker.getFailureRate(), 0.001);
+    }
+
+    @Test
+    public void opensAtTheFailureRate() {
+        succeedCalls(2);
+        failCalls(2, new SQLTimeoutException("timeout"));
+
+        assertEquals("OPEN", breaker.getState());
+        assertEquals(1, breaker.getOpenings());
+    }
+
+    @Test
+    public void windowForgetsTheOldestOutcomes() {
+        failCalls(1, new SQLTimeoutException("timeout"));
+        succeedCalls(3);
+        //the failure drops out of the window
+        succeedCalls(1);
+        failCalls(1, new SQLTimeoutException("timeout"));
+
+        assertEquals("CLOSED", breaker.getState());
+        assertEquals(25.0, breaker.getFailureRate(), 0.001);
+    }
+
+    @Test
+    public void answersOfTheDatabaseAreNotFailures() {
+        failCalls(4, new SQLException("duplicate key", "23000"));
+
+        assertEquals("CLOSED", breaker.getState());
+        assertEquals(0.0, breaker.getFailureRate(), 0.001);
+    }
+
+    @Test
+    public void openCircuitRefusesCallsWithoutRunningThem() throws SQLException {
+        failCalls(4, new SQLTimeoutException("timeout"));
+        CountingCall call = new CountingCall();
+
+        try {
+            breaker.execute("getUser", false, call);
+            fail("the open circuit let the call through");
+        } catch (OnPremUserManagementException expected) {
+            //refused
+        }
+
+        assertEquals(0, call.calls.get());
+        assertEquals(1, breaker.getRejectedCalls());
+    }
+
+    @Test
+    public void halfOpenCircuitClosesAfterTheTrialCallsSucceed() {
+        breaker.setOpenMillis(0);
+        failCalls(4, new SQLTimeoutException("timeout"));
+
+        succeedCalls(1);
+        assertEquals("HALF_OPEN", breaker.getState());
+        succeedCalls(1);
+
+        assertEquals("CLOSED", breaker.getState());
+        assertEquals(0.0, breaker.getFailureRate(), 0.001);
+    }
+
+    @Test
+    public void halfOpenCircuitOpensAgainWhenATrialCallFails() {
+        breaker.setOpenMillis(0);
+        failCalls(4, new SQLTimeoutException("timeout"));
+
+        succeedCalls(1);
+        failCalls(1, new SQLTimeoutException("timeout"));
+
+        assertEquals(2, breaker.getOpenings());
+    }
+
+    @Test
+    public void transientFailuresAreRetried() throws SQLException {
+        CountingCall call = new CountingCall(new SQLException("deadlock", "40001"), new SQLException("deadlock", "40001"));
+
+        assertEquals("done", breaker.execute("updateUser", true, call));
+
+        assertEquals(3, call.calls.get());
+        assertEquals(2, breaker.getRetries());
+    }
+
+    @Test
+    public void callsThatCannotRunTwiceAreNotRetried() {
+        SQLException deadlock = new SQLException("deadlock", "40001");
+        CountingCall call = new CountingCall(deadlock);
+
+        try {
+            breaker.execute("createUser", false, call);
+            fail("the failure was swallowed");
+        } catch (SQLException ex) {
+            assertSame(deadlock, ex);
+        }
+
+        assertEquals(1, call.calls.get());
+    }
+
+    @Test
+    public void retriesStopAtMaxRetries() {
+        breaker.setMaxRetries(1);
+        CountingCall call = new CountingCall(new SQLException("deadlock", "40001"), new SQLException("deadlock", "40001"));
+
+        try {
+            breaker.execute("updateUser", true, call);
+            fail("the failure was swallowed");
+        } catch (SQLException expected) {
+            //gave up
+        }
+
+        assertEquals(2, call.calls.get());
+    }
+
+    private void succeedCalls(int calls) {
+        for (int i = 0; i < calls; i++) {
+            try {
+                breaker.execute("getUser", false, new CountingCall());
+            } catch (SQLException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+    }
+
+    private void failCalls(int calls, SQLException failure) {
+        for (int i = 0; i < calls; i++) {
+            try {
+                breaker.execute("getUser", false, new CountingCall(failure));
+                fail("the failure was swallowed");
+            } catch (SQLException expected) {
+                //counted by the breaker
+            }
+        }
+    }
+
+    /**
+     * Fails with the given exceptions, one per call, then returns "done".
+     */
+    private static class CountingCall implements CircuitBreaker.Call<String, SQLException> {
+        private final SQLException[] failures;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private CountingCall(SQLException... failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public String call() throws SQLException {
+            int call = calls.getAndIncrement();
+            if (call < failures.length && failures[call] != null) {
+                throw failures[call];
+            }
+            return "done";
+        }
+    }
+}
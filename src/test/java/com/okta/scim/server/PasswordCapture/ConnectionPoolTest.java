@@ -0,0 +1,264 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link ConnectionPool} against a driver of fake connections.
+ *
+ * @author praven Atluri
+ */
+public class ConnectionPoolTest {
+
+    private static final String URL = "jdbc:pooltest:users";
+
+    private static final FakeDriver DRIVER = new FakeDriver();
+
+    static {
+        try {
+            DriverManager.registerDriver(DRIVER);
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws SQLException {
+        DRIVER.connections.clear();
+        pool = new ConnectionPool();
+        pool.setUrl(URL);
+        pool.setMinSize(1);
+        pool.setMaxSize(2);
+        pool.setAcquireTimeoutMillis(100);
+        pool.start();
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void startOpensTheMinimumConnections() {
+        assertEquals(1, DRIVER.connections.size());
+        assertEquals(1, pool.getTotalConnections());
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    @Test
+    public void closedConnectionIsHandedOutAgain() throws SQLException {
+        Connection first = pool.getConnection();
+        first.close();
+        Connection second = pool.getConnection();
+        second.close();
+
+        assertEquals(1, DRIVER.connections.size());
+        assertTrue(first.isClosed());
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    @Test
+    public void exhaustedPoolTimesOut() throws SQLException {
+        Connection first = pool.getConnection();
+        Connection second = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("a third connection was handed out");
+        } catch (SQLException ex) {
+            assertEquals("08001", ex.getSQLState());
+        }
+
+        second.close();
+        pool.getConnection().close();
+        first.close();
+        assertEquals(2, DRIVER.connections.size());
+    }
+
+    @Test
+    public void openTransactionIsRolledBackOnClose() throws SQLException {
+        Connection conn = pool.getConnection();
+        conn.setAutoCommit(false);
+        conn.close();
+
+        FakeConnection physical = DRIVER.connections.get(0);
+        assertEquals(1, physical.rollbacks);
+        assertTrue(physical.autoCommit);
+    }
+
+    @Test
+    public void connectionThatRaisedAConnectionExceptionIsDiscarded() throws SQLException {
+        Connection conn = pool.getConnection();
+        DRIVER.connections.get(0).failure = new SQLException("connection reset", "08S01");
+        try {
+            conn.createStatement();
+            fail("the failure was swallowed");
+        } catch (SQLException expected) {
+            //the physical connection is dead
+        }
+        conn.close();
+
+        assertTrue(DRIVER.connections.get(0).closed);
+        assertEquals(0, pool.getTotalConnections());
+        pool.getConnection().close();
+        assertEquals(2, DRIVER.connections.size());
+    }
+
+    @Test
+    public void otherFailuresKeepTheConnection() throws SQLException {
+        Connection conn = pool.getConnection();
+        DRIVER.connections.get(0).failure = new SQLException("duplicate key", "23000");
+        try {
+            conn.createStatement();
+            fail("the failure was swallowed");
+        } catch (SQLException expected) {
+            //an answer of the database
+        }
+        conn.close();
+
+        assertFalse(DRIVER.connections.get(0).closed);
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    @Test
+    public void returnedHandleCannotBeUsed() throws SQLException {
+        Connection conn = pool.getConnection();
+        conn.close();
+        //closing twice returns the connection once
+        conn.close();
+
+        try {
+            conn.createStatement();
+            fail("a returned handle reached the physical connection");
+        } catch (SQLException ex) {
+            assertEquals("08003", ex.getSQLState());
+        }
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    @Test
+    public void closedPoolClosesItsIdleConnections() throws SQLException {
+        pool.close();
+
+        assertTrue(DRIVER.connections.get(0).closed);
+        try {
+            pool.getConnection();
+            fail("a closed pool handed out a connection");
+        } catch (SQLException ex) {
+            assertEquals("08003", ex.getSQLState());
+        }
+    }
+
+    /**
+     * Hands out a new {@link FakeConnection} for every connect.
+     */
+    private static class FakeDriver implements Driver {
+        private final List<FakeConnection> connections = Collections.synchronizedList(new ArrayList<FakeConnection>());
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            FakeConnection physical = new FakeConnection();
+            connections.add(physical);
+            return (Connection) Proxy.newProxyInstance(ConnectionPoolTest.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, physical);
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:pooltest:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    /**
+     * Records the transaction state of a physical connection, and raises <code>failure</code> on any other call.
+     */
+    private static class FakeConnection implements InvocationHandler {
+        private volatile boolean autoCommit = true;
+        private volatile boolean closed;
+        private volatile int rollbacks;
+        private volatile SQLException failure;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("getAutoCommit".equals(name)) {
+                return autoCommit;
+            }
+            if ("setAutoCommit".equals(name)) {
+                autoCommit = (Boolean) args[0];
+                return null;
+            }
+            if ("rollback".equals(name)) {
+                rollbacks++;
+                return null;
+            }
+            if ("close".equals(name)) {
+                closed = true;
+                return null;
+            }
+            if ("isValid".equals(name)) {
+                return !closed;
+            }
+            if ("clearWarnings".equals(name)) {
+                return null;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            throw new SQLFeatureNotSupportedException(name);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of {@link EciesCipher} with P-256 keys, X25519 needs a Java 11 runtime.
+ *
+ * @author praven Atluri
+ */
+public class EciesCipherTest {
+
+    private static final byte[] PASSWORD = "Tr0ub4dor&3".getBytes(Charset.forName("UTF-8"));
+    private static final byte[] KEY_ID = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    private static final KeyPair KEY_PAIR = generateKeyPair();
+
+    @Test
+    public void decryptsWhatItEncrypted() throws GeneralSecurityException {
+        byte[] cipherText = EciesCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+
+        assertTrue(EciesCipher.isEcies(cipherText));
+        assertFalse(EnvelopeCipher.isEnvelope(cipherText));
+        assertArrayEquals(KEY_ID, EciesCipher.getKeyId(cipherText));
+        assertArrayEquals(PASSWORD, EciesCipher.decrypt(cipherText, KEY_PAIR.getPrivate()));
+    }
+
+    @Test
+    public void everyPasswordHasItsOwnEphemeralKey() throws GeneralSecurityException {
+        byte[] first = EciesCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+        byte[] second = EciesCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+
+        assertFalse(Arrays.equals(first, second));
+        assertArrayEquals(PASSWORD, EciesCipher.decrypt(second, KEY_PAIR.getPrivate()));
+    }
+
+    @Test
+    public void ellipticCurveKeysAreSupported() {
+        assertTrue(EciesCipher.isSupported("EC"));
+        assertTrue(EciesCipher.isSupported("X25519"));
+        assertFalse(EciesCipher.isSupported("RSA"));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void tamperedCipherTextIsRejected() throws GeneralSecurityException {
+        byte[] cipherText = EciesCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+        cipherText[cipherText.length - 1] ^= 1;
+
+        EciesCipher.decrypt(cipherText, KEY_PAIR.getPrivate());
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void tamperedKeyIdIsRejected() throws GeneralSecurityException {
+        byte[] cipherText = EciesCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+        //the header is authenticated with the ciphertext
+        cipherText[EnvelopeCipher.MAGIC.length + 2] ^= 1;
+
+        EciesCipher.decrypt(cipherText, KEY_PAIR.getPrivate());
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void otherPrivateKeyIsRejected() throws GeneralSecurityException {
+        byte[] cipherText = EciesCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+
+        EciesCipher.decrypt(cipherText, generateKeyPair().getPrivate());
+    }
+
+    private static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+            keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+            return keyGen.generateKeyPair();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
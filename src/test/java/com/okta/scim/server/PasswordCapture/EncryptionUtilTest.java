@@ -0,0 +1,145 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the key provisioning of {@link EncryptionUtil}.
+ *
+ * @author praven Atluri
+ */
+public class EncryptionUtilTest {
+
+    private File keyDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        keyDirectory = Files.createTempDirectory("keys").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        EncryptionUtil.setKeyProvider(new SerializedFileKeyProvider());
+        for (File file : keyDirectory.listFiles()) {
+            file.delete();
+        }
+        keyDirectory.delete();
+    }
+
+    @Test
+    public void firstStartGeneratesTheKeyPair() throws GeneralSecurityException, IOException {
+        CountingKeyProvider provider = provider();
+        EncryptionUtil.setKeyProvider(provider);
+
+        EncryptionUtil.initializeKeys();
+
+        assertEquals(1, provider.installs.get());
+        assertTrue(EncryptionUtil.areKeysPresent());
+        assertEquals("Tr0ub4dor&3", EncryptionUtil.decrypt(EncryptionUtil.encrypt("Tr0ub4dor&3")));
+    }
+
+    @Test
+    public void laterStartsKeepTheKeyPair() throws GeneralSecurityException, IOException {
+        EncryptionUtil.setKeyProvider(provider());
+        EncryptionUtil.initializeKeys();
+        byte[] publicKey = Files.readAllBytes(new File(keyDirectory, "public.pem").toPath());
+        byte[] cipherText = EncryptionUtil.encrypt("Tr0ub4dor&3");
+
+        CountingKeyProvider restarted = provider();
+        EncryptionUtil.setKeyProvider(restarted);
+        EncryptionUtil.initializeKeys();
+
+        assertEquals(0, restarted.installs.get());
+        assertArrayEquals(publicKey, Files.readAllBytes(new File(keyDirectory, "public.pem").toPath()));
+        assertEquals("Tr0ub4dor&3", EncryptionUtil.decrypt(cipherText));
+    }
+
+    @Test
+    public void concurrentStartsGenerateASinglePair() throws InterruptedException {
+        final CountingKeyProvider first = provider();
+        final CountingKeyProvider second = provider();
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final CountingKeyProvider provider : new CountingKeyProvider[]{first, second}) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        provider.initialize();
+                    } catch (Exception ex) {
+                        failure.set(ex);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+
+        assertNull(failure.get());
+        assertEquals(1, first.installs.get() + second.installs.get());
+    }
+
+    @Test
+    public void brokenKeyFileFailsTheStart() throws GeneralSecurityException, IOException {
+        CountingKeyProvider provider = provider();
+        provider.initialize();
+        Files.write(new File(keyDirectory, "private.pem").toPath(), "not a key".getBytes("US-ASCII"));
+        EncryptionUtil.setKeyProvider(provider);
+
+        try {
+            EncryptionUtil.initializeKeys();
+            fail("the connector started with a broken key file");
+        } catch (GeneralSecurityException expected) {
+            //instead of failing the first password push
+        } catch (IOException expected) {
+            //instead of failing the first password push
+        }
+    }
+
+    private CountingKeyProvider provider() {
+        CountingKeyProvider provider = new CountingKeyProvider();
+        provider.setKeyDirectory(keyDirectory.getPath());
+        return provider;
+    }
+
+    /**
+     * Counts the key pairs it installs.
+     */
+    private static class CountingKeyProvider extends EncodedFileKeyProvider {
+        private final AtomicInteger installs = new AtomicInteger();
+
+        @Override
+        public void install(KeyPair keyPair) throws IOException {
+            installs.incrementAndGet();
+            super.install(keyPair);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of {@link EnvelopeCipher}.
+ *
+ * @author praven Atluri
+ */
+public class EnvelopeCipherTest {
+
+    private static final byte[] PASSWORD = "Tr0ub4dor&3".getBytes(Charset.forName("UTF-8"));
+    private static final byte[] KEY_ID = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    private static final KeyPair KEY_PAIR = generateKeyPair();
+    private static final KeyPair OTHER_KEY_PAIR = generateKeyPair();
+
+    @Test
+    public void decryptsWhatItEncrypted() throws GeneralSecurityException {
+        byte[] cipherText = EnvelopeCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+
+        assertTrue(EnvelopeCipher.isEnvelope(cipherText));
+        assertArrayEquals(KEY_ID, EnvelopeCipher.getKeyId(cipherText));
+        assertArrayEquals(PASSWORD, EnvelopeCipher.decrypt(cipherText, KEY_PAIR.getPrivate()));
+    }
+
+    @Test
+    public void sameDataKeyEncryptsEveryPasswordDifferently() throws GeneralSecurityException {
+        byte[] first = EnvelopeCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+        byte[] second = EnvelopeCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+
+        assertFalse(Arrays.equals(first, second));
+        assertArrayEquals(PASSWORD, EnvelopeCipher.decrypt(first, KEY_PAIR.getPrivate()));
+        assertArrayEquals(PASSWORD, EnvelopeCipher.decrypt(second, KEY_PAIR.getPrivate()));
+    }
+
+    @Test
+    public void decryptsAfterThePublicKeyChanged() throws GeneralSecurityException {
+        byte[] older = EnvelopeCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+        byte[] newer = EnvelopeCipher.encrypt(PASSWORD, OTHER_KEY_PAIR.getPublic(), KEY_ID);
+
+        assertArrayEquals(PASSWORD, EnvelopeCipher.decrypt(newer, OTHER_KEY_PAIR.getPrivate()));
+        assertArrayEquals(PASSWORD, EnvelopeCipher.decrypt(older, KEY_PAIR.getPrivate()));
+    }
+
+    @Test
+    public void rawRsaCipherTextIsNotAnEnvelope() throws GeneralSecurityException {
+        byte[] cipherText = EncryptionUtil.rsaEncrypt(PASSWORD, KEY_PAIR.getPublic());
+
+        assertFalse(EnvelopeCipher.isEnvelope(cipherText));
+        assertFalse(EnvelopeCipher.isEnvelope(null));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void tamperedCipherTextIsRejected() throws GeneralSecurityException {
+        byte[] cipherText = EnvelopeCipher.encrypt(PASSWORD, KEY_PAIR.getPublic(), KEY_ID);
+        cipherText[cipherText.length - 1] ^= 1;
+
+        EnvelopeCipher.decrypt(cipherText, KEY_PAIR.getPrivate());
+    }
+
+    private static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+            keyGen.initialize(2048);
+            return keyGen.generateKeyPair();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the key files written by {@link FileKeyProvider} and its subclasses.
+ *
+ * @author praven Atluri
+ */
+public class FileKeyProviderTest {
+
+    private File keyDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        keyDirectory = Files.createTempDirectory("keys").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : keyDirectory.listFiles()) {
+            file.delete();
+        }
+        keyDirectory.delete();
+    }
+
+    @Test
+    public void encodedKeysAreWrittenAsPem() throws GeneralSecurityException, IOException {
+        FileKeyProvider provider = encoded();
+        KeyPair keyPair = EncryptionUtil.newKeyPair();
+
+        provider.install(keyPair);
+
+        String publicPem = new String(Files.readAllBytes(new File(keyDirectory, "public.pem").toPath()), Charset.forName("US-ASCII"));
+        assertTrue(publicPem.startsWith("-----BEGIN PUBLIC KEY-----\n"));
+        assertSameKeys(keyPair, provider.getKeyPair());
+    }
+
+    @Test
+    public void serializedKeysReadBack() throws GeneralSecurityException, IOException {
+        SerializedFileKeyProvider provider = new SerializedFileKeyProvider();
+        provider.setKeyDirectory(keyDirectory.getPath());
+        KeyPair keyPair = EncryptionUtil.newKeyPair();
+
+        provider.install(keyPair);
+
+        assertSameKeys(keyPair, provider.getKeyPair());
+    }
+
+    @Test
+    public void installReplacesThePairWithoutLeavingTempFiles() throws GeneralSecurityException, IOException {
+        FileKeyProvider provider = encoded();
+        provider.install(EncryptionUtil.newKeyPair());
+        KeyPair next = EncryptionUtil.newKeyPair();
+
+        provider.install(next);
+
+        assertSameKeys(next, provider.getKeyPair());
+        for (String name : keyDirectory.list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void keysArePresentOnceBothFilesExist() throws GeneralSecurityException, IOException {
+        FileKeyProvider provider = encoded();
+        assertFalse(provider.areKeysPresent());
+
+        provider.initialize();
+
+        assertTrue(provider.areKeysPresent());
+        assertTrue(new File(keyDirectory, "private.pem").exists());
+    }
+
+    @Test
+    public void retiredKeyIsLoadedByItsId() throws GeneralSecurityException, IOException {
+        FileKeyProvider provider = encoded();
+        KeyPair retired = EncryptionUtil.newKeyPair();
+        provider.install(retired);
+        String keyId = EncryptionUtil.toHex(EncryptionUtil.keyId(retired.getPublic()));
+        Object version = provider.getVersion();
+
+        provider.retire(keyId, retired);
+        provider.install(EncryptionUtil.newKeyPair());
+
+        Map<String, PrivateKey> retiredKeys = provider.getRetiredKeys();
+        assertEquals(Collections.singleton(keyId), retiredKeys.keySet());
+        assertArrayEquals(retired.getPrivate().getEncoded(), retiredKeys.get(keyId).getEncoded());
+        assertTrue(new File(keyDirectory, "private-" + keyId + ".pem").exists());
+        assertNotEquals(version, provider.getVersion());
+    }
+
+    @Test
+    public void otherFilesInTheKeyDirectoryAreNotKeys() throws GeneralSecurityException, IOException {
+        FileKeyProvider provider = encoded();
+        provider.install(EncryptionUtil.newKeyPair());
+        Object version = provider.getVersion();
+
+        Files.write(new File(keyDirectory, KeyRotationJob.PROGRESS_FILE).toPath(), new byte[]{'x'});
+        assertEquals(version, provider.getVersion());
+
+        //not named by a key id
+        Files.write(new File(keyDirectory, "private-notes.pem").toPath(), new byte[]{'x'});
+        assertTrue(provider.getRetiredKeys().isEmpty());
+    }
+
+    private FileKeyProvider encoded() {
+        EncodedFileKeyProvider provider = new EncodedFileKeyProvider();
+        provider.setKeyDirectory(keyDirectory.getPath());
+        return provider;
+    }
+
+    private static void assertSameKeys(KeyPair expected, KeyPair actual) {
+        assertArrayEquals(expected.getPublic().getEncoded(), actual.getPublic().getEncoded());
+        assertArrayEquals(expected.getPrivate().getEncoded(), actual.getPrivate().getEncoded());
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link IdempotencyCache}.
+ *
+ * @author praven Atluri
+ */
+public class IdempotencyCacheTest {
+
+    private IdempotencyCache cache;
+    private CountDownLatch waiting;
+
+    @Before
+    public void setUp() {
+        cache = new IdempotencyCache();
+        cache.setWaitTimeoutMillis(5000);
+        waiting = new CountDownLatch(1);
+        cache.setWaitListener(new Runnable() {
+            @Override
+            public void run() {
+                waiting.countDown();
+            }
+        });
+    }
+
+    @Test
+    public void keyDependsOnEveryPayloadValue() {
+        String key = cache.key("updateUser", "u1", "Ann", null);
+
+        assertEquals(key, cache.key("updateUser", "u1", "Ann", null));
+        assertNotEquals(key, cache.key("updateUser", "u1", "Ann", "null"));
+        assertNotEquals(key, cache.key("updateUser", "u1", "An", "n"));
+        assertNotEquals(key, cache.key("createUser", "u1", "Ann", null));
+    }
+
+    @Test
+    public void replayOfACommittedCallDoesNotRunAgain() {
+        CountingOperation operation = new CountingOperation();
+        String key = cache.key("updateUser", "u1", "Ann");
+
+        cache.execute("u1", key, operation);
+        cache.execute("u1", key, operation);
+
+        assertEquals(1, operation.runs.get());
+        assertEquals(1, cache.getExecutions());
+        assertEquals(1, cache.getReplays());
+    }
+
+    @Test
+    public void replayOfAFailedCallRunsAgain() {
+        String key = cache.key("updateUser", "u1", "Ann");
+        try {
+            cache.execute("u1", key, new IdempotencyCache.Operation() {
+                @Override
+                public void run() throws OnPremUserManagementException {
+                    throw new OnPremUserManagementException("UPDATE_USER_FAILED", "database down");
+                }
+            });
+            fail("the failure was swallowed");
+        } catch (OnPremUserManagementException expected) {
+            //the failed call is not remembered
+        }
+        CountingOperation operation = new CountingOperation();
+
+        cache.execute("u1", key, operation);
+
+        assertEquals(1, operation.runs.get());
+    }
+
+    @Test
+    public void replayOfAnExpiredCallRunsAgain() {
+        cache.setTtlMillis(-1);
+        CountingOperation operation = new CountingOperation();
+        String key = cache.key("updateUser", "u1", "Ann");
+
+        cache.execute("u1", key, operation);
+        cache.execute("u1", key, operation);
+
+        assertEquals(2, operation.runs.get());
+    }
+
+    @Test
+    public void newerCallForgetsTheCommittedEarlierCall() {
+        CountingOperation operation = new CountingOperation();
+        String older = cache.key("updateUser", "u1", "Ann");
+        String newer = cache.key("updateUser", "u1", "Bob");
+
+        cache.execute("u1", older, operation);
+        cache.execute("u1", newer, operation);
+        //a late replay of the older push is written again, after the newer one
+        cache.execute("u1", older, operation);
+
+        assertEquals(3, operation.runs.get());
+    }
+
+    @Test
+    public void replayWhileTheCallIsRunningWaitsForIt() throws Exception {
+        final String key = cache.key("updateUser", "u1", "Ann");
+        BlockingOperation first = new BlockingOperation();
+        Thread running = execute("u1", key, first, null);
+        first.awaitStarted();
+
+        CountingOperation replay = new CountingOperation();
+        AtomicReference<Throwable> replayError = new AtomicReference<Throwable>();
+        Thread replaying = execute("u1", key, replay, replayError);
+        awaitWaiter();
+        first.release();
+        running.join(5000);
+        replaying.join(5000);
+
+        assertNull(replayError.get());
+        assertEquals(0, replay.runs.get());
+        assertEquals(1, cache.getReplays());
+    }
+
+    @Test
+    public void newerCallSupersedesARunningEarlierCall() throws Exception {
+        String older = cache.key("updateUser", "u1", "Ann");
+        String newer = cache.key("updateUser", "u1", "Bob");
+        BlockingOperation first = new BlockingOperation();
+        Thread running = execute("u1", older, first, null);
+        first.awaitStarted();
+
+        //a replay already waiting for the older call gets its outcome
+        CountingOperation waitingReplay = new CountingOperation();
+        AtomicReference<Throwable> waitingError = new AtomicReference<Throwable>();
+        Thread waiting = execute("u1", older, waitingReplay, waitingError);
+        awaitWaiter();
+
+        cache.execute("u1", newer, new CountingOperation());
+
+        //a later replay of the older call misses it and runs, it does not wait for the older call
+        CountingOperation lateReplay = new CountingOperation();
+        cache.execute("u1", older, lateReplay);
+        assertEquals(1, lateReplay.runs.get());
+        assertTrue(running.isAlive());
+
+        first.release();
+        running.join(5000);
+        waiting.join(5000);
+        assertNull(waitingError.get());
+        assertEquals(0, waitingReplay.runs.get());
+    }
+
+    @Test
+    public void waitersOfASupersededFailedCallDoNotRunItAgain() throws Exception {
+        String older = cache.key("updateUser", "u1", "Ann");
+        String newer = cache.key("updateUser", "u1", "Bob");
+        BlockingOperation first = new BlockingOperation();
+        first.fail = true;
+        Thread running = execute("u1", older, first, new AtomicReference<Throwable>());
+        first.awaitStarted();
+
+        CountingOperation waitingReplay = new CountingOperation();
+        AtomicReference<Throwable> waitingError = new AtomicReference<Throwable>();
+        Thread waiting = execute("u1", older, waitingReplay, waitingError);
+        awaitWaiter();
+        cache.execute("u1", newer, new CountingOperation());
+
+        first.release();
+        running.join(5000);
+        waiting.join(5000);
+
+        //running the older push now would write it over the newer call
+        assertEquals(0, waitingReplay.runs.get());
+        assertTrue(waitingError.get() instanceof OnPremUserManagementException);
+        assertFalse(waiting.isAlive());
+    }
+
+    @Test
+    public void maxEntriesDropsTheOldestCommittedCalls() {
+        cache.setMaxEntries(2);
+        CountingOperation operation = new CountingOperation();
+        for (int i = 0; i < 5; i++) {
+            String userId = "u" + i;
+            cache.execute(userId, cache.key("createUser", userId), operation);
+        }
+        //expired when the next call comes in
+        cache.execute("u5", cache.key("createUser", "u5"), operation);
+
+        assertEquals(3, cache.getSize());
+    }
+
+    private Thread execute(final String userId, final String key, final IdempotencyCache.Operation operation,
+                           final AtomicReference<Throwable> error) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.execute(userId, key, operation);
+                } catch (RuntimeException ex) {
+                    if (error == null) {
+                        throw ex;
+                    }
+                    error.set(ex);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void awaitWaiter() throws InterruptedException {
+        if (!waiting.await(5000, TimeUnit.MILLISECONDS)) {
+            fail("the replay never waited");
+        }
+        assertEquals(1, cache.getWaits());
+    }
+
+    private static class CountingOperation implements IdempotencyCache.Operation {
+        private final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+        }
+    }
+
+    private static class BlockingOperation implements IdempotencyCache.Operation {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile boolean fail;
+
+        @Override
+        public void run() throws OnPremUserManagementException {
+            started.countDown();
+            try {
+                released.await(5000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (fail) {
+                throw new OnPremUserManagementException("UPDATE_USER_FAILED", "database down");
+            }
+        }
+
+        private void awaitStarted() throws InterruptedException {
+            if (!started.await(5000, TimeUnit.MILLISECONDS)) {
+                fail("the call never started");
+            }
+        }
+
+        private void release() {
+            released.countDown();
+        }
+    }
+}
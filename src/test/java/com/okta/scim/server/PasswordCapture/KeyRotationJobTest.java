@@ -0,0 +1,296 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link KeyRotationJob} with envelope encrypted passwords in a fake <code>okta_users</code> table.
+ *
+ * @author praven Atluri
+ */
+public class KeyRotationJobTest {
+
+    private static final String[] USER_IDS = {"u1", "u2", "u3", "u4"};
+
+    private File keyDirectory;
+    private FakePasswords passwords;
+    private UserCache userCache;
+    private KeyRotationJob job;
+
+    @Before
+    public void setUp() throws GeneralSecurityException, IOException {
+        keyDirectory = Files.createTempDirectory("keys").toFile();
+        EncodedFileKeyProvider provider = new EncodedFileKeyProvider();
+        provider.setKeyDirectory(keyDirectory.getPath());
+        EncryptionUtil.setKeyProvider(provider);
+        EncryptionUtil.setMode(EncryptionUtil.MODE_ENVELOPE);
+        EncryptionUtil.initializeKeys();
+
+        passwords = new FakePasswords();
+        for (String userId : USER_IDS) {
+            passwords.rows.put(userId, EncryptionUtil.encrypt(password(userId)));
+        }
+        userCache = new UserCache();
+        job = new KeyRotationJob();
+        //several chunks, so that the progress is saved in between
+        job.setChunkSize(1);
+        job.setRowsPerSecond(0);
+    }
+
+    @After
+    public void tearDown() {
+        job.stop();
+        EncryptionUtil.setRawKeyId(null);
+        EncryptionUtil.setMode(null);
+        EncryptionUtil.setKeyProvider(new SerializedFileKeyProvider());
+        for (File file : keyDirectory.listFiles()) {
+            file.delete();
+        }
+        keyDirectory.delete();
+    }
+
+    @Test
+    public void rotationReencryptsEveryPassword() throws Exception {
+        String from = EncryptionUtil.getCurrentKeyId();
+        job.start(passwords.dataSource(), new MySqlDialect(), userCache);
+
+        job.rotateKeys();
+        awaitRotation();
+
+        assertFalse(from.equals(EncryptionUtil.getCurrentKeyId()));
+        for (String userId : USER_IDS) {
+            byte[] stored = passwords.rows.get(userId);
+            assertTrue(userId + " is not under the new key", EncryptionUtil.isCurrent(stored));
+            assertEquals(password(userId), EncryptionUtil.decryptStrict(stored));
+        }
+        assertEquals(USER_IDS.length, job.getRotatedRows());
+        assertEquals("u4", job.getLastUserId());
+        assertFalse(progressFile().exists());
+    }
+
+    @Test
+    public void stoppedRotationResumesAfterTheSavedUser() throws Exception {
+        //a rotation that re-encrypted u1 and u2 before the connector stopped
+        String from = EncryptionUtil.retireCurrentKeyPair();
+        EncryptionUtil.installKeyPair(EncryptionUtil.newKeyPair());
+        passwords.rows.put("u1", EncryptionUtil.encrypt(password("u1")));
+        passwords.rows.put("u2", EncryptionUtil.encrypt(password("u2")));
+        saveProgress(from, EncryptionUtil.getCurrentKeyId(), "u2");
+        byte[] u1 = passwords.rows.get("u1");
+        userCache.put("u1", new UserCache.CachedUser("Ann", "Smith", "ann@example.com", u1, null, true), userCache.beginLoad());
+
+        job.start(passwords.dataSource(), new MySqlDialect(), userCache);
+        awaitRotation();
+
+        //the rows before the saved user are not read again
+        assertEquals(Arrays.asList("u3", "u4"), passwords.updated);
+        assertArrayEquals(u1, passwords.rows.get("u1"));
+        assertEquals(0, job.getSkippedRows());
+        assertEquals(2, job.getRotatedRows());
+        for (String userId : USER_IDS) {
+            assertEquals(password(userId), EncryptionUtil.decryptStrict(passwords.rows.get(userId)));
+        }
+        assertNotNull(userCache.get("u1"));
+        assertFalse(progressFile().exists());
+    }
+
+    @Test
+    public void rotationThatNeverInstalledItsKeyIsDiscarded() throws Exception {
+        saveProgress(EncryptionUtil.getCurrentKeyId(), "00000000000000000000000000000000", "u2");
+
+        job.start(passwords.dataSource(), new MySqlDialect(), userCache);
+
+        assertFalse(job.isRotating());
+        assertFalse(progressFile().exists());
+        assertTrue(passwords.updated.isEmpty());
+    }
+
+    @Test
+    public void passwordChangedDuringTheRotationIsNotOverwritten() throws Exception {
+        passwords.onRead = new Runnable() {
+            @Override
+            public void run() {
+                //Okta pushes a new password for u3 between the read and the write of its chunk
+                synchronized (passwords) {
+                    if (passwords.updated.size() == 2 && passwords.pushed == null) {
+                        passwords.pushed = EncryptionUtil.encrypt("pushed");
+                        passwords.rows.put("u3", passwords.pushed);
+                    }
+                }
+            }
+        };
+        job.start(passwords.dataSource(), new MySqlDialect(), userCache);
+
+        job.rotateKeys();
+        awaitRotation();
+
+        assertArrayEquals(passwords.pushed, passwords.rows.get("u3"));
+        assertEquals(1, job.getConflicts());
+        assertEquals(USER_IDS.length - 1, job.getRotatedRows());
+    }
+
+    private void awaitRotation() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (job.isRotating()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("the rotation never completed");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private void saveProgress(String from, String to, String lastUserId) throws IOException {
+        Properties progress = new Properties();
+        progress.setProperty("from", from);
+        progress.setProperty("to", to);
+        progress.setProperty("lastUserId", lastUserId);
+        OutputStream out = new FileOutputStream(progressFile());
+        try {
+            progress.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private File progressFile() {
+        return new File(keyDirectory, KeyRotationJob.PROGRESS_FILE);
+    }
+
+    private static String password(String userId) {
+        return "Tr0ub4dor&3-" + userId;
+    }
+
+    /**
+     * The password column of <code>okta_users</code>, read and written by the statements of {@link KeyRotationJob}.
+     * Writes apply right away, the job never rolls back in these tests.
+     */
+    private static class FakePasswords {
+        private final TreeMap<String, byte[]> rows = new TreeMap<String, byte[]>();
+        //the userids written back, in order
+        private final List<String> updated = new ArrayList<String>();
+        //run after each chunk is read
+        private volatile Runnable onRead;
+        private volatile byte[] pushed;
+
+        private DataSource dataSource() {
+            return proxy(DataSource.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ("getConnection".equals(method.getName())) {
+                        return proxy(Connection.class, new InvocationHandler() {
+                            @Override
+                            public Object invoke(Object proxy, Method method, Object[] args) {
+                                return "prepareStatement".equals(method.getName()) ? statement() : null;
+                            }
+                        });
+                    }
+                    throw new SQLFeatureNotSupportedException(method.getName());
+                }
+            });
+        }
+
+        private PreparedStatement statement() {
+            final Object[] parameters = new Object[4];
+            final List<Object[]> batch = new ArrayList<Object[]>();
+            return proxy(PreparedStatement.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.startsWith("set")) {
+                        parameters[(Integer) args[0]] = args[1];
+                    } else if ("addBatch".equals(name)) {
+                        batch.add(parameters.clone());
+                    } else if ("executeQuery".equals(name)) {
+                        ResultSet rs = chunk((String) parameters[1], (Integer) parameters[2]);
+                        Runnable listener = onRead;
+                        if (listener != null) {
+                            listener.run();
+                        }
+                        return rs;
+                    } else if ("executeBatch".equals(name)) {
+                        int[] counts = new int[batch.size()];
+                        for (int i = 0; i < counts.length; i++) {
+                            counts[i] = update(batch.get(i));
+                        }
+                        return counts;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        private synchronized ResultSet chunk(String afterUserId, int limit) {
+            final List<Object[]> chunk = new ArrayList<Object[]>();
+            Iterator<Map.Entry<String, byte[]>> it = rows.tailMap(afterUserId, false).entrySet().iterator();
+            while (it.hasNext() && chunk.size() < limit) {
+                Map.Entry<String, byte[]> row = it.next();
+                chunk.add(new Object[]{row.getKey(), row.getValue()});
+            }
+            return proxy(ResultSet.class, new InvocationHandler() {
+                private int row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("next".equals(name)) {
+                        return ++row < chunk.size();
+                    }
+                    if ("getString".equals(name) || "getBytes".equals(name)) {
+                        return chunk.get(row)[(Integer) args[0] - 1];
+                    }
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * UPDATE okta_users SET password = ? WHERE userid = ? AND password = ?
+         */
+        private synchronized int update(Object[] parameters) {
+            String userId = (String) parameters[2];
+            if (!Arrays.equals(rows.get(userId), (byte[]) parameters[3])) {
+                return 0;
+            }
+            rows.put(userId, (byte[]) parameters[1]);
+            updated.add(userId);
+            return 1;
+        }
+
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return type.cast(Proxy.newProxyInstance(KeyRotationJobTest.class.getClassLoader(), new Class<?>[]{type}, handler));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link KeyWatcher} and the key swap of {@link EncryptionUtil#reloadKeys()}.
+ *
+ * @author praven Atluri
+ */
+public class KeyWatcherTest {
+
+    private File keyDirectory;
+    private EncodedFileKeyProvider provider;
+    private KeyWatcher watcher;
+
+    @Before
+    public void setUp() throws GeneralSecurityException, IOException {
+        keyDirectory = Files.createTempDirectory("keys").toFile();
+        provider = new EncodedFileKeyProvider();
+        provider.setKeyDirectory(keyDirectory.getPath());
+        EncryptionUtil.setKeyProvider(provider);
+        EncryptionUtil.initializeKeys();
+        watcher = new KeyWatcher();
+        watcher.setDebounceMillis(200);
+    }
+
+    @After
+    public void tearDown() {
+        watcher.stop();
+        EncryptionUtil.setKeyProvider(new SerializedFileKeyProvider());
+        for (File file : keyDirectory.listFiles()) {
+            file.delete();
+        }
+        keyDirectory.delete();
+    }
+
+    @Test
+    public void replacedKeyFilesAreReloaded() throws Exception {
+        watcher.start(keyDirectory);
+        KeyPair next = EncryptionUtil.newKeyPair();
+
+        provider.install(next);
+        awaitReloads(1, 0);
+
+        assertEquals(keyId(next), EncryptionUtil.getCurrentKeyId());
+        assertEquals("Tr0ub4dor&3", EncryptionUtil.decrypt(EncryptionUtil.encrypt("Tr0ub4dor&3")));
+    }
+
+    @Test
+    public void mismatchedKeyFilesAreRejected() throws Exception {
+        watcher.start(keyDirectory);
+        String current = EncryptionUtil.getCurrentKeyId();
+
+        //a public key file copied from another pair
+        provider.install(new KeyPair(EncryptionUtil.newKeyPair().getPublic(), EncryptionUtil.newKeyPair().getPrivate()));
+        awaitReloads(0, 1);
+
+        assertEquals(current, EncryptionUtil.getCurrentKeyId());
+        assertEquals("Tr0ub4dor&3", EncryptionUtil.decrypt(EncryptionUtil.encrypt("Tr0ub4dor&3")));
+    }
+
+    @Test
+    public void reloadSwapsInTheNewPairInOneStep() throws Exception {
+        KeyPair next = EncryptionUtil.newKeyPair();
+        //only the private key file has been replaced so far
+        provider.install(new KeyPair(EncryptionUtil.getCurrentPublicKey(), next.getPrivate()));
+        try {
+            EncryptionUtil.reloadKeys();
+            fail("half a key pair was published");
+        } catch (GeneralSecurityException expected) {
+            //the keys in use are kept
+        }
+        assertFalse(keyId(next).equals(EncryptionUtil.getCurrentKeyId()));
+
+        provider.install(next);
+
+        assertEquals(true, EncryptionUtil.reloadKeys());
+        assertEquals(keyId(next), EncryptionUtil.getCurrentKeyId());
+        assertEquals(false, EncryptionUtil.reloadKeys());
+    }
+
+    private void awaitReloads(long reloads, long rejectedReloads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (watcher.getReloads() < reloads || watcher.getRejectedReloads() < rejectedReloads) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("the watcher did not reload the keys, " + watcher.getReloads() + " reloads and "
+                        + watcher.getRejectedReloads() + " rejected");
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(reloads, watcher.getReloads());
+    }
+
+    private static String keyId(KeyPair keyPair) {
+        return EncryptionUtil.toHex(EncryptionUtil.keyId(keyPair.getPublic()));
+    }
+}
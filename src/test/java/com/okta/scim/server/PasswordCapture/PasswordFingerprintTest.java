@@ -0,0 +1,133 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link PasswordFingerprint}.
+ *
+ * @author praven Atluri
+ */
+public class PasswordFingerprintTest {
+
+    private File keyDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        keyDirectory = Files.createTempDirectory("keys").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : keyDirectory.listFiles()) {
+            file.delete();
+        }
+        keyDirectory.delete();
+    }
+
+    @Test
+    public void samePasswordOfTheSameUserHasTheSameFingerprint() throws Exception {
+        PasswordFingerprint fingerprint = started(keyDirectory);
+
+        byte[] first = fingerprint.fingerprint("u1", "Tr0ub4dor&3");
+
+        assertEquals(32, first.length);
+        assertArrayEquals(first, fingerprint.fingerprint("u1", "Tr0ub4dor&3"));
+        assertFalse(Arrays.equals(first, fingerprint.fingerprint("u1", "Tr0ub4dor&4")));
+    }
+
+    @Test
+    public void usersWithTheSamePasswordHaveDifferentFingerprints() throws Exception {
+        PasswordFingerprint fingerprint = started(keyDirectory);
+
+        assertFalse(Arrays.equals(fingerprint.fingerprint("u1", "Tr0ub4dor&3"), fingerprint.fingerprint("u2", "Tr0ub4dor&3")));
+        //the userid and the password do not run into each other
+        assertFalse(Arrays.equals(fingerprint.fingerprint("u1", "2pass"), fingerprint.fingerprint("u12", "pass")));
+    }
+
+    @Test
+    public void secretIsKeptAcrossStarts() throws Exception {
+        byte[] before = started(keyDirectory).fingerprint("u1", "Tr0ub4dor&3");
+
+        byte[] after = started(keyDirectory).fingerprint("u1", "Tr0ub4dor&3");
+
+        assertArrayEquals(before, after);
+        assertTrue(new File(keyDirectory, "fingerprint.key").exists());
+    }
+
+    @Test
+    public void otherSecretGivesOtherFingerprints() throws Exception {
+        File otherDirectory = Files.createTempDirectory("keys").toFile();
+        try {
+            byte[] mine = started(keyDirectory).fingerprint("u1", "Tr0ub4dor&3");
+            byte[] other = started(otherDirectory).fingerprint("u1", "Tr0ub4dor&3");
+
+            assertFalse(Arrays.equals(mine, other));
+        } finally {
+            new File(otherDirectory, "fingerprint.key").delete();
+            otherDirectory.delete();
+        }
+    }
+
+    @Test
+    public void keyFileOverridesTheKeyDirectory() throws Exception {
+        PasswordFingerprint fingerprint = new PasswordFingerprint();
+        fingerprint.setKeyFile(new File(keyDirectory, "shared.key").getPath());
+
+        fingerprint.start(new File(keyDirectory, "unused"));
+
+        assertTrue(new File(keyDirectory, "shared.key").exists());
+        assertFalse(new File(keyDirectory, "unused").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void shortSecretIsRejected() throws IOException {
+        Files.write(new File(keyDirectory, "fingerprint.key").toPath(), new byte[16]);
+
+        started(keyDirectory);
+    }
+
+    @Test
+    public void fingerprintNeedsTheSecret() throws GeneralSecurityException {
+        try {
+            new PasswordFingerprint().fingerprint("u1", "Tr0ub4dor&3");
+            fail("a fingerprint was computed without a secret");
+        } catch (IllegalStateException expected) {
+            //start was never called
+        }
+    }
+
+    @Test
+    public void skipRatioCountsThePushesThatSkippedTheWrite() throws IOException {
+        PasswordFingerprint fingerprint = started(keyDirectory);
+
+        fingerprint.recordSkippedWrite();
+        fingerprint.recordSkippedWrite();
+        fingerprint.recordSkippedWrite();
+        fingerprint.recordPasswordWrite();
+
+        assertEquals(0.75, fingerprint.getSkipRatio(), 0.001);
+    }
+
+    private static PasswordFingerprint started(File keyDirectory) throws IOException {
+        PasswordFingerprint fingerprint = new PasswordFingerprint();
+        fingerprint.start(keyDirectory);
+        return fingerprint;
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the lag checks and the read routing of {@link ReplicaRouter}, against a driver of fake replicas.
+ *
+ * @author praven Atluri
+ */
+public class ReplicaRouterTest {
+
+    private static final String REPLICA_A = "jdbc:replicatest:a";
+    private static final String REPLICA_B = "jdbc:replicatest:b";
+
+    //the lag each replica reports, a null lag is a replica that is not replicating and a missing one does not answer
+    private static final Map<String, Long> LAGS = Collections.synchronizedMap(new HashMap<String, Long>());
+
+    static {
+        try {
+            DriverManager.registerDriver(new FakeDriver());
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private ReplicaRouter router;
+    private final List<Connection> borrowed = new ArrayList<Connection>();
+
+    @Before
+    public void setUp() {
+        LAGS.clear();
+        router = new ReplicaRouter();
+        router.setMaxLagSeconds(5);
+        //only the check of start runs, unless a test shortens it
+        router.setLagCheckIntervalMillis(60000);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        for (Connection conn : borrowed) {
+            conn.close();
+        }
+        router.stop();
+    }
+
+    @Test
+    public void readsGoToAReplicaWithinTheLag() throws SQLException {
+        LAGS.put(REPLICA_A, 2L);
+        start(REPLICA_A);
+
+        assertNotNull(read(null));
+        assertEquals(1, router.getReplicaReads());
+        assertEquals(2, router.getMaxLagSeconds());
+    }
+
+    @Test
+    public void readsFallBackToThePrimaryWhenTheReplicaLags() {
+        LAGS.put(REPLICA_A, 30L);
+        start(REPLICA_A);
+
+        assertNull(read(null));
+        assertEquals(1, router.getPrimaryReads());
+        assertEquals(0, router.getHealthyReplicas());
+        assertEquals(-1, router.getMaxLagSeconds());
+    }
+
+    @Test
+    public void replicaThatIsNotReplicatingIsLeftOut() {
+        LAGS.put(REPLICA_A, null);
+        start(REPLICA_A);
+
+        assertNull(read(null));
+        assertEquals(1, router.getPrimaryReads());
+    }
+
+    @Test
+    public void unreachableReplicaDoesNotStopTheStart() {
+        start(REPLICA_A);
+
+        assertEquals(0, router.getHealthyReplicas());
+        assertNull(read(null));
+    }
+
+    @Test
+    public void laggingReplicaIsSkippedInTheRotation() {
+        LAGS.put(REPLICA_A, 30L);
+        LAGS.put(REPLICA_B, 0L);
+        start(REPLICA_A, REPLICA_B);
+
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(read(null));
+        }
+        assertEquals(1, router.getHealthyReplicas());
+        assertEquals(4, router.getReplicaReads());
+        assertEquals(0, router.getPrimaryReads());
+    }
+
+    @Test
+    public void replicaIsEjectedOnceItFallsBehindAndTakenBackOnceItCatchesUp() throws InterruptedException {
+        LAGS.put(REPLICA_A, 0L);
+        router.setLagCheckIntervalMillis(20);
+        start(REPLICA_A);
+
+        LAGS.put(REPLICA_A, 30L);
+        awaitHealthyReplicas(0);
+        assertNull(read(null));
+
+        LAGS.put(REPLICA_A, 1L);
+        awaitHealthyReplicas(1);
+        assertNotNull(read(null));
+        assertEquals(1, router.getEjections());
+    }
+
+    @Test
+    public void justWrittenUserIsReadFromThePrimary() {
+        LAGS.put(REPLICA_A, 0L);
+        start(REPLICA_A);
+
+        router.recordWrite("u1");
+
+        assertNull(read("u1"));
+        assertNotNull(read("u2"));
+        assertEquals(1, router.getReadYourWritesReads());
+        assertEquals(0, router.getPrimaryReads());
+    }
+
+    @Test
+    public void writeIsReadFromTheReplicaOnceItsWindowHasPassed() {
+        LAGS.put(REPLICA_A, 0L);
+        router.setReadYourWritesMillis(-1);
+        start(REPLICA_A);
+
+        router.recordWrite("u1");
+
+        assertNotNull(read("u1"));
+        assertEquals(0, router.getReadYourWritesReads());
+    }
+
+    private void start(String... urls) {
+        List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+        for (String url : urls) {
+            ConnectionPool pool = new ConnectionPool();
+            pool.setUrl(url);
+            pool.setMinSize(1);
+            pool.setMaxSize(8);
+            pool.setAcquireTimeoutMillis(100);
+            pools.add(pool);
+        }
+        router.setReplicas(pools);
+        router.start();
+    }
+
+    private Connection read(String userId) {
+        Connection conn = router.getConnection(userId);
+        if (conn != null) {
+            borrowed.add(conn);
+        }
+        return conn;
+    }
+
+    private void awaitHealthyReplicas(int healthy) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (router.getHealthyReplicas() != healthy) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("the lag checker left " + router.getHealthyReplicas() + " replicas in rotation, not " + healthy);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ReplicaRouterTest.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    /**
+     * Connects to the replicas in {@link #LAGS}, whose lag query answers the lag of the replica.
+     */
+    private static class FakeDriver implements Driver {
+
+        @Override
+        public Connection connect(final String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            if (!LAGS.containsKey(url)) {
+                throw new SQLException("Connection refused", "08001");
+            }
+            return proxy(Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("createStatement".equals(name)) {
+                        return lagStatement(url);
+                    }
+                    if ("getAutoCommit".equals(name) || "isValid".equals(name)) {
+                        return true;
+                    }
+                    if ("isClosed".equals(name)) {
+                        return false;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        private static Statement lagStatement(final String url) {
+            return proxy(Statement.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("executeQuery".equals(method.getName())) {
+                        return lagRow(LAGS.get(url));
+                    }
+                    return null;
+                }
+            });
+        }
+
+        private static ResultSet lagRow(final Long lag) {
+            return proxy(ResultSet.class, new InvocationHandler() {
+                private boolean read;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("next".equals(name)) {
+                        boolean first = !read;
+                        read = true;
+                        return first;
+                    }
+                    if ("getLong".equals(name)) {
+                        return lag == null ? 0L : lag;
+                    }
+                    if ("wasNull".equals(name)) {
+                        return lag == null;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:replicatest:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the consistent hash ring of {@link ShardRouter}.
+ *
+ * @author praven Atluri
+ */
+public class ShardRouterTest {
+
+    private static final int USERS = 10000;
+
+    private final ShardRouter router = new ShardRouter();
+
+    @Test
+    public void namesAreSorted() {
+        ShardRouter.Ring ring = router.new Ring(Arrays.asList("shard2", "shard0", "shard1"));
+
+        assertEquals(Arrays.asList("shard0", "shard1", "shard2"), ring.getNames());
+    }
+
+    @Test
+    public void placementDoesNotDependOnTheOrderOfTheShards() {
+        ShardRouter.Ring ring = router.new Ring(Arrays.asList("shard0", "shard1", "shard2"));
+        ShardRouter.Ring reordered = router.new Ring(Arrays.asList("shard2", "shard1", "shard0"));
+
+        for (int i = 0; i < USERS; i++) {
+            String userId = "user" + i;
+            assertEquals(ring.owner(userId), reordered.owner(userId));
+        }
+    }
+
+    @Test
+    public void usersAreSpreadOverEveryShard() {
+        ShardRouter.Ring ring = router.new Ring(Arrays.asList("shard0", "shard1", "shard2"));
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < USERS; i++) {
+            String owner = ring.owner("user" + i);
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+
+        assertEquals(3, counts.size());
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            //a third each, give or take the imbalance of 160 virtual nodes
+            assertTrue(count.getKey() + " holds " + count.getValue() + " users",
+                    count.getValue() > USERS / 5 && count.getValue() < USERS / 2);
+        }
+    }
+
+    @Test
+    public void addingAShardOnlyMovesUsersToIt() {
+        ShardRouter.Ring ring = router.new Ring(Arrays.asList("shard0", "shard1", "shard2"));
+        ShardRouter.Ring grown = router.new Ring(Arrays.asList("shard0", "shard1", "shard2", "shard3"));
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            String userId = "user" + i;
+            String owner = grown.owner(userId);
+            if (!owner.equals(ring.owner(userId))) {
+                assertEquals("shard3", owner);
+                moved++;
+            }
+        }
+
+        //about a quarter of the users, not a reshuffle of all of them
+        assertTrue(moved + " users moved", moved > USERS / 8 && moved < USERS / 2);
+    }
+
+    @Test
+    public void singleShardOwnsEveryUser() {
+        router.setVirtualNodes(1);
+        ShardRouter.Ring ring = router.new Ring(Collections.singletonList("shard0"));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("shard0", ring.owner("user" + i));
+        }
+    }
+
+    @Test
+    public void routerThatWasNotStartedRefusesToReshard() {
+        assertEquals("Sharding is not enabled, shardRouter is not set on the service", router.startResharding());
+        assertEquals("", router.getShardLayout());
+        assertEquals("idle", router.getReshardingState());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void layoutNeedsAShard() {
+        router.new Ring(Collections.<String>emptyList());
+    }
+}
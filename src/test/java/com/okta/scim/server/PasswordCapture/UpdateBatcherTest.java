@@ -0,0 +1,390 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link UpdateBatcher} against a fake <code>okta_users</code> table.
+ *
+ * @author praven Atluri
+ */
+public class UpdateBatcherTest {
+
+    private FakeUsers users;
+    private UpdateBatcher batcher;
+
+    @Before
+    public void setUp() {
+        users = new FakeUsers("u0", "u1", "u2", "u3");
+        batcher = new UpdateBatcher();
+        //batches are only written once they are full
+        batcher.setWindowMillis(5000);
+        batcher.setSubmitTimeoutMillis(5000);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.stop();
+    }
+
+    @Test
+    public void concurrentUpdatesAreCommittedAsOneBatch() throws Exception {
+        batcher.setBatchSize(3);
+        batcher.start(users.dataSource());
+
+        List<Submitter> submitters = submitAll(lastName("u1", "Smith"), lastName("u2", "Jones"), lastName("u3", "Brown"));
+
+        for (Submitter submitter : submitters) {
+            assertNull(submitter.await());
+        }
+        assertEquals(Collections.singletonList(3), users.batchSizes);
+        assertEquals(1, users.commits);
+        assertEquals("Jones", users.lastNames.get("u2"));
+        assertEquals(1, batcher.getBatches());
+        assertEquals(3, batcher.getUpdates());
+        assertEquals(3.0, batcher.getAverageBatchSize(), 0.001);
+    }
+
+    @Test
+    public void failedBatchIsRetriedOneUpdateAtATime() throws Exception {
+        batcher.setBatchSize(3);
+        batcher.start(users.dataSource());
+        users.failing.add("u2");
+
+        List<Submitter> submitters = submitAll(lastName("u1", "Smith"), lastName("u2", "Jones"), lastName("u3", "Brown"));
+
+        assertNull(submitters.get(0).await());
+        Throwable failure = submitters.get(1).await();
+        assertTrue(failure instanceof OnPremUserManagementException);
+        assertEquals("UPDATE_USER_FAILED_EXCEPTION", ((OnPremUserManagementException) failure).getInternalCode());
+        assertNull(submitters.get(2).await());
+
+        //the batch was rolled back, then every update got a transaction of its own
+        assertEquals(2, users.rollbacks);
+        assertEquals(2, users.commits);
+        assertEquals("Smith", users.lastNames.get("u1"));
+        assertEquals("Brown", users.lastNames.get("u3"));
+        assertEquals(1, batcher.getFallbacks());
+        assertEquals(2, batcher.getUpdates());
+    }
+
+    @Test
+    public void queuedUpdatesOfTheSameUserAreCoalesced() throws Exception {
+        List<Submitter> submitters = holdFlusher();
+        submitters.addAll(submitAll(lastName("u1", "Smith")));
+        awaitQueued(1);
+        submitters.addAll(submitAll(lastName("u1", "Jones")));
+        awaitCoalesced(1);
+        users.gate.countDown();
+
+        for (Submitter submitter : submitters) {
+            assertNull(submitter.await());
+        }
+        //a single write of u1, the newer last name wins
+        assertEquals(Arrays.asList(1, 1), users.batchSizes);
+        assertEquals("Jones", users.lastNames.get("u1"));
+        assertEquals(2, batcher.getUpdates());
+    }
+
+    @Test
+    public void coalescedCallersShareTheFailure() throws Exception {
+        users.failing.add("u1");
+        List<Submitter> submitters = holdFlusher();
+        submitters.addAll(submitAll(lastName("u1", "Smith")));
+        awaitQueued(1);
+        submitters.addAll(submitAll(lastName("u1", "Jones")));
+        awaitCoalesced(1);
+        users.gate.countDown();
+
+        assertNull(submitters.get(0).await());
+        assertTrue(submitters.get(1).await() instanceof OnPremUserManagementException);
+        assertTrue(submitters.get(2).await() instanceof OnPremUserManagementException);
+    }
+
+    @Test
+    public void guardedUpdateIsWrittenAfterTheQueuedOne() throws Exception {
+        List<Submitter> submitters = holdFlusher();
+        submitters.addAll(submitAll(lastName("u1", "Smith")));
+        awaitQueued(1);
+        UserUpdate guarded = lastName("u1", "Jones");
+        guarded.setExpectedPasswordHmac(new byte[]{1, 2, 3});
+        Submitter waiting = new Submitter(guarded);
+        waiting.start();
+        submitters.add(waiting);
+        //parked until the unguarded update has been written
+        awaitWaiting(waiting);
+        users.gate.countDown();
+
+        for (Submitter submitter : submitters) {
+            assertNull(submitter.await());
+        }
+        assertEquals(Arrays.asList(1, 1, 1), users.batchSizes);
+        assertEquals("Jones", users.lastNames.get("u1"));
+        assertEquals(0, batcher.getCoalesced());
+    }
+
+    @Test
+    public void updateOfAnUnknownUserFails() {
+        batcher.setBatchSize(1);
+        batcher.start(users.dataSource());
+
+        try {
+            batcher.submit(lastName("u9", "Smith"));
+            fail("no row was updated");
+        } catch (OnPremUserManagementException ex) {
+            assertEquals("UPDATE_USER_FAILED", ex.getInternalCode());
+        }
+    }
+
+    @Test(expected = OnPremUserManagementException.class)
+    public void stoppedBatcherRefusesUpdates() {
+        batcher.submit(lastName("u1", "Smith"));
+    }
+
+    private static UserUpdate lastName(String userId, String lastName) {
+        UserUpdate update = new UserUpdate(userId);
+        update.setLastName(lastName);
+        return update;
+    }
+
+    /**
+     * Start batches of one update and hold the flusher in the write of a first update of u0, so that the next updates
+     * stay queued until the gate is opened.
+     */
+    private List<Submitter> holdFlusher() throws InterruptedException {
+        batcher.setBatchSize(1);
+        users.gate = new CountDownLatch(1);
+        batcher.start(users.dataSource());
+        List<Submitter> submitters = submitAll(lastName("u0", "Held"));
+        if (!users.held.await(5000, TimeUnit.MILLISECONDS)) {
+            fail("the flusher never picked up the first update");
+        }
+        return submitters;
+    }
+
+    private void awaitQueued(final int updates) throws InterruptedException {
+        await("the update was never queued", new Condition() {
+            @Override
+            public boolean holds() {
+                return batcher.getQueuedUpdates() == updates;
+            }
+        });
+    }
+
+    private void awaitCoalesced(final long updates) throws InterruptedException {
+        await("the update was never coalesced", new Condition() {
+            @Override
+            public boolean holds() {
+                return batcher.getCoalesced() == updates;
+            }
+        });
+    }
+
+    private void awaitWaiting(final Thread thread) throws InterruptedException {
+        await("the update never waited", new Condition() {
+            @Override
+            public boolean holds() {
+                return thread.getState() == Thread.State.TIMED_WAITING;
+            }
+        });
+    }
+
+    private static void await(String message, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private List<Submitter> submitAll(UserUpdate... updates) {
+        List<Submitter> submitters = new ArrayList<Submitter>();
+        for (UserUpdate update : updates) {
+            Submitter submitter = new Submitter(update);
+            submitter.start();
+            submitters.add(submitter);
+        }
+        return submitters;
+    }
+
+    /**
+     * Submits an update on a thread of its own.
+     */
+    private class Submitter extends Thread {
+        private final UserUpdate update;
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private Submitter(UserUpdate update) {
+            this.update = update;
+        }
+
+        @Override
+        public void run() {
+            try {
+                batcher.submit(update);
+            } catch (RuntimeException ex) {
+                failure.set(ex);
+            }
+        }
+
+        private Throwable await() throws InterruptedException {
+            join(5000);
+            if (isAlive()) {
+                fail("the update of " + update.getUserId() + " was never committed");
+            }
+            return failure.get();
+        }
+    }
+
+    /**
+     * The last names of the <code>okta_users</code> rows, written by the statements of {@link UserUpdate}. The counters
+     * are only written by the single flusher thread of the batcher.
+     */
+    private static class FakeUsers {
+        private final Set<String> userIds;
+        private final Map<String, String> lastNames = Collections.synchronizedMap(new HashMap<String, String>());
+        private final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        private volatile int commits;
+        private volatile int rollbacks;
+        //closed gates hold the flusher in its first getConnection
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private final CountDownLatch held = new CountDownLatch(1);
+
+        private FakeUsers(String... userIds) {
+            this.userIds = new HashSet<String>(Arrays.asList(userIds));
+        }
+
+        private DataSource dataSource() {
+            return proxy(DataSource.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ("getConnection".equals(method.getName())) {
+                        held.countDown();
+                        if (!gate.await(5000, TimeUnit.MILLISECONDS)) {
+                            throw new SQLException("The gate was never opened", "08001");
+                        }
+                        return connection();
+                    }
+                    throw new SQLFeatureNotSupportedException(method.getName());
+                }
+            });
+        }
+
+        private Connection connection() {
+            //the writes of a transaction, applied on commit
+            final Map<String, String> pending = new HashMap<String, String>();
+            return proxy(Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if ("prepareStatement".equals(name)) {
+                        return statement(pending);
+                    }
+                    if ("commit".equals(name)) {
+                        lastNames.putAll(pending);
+                        pending.clear();
+                        commits++;
+                    } else if ("rollback".equals(name)) {
+                        pending.clear();
+                        rollbacks++;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        private PreparedStatement statement(final Map<String, String> pending) {
+            final TreeMap<Integer, Object> parameters = new TreeMap<Integer, Object>();
+            final List<TreeMap<Integer, Object>> batch = new ArrayList<TreeMap<Integer, Object>>();
+            return proxy(PreparedStatement.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.startsWith("set")) {
+                        parameters.put((Integer) args[0], args[1]);
+                        return null;
+                    }
+                    if ("addBatch".equals(name)) {
+                        batch.add(new TreeMap<Integer, Object>(parameters));
+                        return null;
+                    }
+                    if ("executeBatch".equals(name)) {
+                        batchSizes.add(batch.size());
+                        int[] counts = new int[batch.size()];
+                        for (int i = 0; i < counts.length; i++) {
+                            if (failing.contains(userId(batch.get(i)))) {
+                                throw new BatchUpdateException("value too long", "22001", Arrays.copyOf(counts, i));
+                            }
+                            counts[i] = write(batch.get(i));
+                        }
+                        return counts;
+                    }
+                    if ("executeUpdate".equals(name)) {
+                        if (failing.contains(userId(parameters))) {
+                            throw new SQLException("value too long", "22001");
+                        }
+                        return write(parameters);
+                    }
+                    return null;
+                }
+
+                private int write(TreeMap<Integer, Object> row) {
+                    String userId = userId(row);
+                    if (!userIds.contains(userId)) {
+                        return 0;
+                    }
+                    pending.put(userId, (String) row.get(1));
+                    return 1;
+                }
+            });
+        }
+
+        //the tests only write the last name, so the user id is the second parameter
+        private static String userId(TreeMap<Integer, Object> row) {
+            return (String) row.get(2);
+        }
+
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return type.cast(Proxy.newProxyInstance(UpdateBatcherTest.class.getClassLoader(), new Class<?>[]{type}, handler));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of {@link UserCache}.
+ *
+ * @author praven Atluri
+ */
+public class UserCacheTest {
+
+    private UserCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new UserCache();
+    }
+
+    @Test
+    public void loadedRowIsServedFromTheCache() {
+        UserCache.CachedUser ann = user("Ann");
+        cache.put("u1", ann, cache.beginLoad());
+
+        assertSame(ann, cache.get("u1"));
+        assertNull(cache.get("u2"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void invalidatedRowIsReadAgain() {
+        cache.put("u1", user("Ann"), cache.beginLoad());
+        cache.put("u2", user("Bob"), cache.beginLoad());
+
+        cache.invalidate("u1");
+
+        assertNull(cache.get("u1"));
+        assertEquals("Bob", cache.get("u2").getFirstName());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void loadThatRacedWithAWriteIsNotCached() {
+        long token = cache.beginLoad();
+        //updateUser commits while getUser is still reading the older row
+        cache.invalidate("u1");
+
+        cache.put("u1", user("Ann"), token);
+
+        assertNull(cache.get("u1"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void loadThatRacedWithAWriteOfAnotherUserIsNotCachedEither() {
+        long token = cache.beginLoad();
+        cache.invalidate("u2");
+
+        cache.put("u1", user("Ann"), token);
+
+        assertEquals(0, cache.getSize());
+        cache.put("u1", user("Ann"), cache.beginLoad());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void clearDropsEveryRowAndPendingLoad() {
+        cache.put("u1", user("Ann"), cache.beginLoad());
+        long token = cache.beginLoad();
+
+        cache.clear();
+        cache.put("u2", user("Bob"), token);
+
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeightBytes());
+    }
+
+    @Test
+    public void expiredRowIsReadAgain() {
+        cache.setTtlMillis(-1);
+        cache.put("u1", user("Ann"), cache.beginLoad());
+
+        assertNull(cache.get("u1"));
+        assertEquals(1, cache.getExpirations());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void leastRecentlyUsedRowIsEvictedAboveTheMaxWeight() {
+        cache.put("u1", user("Ann"), cache.beginLoad());
+        long rowWeight = cache.getWeightBytes();
+        cache.setMaxWeightBytes(2 * rowWeight);
+        cache.put("u2", user("Bob"), cache.beginLoad());
+        //u1 is now the most recently used
+        cache.get("u1");
+
+        cache.put("u3", user("Cat"), cache.beginLoad());
+
+        assertNull(cache.get("u2"));
+        assertEquals("Ann", cache.get("u1").getFirstName());
+        assertEquals("Cat", cache.get("u3").getFirstName());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * rowWeight, cache.getWeightBytes());
+    }
+
+    @Test
+    public void replacedRowKeepsTheWeightOfOneRow() {
+        cache.put("u1", user("Ann"), cache.beginLoad());
+        long rowWeight = cache.getWeightBytes();
+
+        cache.put("u1", user("Amy"), cache.beginLoad());
+
+        assertEquals(rowWeight, cache.getWeightBytes());
+        assertEquals("Amy", cache.get("u1").getFirstName());
+    }
+
+    private static UserCache.CachedUser user(String firstName) {
+        return new UserCache.CachedUser(firstName, "Smith", firstName.toLowerCase() + "@example.com", new byte[]{1, 2, 3}, null, true);
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the request checks of {@link UserExportHandler}.
+ *
+ * @author praven Atluri
+ */
+public class UserExportHandlerTest {
+
+    private static final String TOKEN = "s3cr3t-t0ken";
+
+    private UserExportHandler handler;
+    private Map<String, String> headers;
+    private Map<String, String> parameters;
+    private String method;
+    private Map<String, String> responseHeaders;
+    private Integer status;
+
+    @Before
+    public void setUp() {
+        //no service, a request that gets past the checks would fail on it
+        handler = new UserExportHandler();
+        handler.setEnabled(true);
+        handler.setAccessToken(TOKEN);
+        headers = new HashMap<String, String>();
+        parameters = new HashMap<String, String>();
+        method = "GET";
+        responseHeaders = new HashMap<String, String>();
+    }
+
+    @Test
+    public void disabledExportIsNotFound() throws IOException {
+        handler.setEnabled(false);
+        headers.put("Authorization", "Bearer " + TOKEN);
+
+        handle();
+
+        assertEquals(Integer.valueOf(HttpServletResponse.SC_NOT_FOUND), status);
+    }
+
+    @Test
+    public void requestWithoutTokenIsRejected() throws IOException {
+        handle();
+
+        assertEquals(Integer.valueOf(HttpServletResponse.SC_UNAUTHORIZED), status);
+        assertEquals("Bearer", responseHeaders.get("WWW-Authenticate"));
+    }
+
+    @Test
+    public void requestWithAnotherTokenIsRejected() throws IOException {
+        headers.put("Authorization", "Bearer s3cr3t-t0kem");
+
+        handle();
+
+        assertEquals(Integer.valueOf(HttpServletResponse.SC_UNAUTHORIZED), status);
+    }
+
+    @Test
+    public void tokenOutsideTheBearerSchemeIsRejected() throws IOException {
+        headers.put("Authorization", "Basic " + TOKEN);
+
+        handle();
+
+        assertEquals(Integer.valueOf(HttpServletResponse.SC_UNAUTHORIZED), status);
+    }
+
+    @Test
+    public void everyRequestIsRejectedWithoutAConfiguredToken() throws IOException {
+        handler.setAccessToken(null);
+        headers.put("Authorization", "Bearer ");
+
+        handle();
+
+        assertEquals(Integer.valueOf(HttpServletResponse.SC_UNAUTHORIZED), status);
+    }
+
+    @Test
+    public void authorizedRequestIsCheckedNext() throws IOException {
+        headers.put("Authorization", "Bearer " + TOKEN);
+        method = "POST";
+
+        handle();
+
+        assertEquals(Integer.valueOf(HttpServletResponse.SC_METHOD_NOT_ALLOWED), status);
+        assertNull(responseHeaders.get("WWW-Authenticate"));
+    }
+
+    @Test
+    public void pageThatIsNotANumberIsABadRequest() throws IOException {
+        headers.put("Authorization", "Bearer " + TOKEN);
+        parameters.put("startIndex", "first");
+
+        handle();
+
+        assertEquals(Integer.valueOf(HttpServletResponse.SC_BAD_REQUEST), status);
+    }
+
+    private void handle() throws IOException {
+        HttpServletRequest request = proxy(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method invoked, Object[] args) {
+                if (invoked.getName().equals("getHeader")) {
+                    return headers.get(args[0]);
+                } else if (invoked.getName().equals("getParameter")) {
+                    return parameters.get(args[0]);
+                } else if (invoked.getName().equals("getMethod")) {
+                    return method;
+                }
+                throw new UnsupportedOperationException(invoked.getName());
+            }
+        });
+        HttpServletResponse response = proxy(HttpServletResponse.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method invoked, Object[] args) {
+                if (invoked.getName().equals("sendError")) {
+                    status = (Integer) args[0];
+                    return null;
+                } else if (invoked.getName().equals("setHeader")) {
+                    responseHeaders.put((String) args[0], (String) args[1]);
+                    return null;
+                }
+                //nothing is written before the checks pass
+                throw new UnsupportedOperationException(invoked.getName());
+            }
+        });
+        handler.handleRequest(request, response);
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(UserExportHandlerTest.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link UserFilterCompiler}.
+ *
+ * @author praven Atluri
+ */
+public class UserFilterCompilerTest {
+
+    private UserFilterCompiler compiler;
+
+    @Before
+    public void setUp() {
+        compiler = new UserFilterCompiler();
+    }
+
+    @Test
+    public void noFilterListsEveryUser() {
+        UserQuery query = compiler.compile(null);
+
+        assertEquals("", query.getCondition());
+        assertEquals(Collections.emptyList(), query.getValues());
+    }
+
+    @Test
+    public void equalsIsBoundAsAParameter() {
+        UserQuery query = compiler.compile(eq("userName", null, null, "ann@example.com' OR '1'='1"));
+
+        assertEquals("user_name = ?", query.getCondition());
+        assertEquals(Collections.<Object>singletonList("ann@example.com' OR '1'='1"), query.getValues());
+    }
+
+    @Test
+    public void subAttributesAndTheCustomIdMapToTheirColumns() {
+        assertEquals("first_name = ?", compiler.compile(eq("name", "givenName", null, "Ann")).getCondition());
+        assertEquals("last_name = ?", compiler.compile(eq("name", "familyName", null, "Smith")).getCondition());
+        assertEquals("userid = ?", compiler.compile(eq("id", null, null, "u1")).getCondition());
+        assertEquals("userid = ?", compiler.compile(eq(PasswordCaptureSCIMServiceImpl.CUSTOM_SCHEMA_PROPERTY_NAME_UNIQUE_ID,
+                null, PasswordCaptureSCIMServiceImpl.USER_CUSTOM_URN, "u1")).getCondition());
+    }
+
+    @Test
+    public void activeIsBoundAsABoolean() {
+        compiler.setAllowFullScan(true);
+        UserQuery query = compiler.compile(eq("active", null, null, "true"));
+
+        assertEquals("is_active = ?", query.getCondition());
+        assertEquals(Collections.<Object>singletonList(Boolean.TRUE), query.getValues());
+    }
+
+    @Test
+    public void orCombinesItsTermsInOrder() {
+        UserQuery query = compiler.compile(or(eq("userName", null, null, "ann@example.com"), eq("name", "familyName", null, "Smith")));
+
+        assertEquals("(user_name = ? OR last_name = ?)", query.getCondition());
+        assertEquals(Arrays.<Object>asList("ann@example.com", "Smith"), query.getValues());
+    }
+
+    @Test
+    public void filterOnAnUnindexedColumnIsRejected() {
+        try {
+            compiler.compile(eq("active", null, null, "true"));
+            fail("a full scan was compiled");
+        } catch (OnPremUserManagementException expected) {
+            //is_active has no index
+        }
+
+        assertEquals(1, compiler.getRejectedFilters());
+    }
+
+    @Test
+    public void orWithAnUnindexedTermIsRejected() {
+        SCIMFilter filter = or(eq("userName", null, null, "ann@example.com"), eq("active", null, null, "false"));
+        try {
+            compiler.compile(filter);
+            fail("a full scan was compiled");
+        } catch (OnPremUserManagementException expected) {
+            //the or reads the rows of every term
+        }
+        //the cached shape is rejected as well
+        try {
+            compiler.compile(filter);
+            fail("a full scan was compiled");
+        } catch (OnPremUserManagementException expected) {
+            //still a full scan
+        }
+
+        assertEquals(2, compiler.getRejectedFilters());
+    }
+
+    @Test
+    public void allowFullScanRunsFiltersOnUnindexedColumns() {
+        compiler.setAllowFullScan(true);
+
+        UserQuery query = compiler.compile(or(eq("userName", null, null, "ann@example.com"), eq("active", null, null, "false")));
+
+        assertEquals("(user_name = ? OR is_active = ?)", query.getCondition());
+        assertEquals(Arrays.<Object>asList("ann@example.com", Boolean.FALSE), query.getValues());
+        assertEquals(0, compiler.getRejectedFilters());
+    }
+
+    @Test
+    public void filtersOfTheSameStructureShareTheirSql() {
+        compiler.compile(or(eq("userName", null, null, "ann@example.com"), eq("userName", null, null, "bob@example.com")));
+        UserQuery query = compiler.compile(or(eq("userName", null, null, "carl@example.com"), eq("userName", null, null, "dana@example.com")));
+
+        assertEquals(Arrays.<Object>asList("carl@example.com", "dana@example.com"), query.getValues());
+        assertEquals(1, compiler.getShapeMisses());
+        assertEquals(1, compiler.getShapeHits());
+        assertEquals(1, compiler.getSize());
+    }
+
+    @Test
+    public void maxShapesDropsTheLeastRecentlyUsedStructure() {
+        compiler.setMaxShapes(1);
+        compiler.compile(eq("userName", null, null, "ann@example.com"));
+        compiler.compile(eq("id", null, null, "u1"));
+        compiler.compile(eq("userName", null, null, "bob@example.com"));
+
+        assertEquals(3, compiler.getShapeMisses());
+        assertEquals(1, compiler.getSize());
+    }
+
+    @Test(expected = OnPremUserManagementException.class)
+    public void unknownAttributeIsRejected() {
+        compiler.compile(eq("title", null, null, "Manager"));
+    }
+
+    @Test(expected = OnPremUserManagementException.class)
+    public void customAttributeOtherThanTheUniqueIdIsRejected() {
+        compiler.compile(eq("department", null, PasswordCaptureSCIMServiceImpl.USER_CUSTOM_URN, "Sales"));
+    }
+
+    @Test(expected = OnPremUserManagementException.class)
+    public void orWithoutTermsIsRejected() {
+        compiler.compile(or());
+    }
+
+    private static SCIMFilter eq(String name, String subName, String schema, String value) {
+        SCIMFilterAttribute attribute = new SCIMFilterAttribute();
+        attribute.setAttributeName(name);
+        attribute.setSubAttributeName(subName);
+        attribute.setSchema(schema);
+        SCIMFilter filter = new SCIMFilter();
+        filter.setFilterType(SCIMFilterType.EQUALS);
+        filter.setFilterAttribute(attribute);
+        filter.setFilterValue(value);
+        return filter;
+    }
+
+    private static SCIMFilter or(SCIMFilter... expressions) {
+        SCIMFilter filter = new SCIMFilter();
+        filter.setFilterType(SCIMFilterType.OR);
+        filter.setFilterExpressions(Arrays.asList(expressions));
+        return filter;
+    }
+}
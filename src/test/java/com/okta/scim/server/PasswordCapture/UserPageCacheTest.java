@@ -0,0 +1,118 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of {@link UserPageCache}.
+ *
+ * @author praven Atluri
+ */
+public class UserPageCacheTest {
+
+    private static final String QUERY = "user_name = ? [ann@example.com]";
+
+    private UserPageCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new UserPageCache();
+    }
+
+    @Test
+    public void nextPageStartsAfterTheLastUserOfThePreviousOne() {
+        cache.put(QUERY, 1, "");
+        cache.put(QUERY, 101, "u100");
+
+        UserPageCache.Boundary boundary = cache.floor(QUERY, 101);
+
+        assertEquals(101, boundary.getStartIndex());
+        assertEquals("u100", boundary.getAfterUserId());
+        assertEquals(1, cache.getBoundaryHits());
+    }
+
+    @Test
+    public void unreachedStartIndexIsFoundFromTheNearestBoundaryBelowIt() {
+        cache.put(QUERY, 1, "");
+        cache.put(QUERY, 101, "u100");
+
+        UserPageCache.Boundary boundary = cache.floor(QUERY, 250);
+
+        //the listing skips 149 rows after u100
+        assertEquals(101, boundary.getStartIndex());
+        assertEquals("u100", boundary.getAfterUserId());
+        assertEquals(1, cache.getBoundaryMisses());
+    }
+
+    @Test
+    public void unknownQueryHasNoBoundary() {
+        cache.put(QUERY, 101, "u100");
+
+        assertNull(cache.floor("is_active = ? [true]", 101));
+        assertNull(cache.floor(QUERY, 50));
+        assertEquals(2, cache.getBoundaryMisses());
+    }
+
+    @Test
+    public void countIsServedUntilItExpires() {
+        cache.putCount(QUERY, 42);
+
+        assertEquals(42, cache.getCount(QUERY));
+        cache.setCountTtlMillis(-1);
+        assertEquals(-1, cache.getCount(QUERY));
+
+        assertEquals(1, cache.getCountHits());
+        assertEquals(1, cache.getCountMisses());
+    }
+
+    @Test
+    public void unusedQueryIsDropped() {
+        cache.put(QUERY, 101, "u100");
+        cache.setTtlMillis(-1);
+
+        assertNull(cache.floor(QUERY, 101));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void leastRecentlyUsedQueryIsDroppedAboveMaxQueries() {
+        cache.setMaxQueries(2);
+        cache.put("a", 101, "u100");
+        cache.put("b", 101, "u200");
+        cache.floor("a", 101);
+
+        cache.put("c", 101, "u300");
+
+        assertEquals(2, cache.getSize());
+        assertNull(cache.floor("b", 101));
+        assertEquals("u100", cache.floor("a", 101).getAfterUserId());
+    }
+
+    @Test
+    public void lowestBoundaryIsDroppedAboveMaxBoundaries() {
+        cache.setMaxBoundariesPerQuery(2);
+        cache.put(QUERY, 1, "");
+        cache.put(QUERY, 101, "u100");
+        cache.put(QUERY, 201, "u200");
+
+        assertNull(cache.floor(QUERY, 1));
+        assertEquals("u200", cache.floor(QUERY, 201).getAfterUserId());
+    }
+
+    @Test
+    public void clearDropsEveryQuery() {
+        cache.put(QUERY, 101, "u100");
+        cache.putCount(QUERY, 42);
+
+        cache.clear();
+
+        assertNull(cache.floor(QUERY, 101));
+        assertEquals(-1, cache.getCount(QUERY));
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests of {@link UserQuery}.
+ *
+ * @author praven Atluri
+ */
+public class UserQueryTest {
+
+    @Test
+    public void listingOfEveryUserIsReadByKeyset() {
+        UserQuery query = new UserQuery(null, null);
+
+        assertEquals("SELECT COUNT(*) FROM okta_users", query.toCountSql());
+        assertEquals("SELECT userid FROM okta_users WHERE userid > ? ORDER BY userid", query.toPageSql("userid"));
+    }
+
+    @Test
+    public void conditionIsKeptApartFromTheKeyset() {
+        UserQuery query = new UserQuery("user_name = ? OR last_name = ?", Arrays.<Object>asList("ann@example.com", "Smith"));
+
+        assertEquals("SELECT COUNT(*) FROM okta_users WHERE user_name = ? OR last_name = ?", query.toCountSql());
+        assertEquals("SELECT " + UserQuery.COLUMNS + " FROM okta_users WHERE (user_name = ? OR last_name = ?) AND userid > ? ORDER BY userid",
+                query.toPageSql(UserQuery.COLUMNS));
+    }
+
+    @Test
+    public void bindReturnsTheIndexOfTheKeysetParameter() throws SQLException {
+        final List<Object> bound = new ArrayList<Object>();
+        PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(UserQueryTest.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        assertEquals("setObject", method.getName());
+                        assertEquals(bound.size() + 1, args[0]);
+                        bound.add(args[1]);
+                        return null;
+                    }
+                });
+
+        int next = new UserQuery("user_name = ? OR is_active = ?", Arrays.<Object>asList("ann@example.com", Boolean.TRUE)).bind(stmt);
+
+        assertEquals(3, next);
+        assertEquals(Arrays.<Object>asList("ann@example.com", Boolean.TRUE), bound);
+    }
+
+    @Test
+    public void queriesWithOtherValuesHaveOtherKeys() {
+        UserQuery ann = new UserQuery("user_name = ?", Collections.<Object>singletonList("ann@example.com"));
+
+        assertEquals(ann.getKey(), new UserQuery("user_name = ?", Collections.<Object>singletonList("ann@example.com")).getKey());
+        assertFalse(ann.getKey().equals(new UserQuery("user_name = ?", Collections.<Object>singletonList("bob@example.com")).getKey()));
+        assertFalse(ann.getKey().equals(new UserQuery("last_name = ?", Collections.<Object>singletonList("ann@example.com")).getKey()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void valuesCannotBeChanged() {
+        new UserQuery("user_name = ?", Collections.<Object>singletonList("ann@example.com")).getValues().add("bob@example.com");
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright Okta, Inc. 2013
+ */
+package com.okta.scim.server.PasswordCapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link UserUpdate}.
+ *
+ * @author praven Atluri
+ */
+public class UserUpdateTest {
+
+    private static final byte[] PASSWORD = {1, 2, 3};
+    private static final byte[] NEWER_PASSWORD = {4, 5, 6};
+    private static final byte[] HMAC = {7, 8, 9};
+    private static final byte[] NEWER_HMAC = {10, 11, 12};
+
+    @Test
+    public void toSqlWritesOnlyTheSetColumns() {
+        UserUpdate update = new UserUpdate("u1");
+        update.setLastName("Smith");
+        update.setActive(Boolean.FALSE);
+
+        assertEquals("UPDATE okta_users set last_name=?, is_active=? WHERE userid = ?", update.toSql());
+    }
+
+    @Test
+    public void mergeKeepsTheColumnsTheNewerUpdateLeavesAlone() {
+        UserUpdate older = new UserUpdate("u1");
+        older.setFirstName("Ann");
+        older.setLastName("Smith");
+        older.setPassword(PASSWORD);
+        UserUpdate newer = new UserUpdate("u1");
+        newer.setLastName("Jones");
+        newer.setActive(Boolean.TRUE);
+
+        assertTrue(older.canMerge(newer));
+        older.merge(newer);
+
+        assertEquals("Ann", older.getFirstName());
+        assertEquals("Jones", older.getLastName());
+        assertArrayEquals(PASSWORD, older.getPassword());
+        assertEquals(Boolean.TRUE, older.getActive());
+    }
+
+    @Test
+    public void mergeTakesTheNewerPassword() {
+        UserUpdate older = new UserUpdate("u1");
+        older.setPassword(PASSWORD);
+        UserUpdate newer = new UserUpdate("u1");
+        newer.setPassword(NEWER_PASSWORD);
+
+        older.merge(newer);
+
+        assertArrayEquals(NEWER_PASSWORD, older.getPassword());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsAnotherUser() {
+        new UserUpdate("u1").merge(new UserUpdate("u2"));
+    }
+
+    @Test
+    public void guardedUpdateAddsThePasswordCheckToTheStatement() {
+        UserUpdate update = new UserUpdate("u1");
+        update.setFirstName("Ann");
+        update.setExpectedPasswordHmac(HMAC);
+
+        assertTrue(update.isGuarded());
+        assertEquals("UPDATE okta_users set first_name=? WHERE userid = ? AND password_hmac = ?", update.toSql());
+    }
+
+    @Test
+    public void unguardedUpdateIsNotMergedIntoAGuardedOne() {
+        UserUpdate guarded = new UserUpdate("u1");
+        guarded.setFirstName("Ann");
+        guarded.setExpectedPasswordHmac(HMAC);
+        UserUpdate unguarded = new UserUpdate("u1");
+        unguarded.setLastName("Jones");
+
+        //a missed guard would drop the last name of the unguarded caller
+        assertFalse(guarded.canMerge(unguarded));
+    }
+
+    @Test
+    public void guardedUpdateIsNotMergedIntoAnUnguardedOne() {
+        UserUpdate unguarded = new UserUpdate("u1");
+        unguarded.setPassword(NEWER_PASSWORD);
+        unguarded.setPasswordHmac(NEWER_HMAC);
+        UserUpdate guarded = new UserUpdate("u1");
+        guarded.setFirstName("Ann");
+        guarded.setExpectedPasswordHmac(HMAC);
+
+        assertFalse(unguarded.canMerge(guarded));
+    }
+
+    @Test
+    public void guardedUpdatesAreMergedOnlyWithTheSameGuard() {
+        UserUpdate older = new UserUpdate("u1");
+        older.setFirstName("Ann");
+        older.setExpectedPasswordHmac(HMAC);
+        UserUpdate sameGuard = new UserUpdate("u1");
+        sameGuard.setLastName("Jones");
+        sameGuard.setExpectedPasswordHmac(HMAC.clone());
+        UserUpdate otherGuard = new UserUpdate("u1");
+        otherGuard.setLastName("Brown");
+        otherGuard.setExpectedPasswordHmac(NEWER_HMAC);
+
+        assertFalse(older.canMerge(otherGuard));
+        assertTrue(older.canMerge(sameGuard));
+        older.merge(sameGuard);
+
+        assertEquals("Ann", older.getFirstName());
+        assertEquals("Jones", older.getLastName());
+        assertArrayEquals(HMAC, older.getExpectedPasswordHmac());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsADifferentGuard() {
+        UserUpdate guarded = new UserUpdate("u1");
+        guarded.setExpectedPasswordHmac(HMAC);
+
+        guarded.merge(new UserUpdate("u1"));
+    }
+
+    @Test
+    public void isEmptyUntilAColumnIsSet() {
+        UserUpdate update = new UserUpdate("u1");
+        assertTrue(update.isEmpty());
+
+        update.setUserName("ann@example.com");
+        assertFalse(update.isEmpty());
+    }
+}